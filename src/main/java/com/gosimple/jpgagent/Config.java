@@ -59,6 +59,11 @@ public enum Config
     public final String status_token = "~status~";
     public final String job_name_token = "~job_name~";
     public final String job_step_name_token = "~job_step_name~";
+    public final String duration_token = "~duration~";
+    public final String start_time_token = "~start_time~";
+    public final String exit_code_token = "~exit_code~";
+    public final String output_tail_token = "~output_tail~";
+    public final String agent_host_token = "~agent_host~";
 
     @Option(name = "--help", help = true, required = false, usage = "Help")
     public boolean help = false;
@@ -68,6 +73,24 @@ public enum Config
     public String db_host;
     @Option(name = "--port", required = false, usage = "Database host port.", metaVar = "Integer")
     public int db_port = 5432;
+    @Option(name = "--admin-address", required = false, usage = "Address the admin API listens on.", metaVar = "String")
+    public String admin_address = "127.0.0.1";
+    @Option(name = "--admin-port", required = false, usage = "Port to serve the admin API on. Set to 0 to disable.", metaVar = "Integer")
+    public int admin_port = 0;
+    @Option(name = "--job-class-limit", required = false, usage = "Comma separated list of job class limits (Name=limit), the maximum number of jobs of each pgAgent job class run at once. Set a limit to 0 for no limit.", metaVar = "String")
+    public String job_class_limit;
+    @Option(name = "--max-chain-depth", required = false, usage = "Maximum number of jobs started one after another by CHAIN_JOBS from one job.", metaVar = "Integer")
+    public int max_chain_depth = 10;
+    @Option(name = "--max-running-jobs", required = false, usage = "Maximum number of jobs this agent runs at once. Set to 0 for no limit.", metaVar = "Integer")
+    public int max_running_jobs = 0;
+    @Option(name = "--metrics-address", required = false, usage = "Address the metrics endpoint listens on.", metaVar = "String")
+    public String metrics_address = "127.0.0.1";
+    @Option(name = "--metrics-port", required = false, usage = "Port to serve Prometheus metrics on at /metrics. Set to 0 to disable.", metaVar = "Integer")
+    public int metrics_port = 0;
+    @Option(name = "--priority-aging-interval", required = false, usage = "Time (ms) a due job waits to gain one JOB_PRIORITY, so lower priority jobs are not starved. Set to 0 to disable.", metaVar = "Integer")
+    public long priority_aging_interval = 60000;
+    @Option(name = "--replica-hosts", required = false, usage = "Comma separated list of hot standby hosts (host[:port]) used for job steps marked as read only.", metaVar = "String")
+    public String db_replica_hosts;
     @Option(name = "-u", required = true, usage = "Database user.", metaVar = "String")
     public String db_user;
     @Option(name = "-p", required = true, usage = "Database password.", metaVar = "String")
@@ -78,8 +101,34 @@ public enum Config
     public long job_poll_interval = 10000;
     @Option(name = "-r", required = false, usage = "Connection retry interval (ms).", metaVar = "Integer")
     public long connection_retry_interval = 30000;
+    @Option(name = "--kill-grace-period", required = false, usage = "Time (ms) a cancelled step is given to stop before it is forcibly killed.", metaVar = "Integer")
+    public long kill_grace_period = 5000;
+    @Option(name = "--batch-output-tags", required = false, usage = "Prefixes each line of batch step output with the time it was read and the stream it came from.", metaVar = "Boolean")
+    public Boolean batch_output_tags = false;
+    @Option(name = "--batch-worker-pool-size", required = false, usage = "Number of shell workers kept running to start batch steps without forking jpgAgent. Set to 0 to disable.", metaVar = "Integer")
+    public int batch_worker_pool_size = 0;
     @Option(name = "--disable-prepared-statement", required = false, usage = "Disables prepared statements for all database connections. Useful if there is a pooler in front of the database.", metaVar = "Boolean")
     public Boolean disable_prepared_statement = false;
+    @Option(name = "--disable-server-timeouts", required = false, usage = "Disables setting statement_timeout and lock_timeout on job step connections. Useful if there is a transaction pooler in front of the database.", metaVar = "Boolean")
+    public Boolean disable_server_timeouts = false;
+    @Option(name = "--resource-sample-interval", required = false, usage = "Time (ms) between samples of the resource usage of batch steps. Set to 0 to disable.", metaVar = "Integer")
+    public long resource_sample_interval = 1000;
+    @Option(name = "--script-cache-dir", required = false, usage = "Directory batch step scripts are cached in. Defaults to jpgagent-scripts in the temp directory.", metaVar = "String")
+    public String script_cache_dir;
+    @Option(name = "--script-cache-size", required = false, usage = "Maximum number of batch step scripts to keep cached.", metaVar = "Integer")
+    public int script_cache_size = 256;
+    @Option(name = "--trace-file", required = false, usage = "File sampled trace spans are appended to, as OTLP JSON lines.", metaVar = "String")
+    public String trace_file;
+    @Option(name = "--trace-sample-rate", required = false, depends = {"--trace-file"}, usage = "Fraction of jobs traced, from 0 to 1. Set to 0 to disable.", metaVar = "Double")
+    public double trace_sample_rate = 0;
+    @Option(name = "--email-digest-window", required = false, usage = "Time (ms) further notifications to a recipient are held for after an email is sent to them, and then sent together as one digest. Set to 0 to disable.", metaVar = "Integer")
+    public long email_digest_window = 0;
+    @Option(name = "--email-max-attempts", required = false, usage = "Number of times to try sending an email before it is dropped.", metaVar = "Integer")
+    public int email_max_attempts = 3;
+    @Option(name = "--email-queue-size", required = false, usage = "Maximum number of emails waiting to be sent. Further emails are dropped.", metaVar = "Integer")
+    public int email_queue_size = 1000;
+    @Option(name = "--email-rate-limit", required = false, usage = "Maximum number of emails sent to one recipient per hour. Further notifications are held for the next digest. Set to 0 to disable.", metaVar = "Integer")
+    public int email_rate_limit = 0;
     @Option(name = "--smtp-host", required = false, usage = "Server address used for smtp.", metaVar = "String")
     public String smtp_host;
     @Option(name = "--smtp-email", required = false, depends = {"--smtp-host"}, usage = "Email address used for smtp.", metaVar = "String")
@@ -22,33 +22,51 @@
 
 package com.gosimple.jpgagent;
 
+import com.gosimple.jpgagent.admin.AdminServer;
+import com.gosimple.jpgagent.admin.ControlChannel;
 import com.gosimple.jpgagent.database.Database;
+import com.gosimple.jpgagent.jfr.JobClaimEvent;
 import com.gosimple.jpgagent.job.Job;
 import com.gosimple.jpgagent.job.JobBuilder;
+import com.gosimple.jpgagent.job.JobPriority;
+import com.gosimple.jpgagent.job.JobRegistry;
+import com.gosimple.jpgagent.job.RunJobRequest;
 import com.gosimple.jpgagent.job.step.JobStepBuilder;
+import com.gosimple.jpgagent.job.step.ShellWorkerPool;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
+import com.gosimple.jpgagent.metrics.MetricsServer;
+import com.gosimple.jpgagent.thread.Bulkhead;
 import com.gosimple.jpgagent.thread.ExecutionUtil;
+import com.gosimple.jpgagent.trace.Span;
+import com.gosimple.jpgagent.trace.Tracer;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.postgresql.PGConnection;
 import org.postgresql.PGNotification;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class JPGAgent
 {
-    private static final Map<Integer, Future<?>> job_future_map = new HashMap<>();
-
     private static AtomicBoolean run_cleanup = new AtomicBoolean(true);
+    // Chained jobs which could not be started yet, because job dispatch was paused or at its limit.
+    private static final Queue<RunJobRequest> pending_chained_jobs = new ConcurrentLinkedQueue<>();
 
     public static void main(String[] args)
     {
@@ -60,6 +78,29 @@ public class JPGAgent
 
         Config.INSTANCE.logger.info("jpgAgent starting.");
 
+        // Start the batch workers ahead of the first batch step.
+        ShellWorkerPool.getInstance();
+
+        try
+        {
+            MetricsServer.start();
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to start the metrics server.");
+            Config.INSTANCE.logger.error("Message: " + e.getMessage());
+        }
+
+        try
+        {
+            AdminServer.start();
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to start the admin server.");
+            Config.INSTANCE.logger.error("Message: " + e.getMessage());
+        }
+
         // Enter main loop
         while (true)
         {
@@ -85,8 +126,8 @@ public class JPGAgent
                 // Actually run new jobs.
                 runJobs();
 
-                // Sleep for the allotted time before starting all over.
-                Thread.sleep(Config.INSTANCE.job_poll_interval);
+                // Wait for the allotted time before starting all over, handling notifications as they arrive.
+                waitForNotifications(Config.INSTANCE.job_poll_interval);
             }
             catch (final Exception e)
             {
@@ -127,28 +168,66 @@ public class JPGAgent
         try (final Statement statement = Database.INSTANCE.getListenerConnection().createStatement();
              final ResultSet result_set = statement.executeQuery(Config.INSTANCE.sql.getProperty("sql.jpgagent.dummy")))
         {
-            Config.INSTANCE.logger.debug("Kill jobs begin.");
             final PGConnection pg_connection = Database.INSTANCE.getListenerConnection().unwrap(PGConnection.class);
-            final PGNotification[] notifications = pg_connection.getNotifications();
+            handleNotifications(pg_connection.getNotifications());
+        }
+    }
+
+    /**
+     * Waits until the timeout is up, handling notifications as soon as they arrive.
+     *
+     * @param timeout the time (ms) to wait
+     */
+    private static void waitForNotifications(final long timeout) throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (remaining > 0)
+        {
+            final PGConnection pg_connection = Database.INSTANCE.getListenerConnection().unwrap(PGConnection.class);
+            // Blocks on the socket of the listener connection, so there is no need to poll it.
+            handleNotifications(pg_connection.getNotifications((int) Math.min(remaining, Integer.MAX_VALUE)));
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
 
-            if (null != notifications)
+    private static void handleNotifications(final PGNotification[] notifications) throws Exception
+    {
+        if (null == notifications)
+        {
+            return;
+        }
+        for (PGNotification notification : notifications)
+        {
+            if (notification.getName().equals("jpgagent_kill_job"))
             {
-                for (PGNotification notification : notifications)
+                int job_id = Integer.parseInt(notification.getParameter());
+                if (JobRegistry.INSTANCE.kill(job_id))
                 {
-                    if (notification.getName().equals("jpgagent_kill_job"))
-                    {
-                        int job_id = Integer.parseInt(notification.getParameter());
-                        if (job_future_map.containsKey(job_id))
-                        {
-                            Config.INSTANCE.logger.info("Killing job_id: {}.", job_id);
-                            job_future_map.get(job_id).cancel(true);
-                        }
-                        else
-                        {
-                            Config.INSTANCE.logger.info("Kill request for job_id: {} was submitted, but the job was not running.", job_id);
-                        }
-                    }
+                    Config.INSTANCE.logger.info("Killing job_id: {}.", job_id);
+                }
+                else
+                {
+                    Config.INSTANCE.logger.info("Kill request for job_id: {} was submitted, but the job was not running.", job_id);
+                }
+            }
+            else if (notification.getName().equals(ControlChannel.CHANNEL))
+            {
+                ControlChannel.process(notification.getParameter(), Config.INSTANCE.hostname);
+            }
+            else if (notification.getName().equals(RunJobRequest.CHANNEL))
+            {
+                final RunJobRequest run_job_request;
+                try
+                {
+                    run_job_request = RunJobRequest.parse(notification.getParameter());
                 }
+                catch (IllegalArgumentException e)
+                {
+                    Config.INSTANCE.logger.warn("Ignoring invalid request to run a job: {}. Message: {}", notification.getParameter(), e.getMessage());
+                    continue;
+                }
+                runJobNow(run_job_request);
             }
         }
     }
@@ -180,20 +259,7 @@ public class JPGAgent
 
 
             Config.INSTANCE.logger.debug("Cleanup of completed jobs started.");
-            final List<Integer> job_ids_to_remove = new ArrayList<>();
-            for (Integer job_id : job_future_map.keySet())
-            {
-                if (job_future_map.get(job_id).isDone())
-                {
-                    job_ids_to_remove.add(job_id);
-                }
-            }
-
-            for (Integer job_id : job_ids_to_remove)
-            {
-                job_future_map.remove(job_id);
-            }
-            job_ids_to_remove.clear();
+            JobRegistry.INSTANCE.removeDone();
 
             Config.INSTANCE.logger.debug("Successfully cleaned up.");
         }
@@ -203,9 +269,27 @@ public class JPGAgent
         }
     }
 
-    private static void runJobs() throws Exception
+    private static synchronized void runJobs() throws Exception
     {
         Config.INSTANCE.logger.debug("Running jobs begin.");
+        JobRegistry.INSTANCE.removeDone();
+        if (JobRegistry.INSTANCE.isPaused())
+        {
+            Config.INSTANCE.logger.debug("Job dispatch is paused.");
+            return;
+        }
+        // Chained jobs waiting for a free slot go first, as they were due before anything claimed now.
+        RunJobRequest pending_chained_job;
+        while (!isAtRunningLimit() && (pending_chained_job = pending_chained_jobs.poll()) != null)
+        {
+            runJobNow(pending_chained_job);
+        }
+        final Integer available_slots = JobRegistry.INSTANCE.getAvailableSlots();
+        if (available_slots != null && available_slots == 0)
+        {
+            Config.INSTANCE.logger.debug("Already running the maximum of {} jobs.", JobRegistry.INSTANCE.getMaxRunningJobs());
+            return;
+        }
         final String get_job_sql = Config.INSTANCE.sql.getProperty("sql.jpgagent.get_job");
 
 
@@ -213,20 +297,220 @@ public class JPGAgent
         {
             get_job_statement.setInt(1, Database.INSTANCE.getPid());
             get_job_statement.setString(2, Config.INSTANCE.hostname);
+            get_job_statement.setLong(3, Config.INSTANCE.priority_aging_interval);
+            if (available_slots != null)
+            {
+                get_job_statement.setInt(4, available_slots);
+            }
+            else
+            {
+                get_job_statement.setNull(4, Types.INTEGER);
+            }
             try (final ResultSet resultSet = get_job_statement.executeQuery())
             {
-                while (resultSet.next())
+                submitClaimedJobs(resultSet, null);
+            }
+        }
+
+        Config.INSTANCE.logger.debug("Running jobs complete.");
+    }
+
+    /**
+     * Claims a job to run right away, whether or not it is due, if it is enabled and not already running.
+     * Requests are ignored while job dispatch is paused or the maximum number of jobs are running.
+     *
+     * @param run_job_request the job and the annotations to override for this run
+     * @return true if the job was claimed
+     */
+    public static synchronized boolean runJobNow(final RunJobRequest run_job_request) throws Exception
+    {
+        final int job_id = run_job_request.getJobId();
+        JobRegistry.INSTANCE.removeDone();
+        if (JobRegistry.INSTANCE.isPaused())
+        {
+            Config.INSTANCE.logger.info("Request to run job_id: {} ignored, job dispatch is paused.", job_id);
+            return false;
+        }
+        final Integer available_slots = JobRegistry.INSTANCE.getAvailableSlots();
+        if (available_slots != null && available_slots == 0)
+        {
+            Config.INSTANCE.logger.info("Request to run job_id: {} ignored, already running the maximum of {} jobs.", job_id, JobRegistry.INSTANCE.getMaxRunningJobs());
+            return false;
+        }
+        final String run_job_sql = Config.INSTANCE.sql.getProperty("sql.jpgagent.run_job");
+        try (final PreparedStatement run_job_statement = Database.INSTANCE.getMainConnection().prepareStatement(run_job_sql))
+        {
+            run_job_statement.setInt(1, Database.INSTANCE.getPid());
+            run_job_statement.setInt(2, job_id);
+            run_job_statement.setString(3, Config.INSTANCE.hostname);
+            try (final ResultSet resultSet = run_job_statement.executeQuery())
+            {
+                if (submitClaimedJobs(resultSet, run_job_request) == 0)
                 {
-                    final int job_id = resultSet.getInt("jobid");
-                    final Job job = JobBuilder.createJob(job_id, resultSet.getString("jobname"), resultSet.getString("jobdesc"));
-                    job.setJobStepList(JobStepBuilder.createJobSteps(job));
-                    Config.INSTANCE.logger.debug("Submitting job_id {} for execution.", job_id);
-                    job_future_map.put(job_id, ExecutionUtil.INSTANCE.submitTask(job));
+                    Config.INSTANCE.logger.info("Request to run job_id: {} ignored, it is running, disabled, bound to another agent or claimed by another agent.", job_id);
+                    return false;
                 }
             }
         }
+        Config.INSTANCE.logger.info("Job: {} - Claimed on request.", job_id);
+        return true;
+    }
 
-        Config.INSTANCE.logger.debug("Running jobs complete.");
+    /**
+     * Starts a job chained to another one finishing. If job dispatch is paused or at its limit, the job is held and
+     * started once it is not.
+     *
+     * @param run_job_request the job and the chain leading to it
+     */
+    public static void runChainedJob(final RunJobRequest run_job_request)
+    {
+        synchronized (JPGAgent.class)
+        {
+            if (JobRegistry.INSTANCE.isPaused() || isAtRunningLimit())
+            {
+                Config.INSTANCE.logger.info("Holding chained job_id: {} until job dispatch can take it.", run_job_request.getJobId());
+                pending_chained_jobs.add(run_job_request);
+                return;
+            }
+            try
+            {
+                runJobNow(run_job_request);
+            }
+            catch (Exception e)
+            {
+                Config.INSTANCE.logger.error("Unable to start chained job_id: {}.", run_job_request.getJobId());
+                Config.INSTANCE.logger.error("Message: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isAtRunningLimit()
+    {
+        final Integer available_slots = JobRegistry.INSTANCE.getAvailableSlots();
+        return available_slots != null && available_slots == 0;
+    }
+
+    /**
+     * Builds and submits the jobs claimed by a query returning jobid, jobname, jobdesc, jobnextrun and jobclaimlag.
+     *
+     * @param resultSet the claimed jobs
+     * @param run_job_request the request the job was claimed for, or null for jobs claimed on schedule
+     * @return the number of jobs submitted
+     */
+    private static int submitClaimedJobs(final ResultSet resultSet, final RunJobRequest run_job_request) throws Exception
+    {
+        final Map<String, String> annotation_overrides = run_job_request != null ? run_job_request.getAnnotationOverrides() : Collections.emptyMap();
+        // Jobs claimed together are prepared one after another, so a job waiting on others counts toward its preparation lag.
+        final long claim_time = System.currentTimeMillis();
+        final List<ClaimedJob> claimed_jobs = new ArrayList<>();
+        while (resultSet.next())
+        {
+            claimed_jobs.add(new ClaimedJob(resultSet, annotation_overrides));
+        }
+        // Prepared and submitted in priority order, so the most important jobs start first.
+        claimed_jobs.sort(Comparator.comparingLong(ClaimedJob::getDispatchPriority).reversed());
+        int submitted = 0;
+        for (ClaimedJob claimed_job : claimed_jobs)
+        {
+            final JobClaimEvent claim_event = new JobClaimEvent();
+            claim_event.begin();
+            final int job_id = claimed_job.job_id;
+            final Long claim_lag = claimed_job.claim_lag;
+            MetricsRegistry.INSTANCE.counter("jobs_claimed_total", "Jobs claimed by this agent.").inc();
+            if (claim_lag != null)
+            {
+                MetricsRegistry.INSTANCE.histogram("job_claim_lag_seconds", "Time from jobs being due to being claimed.").observe(claim_lag / 1000.0);
+            }
+            // Started at the claim, so the trace covers preparing the job as well as running it.
+            final Span job_span = Tracer.INSTANCE.startRootSpan("job")
+                    .setAttribute("jpgagent.job.id", job_id)
+                    .setAttribute("jpgagent.job.name", claimed_job.job_name)
+                    .setAttribute("jpgagent.job.claim_lag_ms", claim_lag)
+                    .setAttribute("jpgagent.job.priority", claimed_job.priority)
+                    .setAttribute("jpgagent.job.class", claimed_job.job_class);
+            final Span prepare_span = Tracer.INSTANCE.startSpan("prepare", job_span);
+            final Job job;
+            try (Span.Scope scope = prepare_span.makeCurrent())
+            {
+                job = JobBuilder.createJob(job_id, claimed_job.job_name, claimed_job.job_comment, annotation_overrides);
+                job.setJobStepList(JobStepBuilder.createJobSteps(job));
+            }
+            catch (Exception e)
+            {
+                job_span.setError(e.getMessage()).end();
+                throw e;
+            }
+            finally
+            {
+                prepare_span.end();
+            }
+            job.setSpan(job_span);
+            if (run_job_request != null)
+            {
+                job.setChain(run_job_request.getChain());
+            }
+            final long preparation_lag = System.currentTimeMillis() - claim_time;
+            MetricsRegistry.INSTANCE.histogram("job_preparation_lag_seconds", "Time from jobs being claimed to being ready to run, including building steps and the job log.").observe(preparation_lag / 1000.0);
+            if (claim_lag != null)
+            {
+                job.setScheduleLag(claim_lag, claim_time, preparation_lag);
+            }
+            claim_event.end();
+            if (claim_event.shouldCommit())
+            {
+                claim_event.job_id = job_id;
+                claim_event.job_name = job.getJobName();
+                claim_event.claim_lag = claim_lag != null ? claim_lag : 0;
+                claim_event.commit();
+            }
+            if (claim_lag != null)
+            {
+                Config.INSTANCE.logger.debug("Job: {} - Claimed {} ms after due at {} with priority {}, ready {} ms after claim.", job_id, claim_lag, claimed_job.next_run, claimed_job.priority, preparation_lag);
+            }
+            else
+            {
+                Config.INSTANCE.logger.debug("Job: {} - Claimed on request, ready {} ms after claim.", job_id, preparation_lag);
+            }
+            Config.INSTANCE.logger.debug("Submitting job_id {} for execution.", job_id);
+            job.setJobClass(claimed_job.job_class);
+            // Jobs wait for their class's bulkhead from when they were due, so the longer waiting ones are aged ahead.
+            final long waiting_since = claim_lag != null ? claim_time - claim_lag : claim_time;
+            JobRegistry.INSTANCE.register(job, ExecutionUtil.INSTANCE.getBulkhead(claimed_job.job_class).submit(job, claimed_job.priority, waiting_since));
+            submitted++;
+        }
+        return submitted;
+    }
+
+    /**
+     * A row returned by a claim, read up front so the claimed jobs can be ordered.
+     */
+    private static class ClaimedJob
+    {
+        private final int job_id;
+        private final String job_name;
+        private final String job_comment;
+        private final Timestamp next_run;
+        // Null for jobs run on request, which may never have been due.
+        private final Long claim_lag;
+        private final int priority;
+        // Null for jobs without a pgAgent job class.
+        private final String job_class;
+
+        private ClaimedJob(final ResultSet resultSet, final Map<String, String> annotation_overrides) throws SQLException
+        {
+            this.job_id = resultSet.getInt("jobid");
+            this.job_name = resultSet.getString("jobname");
+            this.job_comment = resultSet.getString("jobdesc");
+            this.next_run = resultSet.getTimestamp("jobnextrun");
+            this.claim_lag = resultSet.getObject("jobclaimlag") != null ? resultSet.getLong("jobclaimlag") : null;
+            this.priority = JobPriority.parse(job_comment, annotation_overrides);
+            this.job_class = resultSet.getString("jclname");
+        }
+
+        private long getDispatchPriority()
+        {
+            return JobPriority.age(priority, claim_lag != null ? claim_lag : 0);
+        }
     }
 
     /**
@@ -263,6 +547,17 @@ public class JPGAgent
             return false;
         }
 
+        try
+        {
+            Bulkhead.parseLimits(Config.INSTANCE.job_class_limit);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            System.out.println("Invalid --job-class-limit: " + e.getMessage());
+            parser.printUsage(System.out);
+            return false;
+        }
+
         try
         {
             Config.INSTANCE.hostname = InetAddress.getLocalHost().getHostName();
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.admin;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.database.Database;
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.JobRegistry;
+import com.gosimple.jpgagent.job.step.JobStep;
+import com.gosimple.jpgagent.json.JsonUtil;
+import com.gosimple.jpgagent.thread.Bulkhead;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the live state of the agent over http, and takes commands to control it.
+ * Everything is read from and applied to the {@link JobRegistry}, so the database is never touched.
+ * <ul>
+ *     <li>GET /jobs lists the claimed jobs and their steps.</li>
+ *     <li>GET /stats shows dispatch and thread pool stats.</li>
+ *     <li>POST /jobs/{job_id}/kill cancels a job.</li>
+ *     <li>POST /pause and POST /resume stop and restart claiming new jobs.</li>
+ *     <li>POST /drain stops claiming new jobs and logs once the running jobs have finished.</li>
+ *     <li>POST /max-running-jobs?value=N changes the maximum number of jobs running at once, 0 for no limit.</li>
+ * </ul>
+ * A page open in a browser on the same host could reach the server too, so requests sent by a browser on behalf of a
+ * page, which carry an Origin header, are refused, and POST requests must carry the {@value #REQUEST_HEADER} header,
+ * which a page can not add to a cross-site request without the server allowing it.
+ */
+public class AdminServer
+{
+    public static final String REQUEST_HEADER = "X-Requested-By";
+
+    private final HttpServer http_server;
+
+    /**
+     * Starts the server configured for jpgAgent, if an admin port is configured.
+     * @return the server, or null if none is configured
+     * @throws IOException if the server could not be started
+     */
+    public static AdminServer start() throws IOException
+    {
+        if (Config.INSTANCE.admin_port <= 0)
+        {
+            return null;
+        }
+        final AdminServer admin_server = new AdminServer(Config.INSTANCE.admin_address, Config.INSTANCE.admin_port);
+        Config.INSTANCE.logger.info("Serving the admin API on {}:{}.", Config.INSTANCE.admin_address, admin_server.getPort());
+        return admin_server;
+    }
+
+    /**
+     * Starts a server.
+     * @param address the address to listen on
+     * @param port the port to listen on, 0 to pick a free one
+     * @throws IOException
+     */
+    public AdminServer(final String address, final int port) throws IOException
+    {
+        http_server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        http_server.createContext("/", this::handle);
+        http_server.setExecutor(Executors.newSingleThreadExecutor(r ->
+        {
+            final Thread thread = new Thread(r, "jpgagent-admin");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http_server.start();
+    }
+
+    public int getPort()
+    {
+        return http_server.getAddress().getPort();
+    }
+
+    public void stop()
+    {
+        http_server.stop(0);
+    }
+
+    private void handle(final HttpExchange http_exchange) throws IOException
+    {
+        try
+        {
+            final String method = http_exchange.getRequestMethod();
+            final String path = http_exchange.getRequestURI().getPath();
+            final String[] parts = path.split("/");
+            if (http_exchange.getRequestHeaders().containsKey("Origin"))
+            {
+                respond(http_exchange, 403, errorJson("Requests from web pages are not allowed."));
+            }
+            else if ("POST".equals(method) && isBlank(http_exchange.getRequestHeaders().getFirst(REQUEST_HEADER)))
+            {
+                respond(http_exchange, 403, errorJson("POST requests must carry the " + REQUEST_HEADER + " header."));
+            }
+            else if ("GET".equals(method) && "/jobs".equals(path))
+            {
+                respond(http_exchange, 200, jobsJson());
+            }
+            else if ("GET".equals(method) && "/stats".equals(path))
+            {
+                respond(http_exchange, 200, statsJson());
+            }
+            else if ("POST".equals(method) && parts.length == 4 && "jobs".equals(parts[1]) && "kill".equals(parts[3]))
+            {
+                final int job_id;
+                try
+                {
+                    job_id = Integer.parseInt(parts[2]);
+                }
+                catch (NumberFormatException e)
+                {
+                    respond(http_exchange, 400, errorJson("Invalid job id: " + parts[2]));
+                    return;
+                }
+                if (JobRegistry.INSTANCE.kill(job_id))
+                {
+                    Config.INSTANCE.logger.info("Killing job_id: {} from the admin API.", job_id);
+                    respond(http_exchange, 200, "{\"killed\":" + job_id + "}");
+                }
+                else
+                {
+                    respond(http_exchange, 404, errorJson("Job " + job_id + " is not running."));
+                }
+            }
+            else if ("POST".equals(method) && "/pause".equals(path))
+            {
+                JobRegistry.INSTANCE.setPaused(true);
+                respond(http_exchange, 200, statsJson());
+            }
+            else if ("POST".equals(method) && "/drain".equals(path))
+            {
+                JobRegistry.INSTANCE.drain();
+                respond(http_exchange, 200, statsJson());
+            }
+            else if ("POST".equals(method) && "/resume".equals(path))
+            {
+                JobRegistry.INSTANCE.setPaused(false);
+                respond(http_exchange, 200, statsJson());
+            }
+            else if ("POST".equals(method) && "/max-running-jobs".equals(path))
+            {
+                final String value = getQueryParameter(http_exchange.getRequestURI().getRawQuery(), "value");
+                try
+                {
+                    JobRegistry.INSTANCE.setMaxRunningJobs(Integer.parseInt(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    respond(http_exchange, 400, errorJson("Invalid value: " + value + ". Expected a whole number, 0 for no limit."));
+                    return;
+                }
+                respond(http_exchange, 200, statsJson());
+            }
+            else
+            {
+                respond(http_exchange, 404, errorJson("Unknown request: " + method + " " + path));
+            }
+        }
+        finally
+        {
+            http_exchange.close();
+        }
+    }
+
+    private static void respond(final HttpExchange http_exchange, final int status, final String json) throws IOException
+    {
+        final byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        http_exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        http_exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream output = http_exchange.getResponseBody())
+        {
+            output.write(response);
+        }
+    }
+
+    private static String getQueryParameter(final String query, final String name)
+    {
+        if (query == null)
+        {
+            return null;
+        }
+        for (String parameter : query.split("&"))
+        {
+            final int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).equals(name))
+            {
+                return parameter.substring(equals + 1);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isBlank(final String value)
+    {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private static String errorJson(final String message)
+    {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"error\":");
+        JsonUtil.appendString(json, message);
+        json.append('}');
+        return json.toString();
+    }
+
+    static String jobsJson()
+    {
+        final long now = System.currentTimeMillis();
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"jobs\":[");
+        boolean first_job = true;
+        for (JobRegistry.RegisteredJob registered_job : JobRegistry.INSTANCE.getJobs())
+        {
+            final Job job = registered_job.getJob();
+            final Long job_start_time = job.getStartTime();
+            if (!first_job)
+            {
+                json.append(',');
+            }
+            first_job = false;
+            json.append("{\"job_id\":").append(job.getJobId())
+                    .append(",\"job_log_id\":").append(job.getJobLogId())
+                    .append(",\"job_name\":");
+            JsonUtil.appendString(json, job.getJobName());
+            json.append(",\"priority\":").append(job.getPriority())
+                    .append(",\"job_class\":");
+            if (job.getJobClass() != null)
+            {
+                JsonUtil.appendString(json, job.getJobClass());
+            }
+            else
+            {
+                json.append("null");
+            }
+            json.append(",\"status\":\"").append(registered_job.isCancelling() ? "CANCELLING" : job_start_time == null ? "WAITING" : "RUNNING")
+                    .append("\",\"claimed_ms\":").append(now - registered_job.getClaimTime())
+                    .append(",\"elapsed_ms\":").append(job_start_time == null ? 0 : now - job_start_time)
+                    .append(",\"steps\":[");
+            final List<JobStep> job_step_list = job.getJobStepList();
+            if (job_step_list != null)
+            {
+                boolean first_step = true;
+                for (JobStep job_step : job_step_list)
+                {
+                    final Long step_start_time = job_step.getStartTime();
+                    if (!first_step)
+                    {
+                        json.append(',');
+                    }
+                    first_step = false;
+                    json.append("{\"step_id\":").append(job_step.getStepId())
+                            .append(",\"step_name\":");
+                    JsonUtil.appendString(json, job_step.getStepName());
+                    json.append(",\"step_type\":\"").append(job_step.getStepType().name())
+                            .append("\",\"status\":\"");
+                    if (job_step.getStepStatus() != null)
+                    {
+                        json.append(job_step.getStepStatus().name());
+                    }
+                    else
+                    {
+                        json.append(step_start_time == null ? "WAITING" : "RUNNING");
+                    }
+                    json.append("\",\"elapsed_ms\":").append(step_start_time == null || job_step.getStepStatus() != null ? 0 : now - step_start_time)
+                            .append('}');
+                }
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    static String statsJson()
+    {
+        final StringBuilder job_classes = new StringBuilder("[");
+        for (Bulkhead bulkhead : ExecutionUtil.INSTANCE.getBulkheads())
+        {
+            if (job_classes.length() > 1)
+            {
+                job_classes.append(',');
+            }
+            job_classes.append("{\"name\":");
+            JsonUtil.appendString(job_classes, bulkhead.getName());
+            job_classes.append(",\"limit\":").append(bulkhead.getLimit())
+                    .append(",\"running\":").append(bulkhead.getRunningCount())
+                    .append(",\"queued\":").append(bulkhead.getQueuedCount())
+                    .append('}');
+        }
+        job_classes.append(']');
+        return "{\"paused\":" + JobRegistry.INSTANCE.isPaused() +
+                ",\"draining\":" + JobRegistry.INSTANCE.isDraining() +
+                ",\"max_running_jobs\":" + JobRegistry.INSTANCE.getMaxRunningJobs() +
+                ",\"running_jobs\":" + JobRegistry.INSTANCE.getRunningCount() +
+                ",\"waiting_jobs\":" + JobRegistry.INSTANCE.getWaitingCount() +
+                ",\"active_threads\":" + ExecutionUtil.INSTANCE.getActiveCount() +
+                ",\"pool_threads\":" + ExecutionUtil.INSTANCE.getPoolSize() +
+                ",\"completed_tasks\":" + ExecutionUtil.INSTANCE.getCompletedTaskCount() +
+                ",\"scheduled_queue_depth\":" + ExecutionUtil.INSTANCE.getScheduledQueueSize() +
+                ",\"db_connections_open\":" + Database.INSTANCE.getOpenConnectionCount() +
+                ",\"job_classes\":" + job_classes +
+                "}";
+    }
+}
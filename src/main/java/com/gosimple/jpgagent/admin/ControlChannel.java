@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.admin;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.job.JobRegistry;
+import com.gosimple.jpgagent.json.JsonUtil;
+
+import java.util.Map;
+
+/**
+ * Applies the commands sent to agents with NOTIFY on the jpgagent_control channel, so a whole fleet of agents can be
+ * controlled with one statement. The payload is a JSON object such as:
+ * <pre>
+ *     {"command": "throttle", "max_running_jobs": 2, "agent": "host1"}
+ * </pre>
+ * agent is the jagstation of the agent to apply the command on, and may be left out or set to * for all agents.
+ * The commands are pause, resume, drain, throttle (with max_running_jobs, 0 for no limit) and kill (with job_id or
+ * job_log_id, and step_id to only kill one step).
+ */
+public class ControlChannel
+{
+    public static final String CHANNEL = "jpgagent_control";
+
+    /**
+     * Applies the command, if it targets this agent. Invalid commands are logged and ignored.
+     * @param payload the JSON payload of the notification
+     * @param host_name the jagstation of this agent
+     * @return true if the command was applied
+     */
+    public static boolean process(final String payload, final String host_name)
+    {
+        try
+        {
+            final Map<String, Object> command = JsonUtil.parseObject(payload);
+            final String agent = getString(command, "agent");
+            if (agent != null && !"*".equals(agent) && !agent.equals(host_name))
+            {
+                Config.INSTANCE.logger.debug("Ignoring control command for agent: {}.", agent);
+                return false;
+            }
+            final String name = getString(command, "command");
+            if (name == null)
+            {
+                throw new IllegalArgumentException("No command given.");
+            }
+            Config.INSTANCE.logger.info("Control command received: {}", payload);
+            switch (name)
+            {
+                case "pause":
+                    JobRegistry.INSTANCE.setPaused(true);
+                    return true;
+                case "resume":
+                    JobRegistry.INSTANCE.setPaused(false);
+                    return true;
+                case "drain":
+                    JobRegistry.INSTANCE.drain();
+                    return true;
+                case "throttle":
+                {
+                    final Integer max_running_jobs = getInteger(command, "max_running_jobs");
+                    if (max_running_jobs == null)
+                    {
+                        throw new IllegalArgumentException("throttle needs max_running_jobs.");
+                    }
+                    JobRegistry.INSTANCE.setMaxRunningJobs(max_running_jobs);
+                    return true;
+                }
+                case "kill":
+                    return kill(command);
+                default:
+                    throw new IllegalArgumentException("Unknown command: " + name + ".");
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            Config.INSTANCE.logger.warn("Ignoring invalid control command: {}. Message: {}", payload, e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean kill(final Map<String, Object> command)
+    {
+        Integer job_id = getInteger(command, "job_id");
+        final Integer job_log_id = getInteger(command, "job_log_id");
+        final Integer step_id = getInteger(command, "step_id");
+        if (job_id == null && job_log_id == null)
+        {
+            throw new IllegalArgumentException("kill needs job_id or job_log_id.");
+        }
+        if (job_log_id != null)
+        {
+            job_id = null;
+            for (JobRegistry.RegisteredJob registered_job : JobRegistry.INSTANCE.getJobs())
+            {
+                if (registered_job.getJob().getJobLogId() == job_log_id)
+                {
+                    job_id = registered_job.getJob().getJobId();
+                }
+            }
+        }
+        final boolean killed;
+        if (job_id == null)
+        {
+            killed = false;
+        }
+        else if (step_id != null)
+        {
+            killed = JobRegistry.INSTANCE.killStep(job_id, step_id);
+        }
+        else
+        {
+            killed = JobRegistry.INSTANCE.kill(job_id);
+        }
+        if (killed)
+        {
+            Config.INSTANCE.logger.info("Killing job_id: {}{}.", job_id, step_id != null ? " step_id: " + step_id : "");
+        }
+        else
+        {
+            Config.INSTANCE.logger.info("Kill request was submitted, but the job or step was not running.");
+        }
+        return killed;
+    }
+
+    private static String getString(final Map<String, Object> command, final String key)
+    {
+        final Object value = command.get(key);
+        if (value != null && !(value instanceof String))
+        {
+            throw new IllegalArgumentException(key + " must be a string.");
+        }
+        return (String) value;
+    }
+
+    private static Integer getInteger(final Map<String, Object> command, final String key)
+    {
+        final Object value = command.get(key);
+        if (value == null)
+        {
+            return null;
+        }
+        if (!(value instanceof Long) || (Long) value < Integer.MIN_VALUE || (Long) value > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException(key + " must be a whole number.");
+        }
+        return ((Long) value).intValue();
+    }
+}
@@ -24,12 +24,23 @@ package com.gosimple.jpgagent.database;
 
 
 import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.jfr.ConnectionAcquireEvent;
+import com.gosimple.jpgagent.trace.Span;
+import com.gosimple.jpgagent.trace.Tracer;
 import org.postgresql.ds.PGSimpleDataSource;
+import org.postgresql.util.HostSpec;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public enum Database
 {
@@ -39,6 +50,8 @@ public enum Database
     private int pid;
     private Connection main_connection;
     private Connection listener_connection;
+    private final AtomicInteger open_connection_count = new AtomicInteger();
+    private final AtomicLong opened_connection_count = new AtomicLong();
 
     Database()
     {
@@ -166,7 +179,31 @@ public enum Database
         data_source.setDatabaseName(database);
         data_source.setServerNames(new String[]{host_name});
 
-        return data_source.getConnection();
+        return acquire(null, () -> data_source.getConnection());
+    }
+
+    /**
+     * Returns a connection to the specified database on a host listening on a specific port, with autocommit on.
+     *
+     * @param host_name
+     * @param port
+     * @param database
+     * @return
+     * @throws SQLException
+     */
+    public synchronized Connection getConnection(final String host_name, final int port, final String database) throws SQLException
+    {
+        data_source.setDatabaseName(database);
+        data_source.setServerNames(new String[]{host_name});
+        data_source.setPortNumbers(new int[]{port});
+        try
+        {
+            return acquire(null, () -> data_source.getConnection());
+        }
+        finally
+        {
+            data_source.setPortNumbers(new int[]{Config.INSTANCE.db_port});
+        }
     }
 
     /**
@@ -184,6 +221,191 @@ public enum Database
         data_source.setDatabaseName(database);
         data_source.setServerNames(new String[]{host_name});
 
-        return data_source.getConnection(user, password);
+        return acquire(user, () -> data_source.getConnection(user, password));
+    }
+
+    /**
+     * Returns if any hot standby hosts have been configured for read only job steps.
+     *
+     * @return
+     */
+    public boolean hasReplicaHosts()
+    {
+        return Config.INSTANCE.db_replica_hosts != null && !Config.INSTANCE.db_replica_hosts.trim().isEmpty();
+    }
+
+    /**
+     * Returns a connection to one of the configured hot standby hosts with autocommit on.
+     * Standbys are load balanced, and the primary host is only used if no standby is available.
+     *
+     * @param database
+     * @param user
+     * @param password
+     * @return
+     * @throws SQLException
+     */
+    public synchronized Connection getReadOnlyConnection(final String database, final String user, final String password) throws SQLException
+    {
+        final List<String> host_names = new ArrayList<>();
+        final List<Integer> ports = new ArrayList<>();
+        for (HostSpec replica_host : parseHosts(Config.INSTANCE.db_replica_hosts, Config.INSTANCE.db_port))
+        {
+            host_names.add(replica_host.getHost());
+            ports.add(replica_host.getPort());
+        }
+        // Fall back to the primary if no standby can be connected to.
+        host_names.add(Config.INSTANCE.db_host);
+        ports.add(Config.INSTANCE.db_port);
+
+        final int[] port_numbers = new int[ports.size()];
+        for (int i = 0; i < port_numbers.length; i++)
+        {
+            port_numbers[i] = ports.get(i);
+        }
+
+        data_source.setDatabaseName(database);
+        data_source.setServerNames(host_names.toArray(new String[0]));
+        data_source.setPortNumbers(port_numbers);
+        data_source.setTargetServerType("preferSecondary");
+        data_source.setLoadBalanceHosts(true);
+        try
+        {
+            return acquire(user, () -> data_source.getConnection(user, password));
+        }
+        finally
+        {
+            data_source.setPortNumbers(new int[]{Config.INSTANCE.db_port});
+            data_source.setTargetServerType("any");
+            data_source.setLoadBalanceHosts(false);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of hosts, each optionally followed by a port (host[:port]).
+     *
+     * @param hosts the hosts to parse
+     * @param default_port the port of hosts which do not have one
+     * @return the hosts, in the order given
+     */
+    public static List<HostSpec> parseHosts(final String hosts, final int default_port)
+    {
+        final List<HostSpec> host_specs = new ArrayList<>();
+        for (String host : hosts.split(","))
+        {
+            host = host.trim();
+            if (host.isEmpty())
+            {
+                continue;
+            }
+            final int port_index = host.lastIndexOf(':');
+            if (port_index > 0 && host.substring(port_index + 1).matches("[0-9]+"))
+            {
+                host_specs.add(new HostSpec(host.substring(0, port_index), Integer.parseInt(host.substring(port_index + 1))));
+            }
+            else
+            {
+                host_specs.add(new HostSpec(host, default_port));
+            }
+        }
+        return host_specs;
+    }
+
+    /**
+     * @return the number of connections opened by jpgAgent which are still open
+     */
+    public int getOpenConnectionCount()
+    {
+        return open_connection_count.get();
+    }
+
+    /**
+     * @return the number of connections opened by jpgAgent
+     */
+    public long getOpenedConnectionCount()
+    {
+        return opened_connection_count.get();
+    }
+
+    private interface ConnectionSource
+    {
+        Connection getConnection() throws SQLException;
+    }
+
+    /**
+     * Opens a connection from the data source as currently configured, recording how long it took.
+     *
+     * @param user the user connecting, or null for the jpgAgent user
+     * @param connection_source opens the connection
+     * @return
+     * @throws SQLException
+     */
+    private Connection acquire(final String user, final ConnectionSource connection_source) throws SQLException
+    {
+        final ConnectionAcquireEvent connection_event = new ConnectionAcquireEvent();
+        connection_event.begin();
+        final Span connect_span = Tracer.INSTANCE.startSpan("connect");
+        try
+        {
+            final Connection connection = connection_source.getConnection();
+            connection_event.success = true;
+            return track(connection);
+        }
+        catch (SQLException e)
+        {
+            connect_span.setError(e.getMessage());
+            throw e;
+        }
+        finally
+        {
+            connect_span.setAttribute("db.name", data_source.getDatabaseName())
+                    .setAttribute("db.user", user != null ? user : Config.INSTANCE.db_user)
+                    .end();
+            connection_event.end();
+            if (connection_event.shouldCommit())
+            {
+                connection_event.host = String.join(",", data_source.getServerNames());
+                connection_event.database = data_source.getDatabaseName();
+                connection_event.user = user != null ? user : Config.INSTANCE.db_user;
+                connection_event.commit();
+            }
+        }
+    }
+
+    /**
+     * Wraps the connection so it is counted as open until it is closed.
+     * unwrap on the returned connection still returns the driver connection.
+     *
+     * @param connection
+     * @return
+     */
+    private Connection track(final Connection connection)
+    {
+        opened_connection_count.incrementAndGet();
+        open_connection_count.incrementAndGet();
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) ->
+        {
+            // Compared as the proxy, so collections of connections keep working.
+            if ("equals".equals(method.getName()) && args != null && args.length == 1)
+            {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(method.getName()) && args == null)
+            {
+                return System.identityHashCode(proxy);
+            }
+            if ("close".equals(method.getName()) && closed.compareAndSet(false, true))
+            {
+                open_connection_count.decrementAndGet();
+            }
+            try
+            {
+                return method.invoke(connection, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        });
     }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.email;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a burst of notifications from turning into a burst of emails.
+ * Notifications are handled per recipient. The first one is sent right away, and any that follow within
+ * the digest window are held and sent together as one digest once the window has passed. A recipient is
+ * also never sent more than the rate limit of emails per hour, anything over it is held for the next digest.
+ */
+public class EmailCoalescer implements EmailSink, Runnable
+{
+    private static final long RATE_WINDOW = 3600000;
+    private static final long FLUSH_INTERVAL = 1000;
+    // Keeps a digest to a readable size, and the memory held by a flood of notifications bounded.
+    private static final int MAX_DIGEST_SIZE = 100;
+    private static EmailCoalescer instance;
+
+    private final EmailSink sink;
+    private final long digest_window;
+    private final int rate_limit;
+    private final Map<String, Recipient> recipient_map = new HashMap<>();
+
+    private static class Recipient
+    {
+        private final List<EmailMessage> pending = new ArrayList<>();
+        private final Deque<Long> sent_times = new ArrayDeque<>();
+        private int dropped = 0;
+    }
+
+    /**
+     * @return the email sink configured for jpgAgent, which coalesces notifications if a digest window or rate limit is configured
+     */
+    public static synchronized EmailSink getSink()
+    {
+        if (Config.INSTANCE.email_digest_window <= 0 && Config.INSTANCE.email_rate_limit <= 0)
+        {
+            return EmailDispatcher.getInstance();
+        }
+        if (instance == null)
+        {
+            instance = new EmailCoalescer(EmailDispatcher.getInstance(), Config.INSTANCE.email_digest_window, Config.INSTANCE.email_rate_limit);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a coalescer, which does not send held notifications until it is started or flushed.
+     * @param sink where the emails are sent
+     * @param digest_window time (ms) notifications to a recipient are held for after an email is sent to them, 0 to not hold them
+     * @param rate_limit maximum number of emails sent to a recipient per hour, 0 for no limit
+     */
+    public EmailCoalescer(final EmailSink sink, final long digest_window, final int rate_limit)
+    {
+        this.sink = sink;
+        this.digest_window = Math.max(0, digest_window);
+        this.rate_limit = Math.max(0, rate_limit);
+    }
+
+    /**
+     * Starts sending held notifications once they are due.
+     */
+    public void start()
+    {
+        ExecutionUtil.INSTANCE.scheduleTask(this, FLUSH_INTERVAL);
+    }
+
+    /**
+     * Sends the notification to each recipient, or holds it for a digest.
+     * @param email_message the notification
+     * @return true, held notifications are only dropped once a digest is full
+     */
+    @Override
+    public synchronized boolean send(final EmailMessage email_message)
+    {
+        final long now = System.currentTimeMillis();
+        for (String to : email_message.getTo())
+        {
+            final Recipient recipient = recipient_map.computeIfAbsent(to, k -> new Recipient());
+            if (recipient.pending.isEmpty() && canSend(recipient, now))
+            {
+                deliver(recipient, new EmailMessage(new String[]{to}, email_message.getFrom(), email_message.getSubject(), email_message.getBody(), email_message.getCreatedTime()), now);
+            }
+            else if (recipient.pending.size() < MAX_DIGEST_SIZE)
+            {
+                recipient.pending.add(email_message);
+            }
+            else
+            {
+                recipient.dropped++;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        flush();
+    }
+
+    /**
+     * Sends a digest to each recipient whose held notifications are due.
+     */
+    public synchronized void flush()
+    {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Recipient>> iterator = recipient_map.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry<String, Recipient> entry = iterator.next();
+            final Recipient recipient = entry.getValue();
+            if (!recipient.pending.isEmpty() && canSend(recipient, now))
+            {
+                deliver(recipient, buildDigest(entry.getKey(), recipient), now);
+                recipient.pending.clear();
+                recipient.dropped = 0;
+            }
+            else if (recipient.pending.isEmpty() && !canHold(recipient, now))
+            {
+                // Nothing left to hold against the recipient.
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of notifications being held
+     */
+    public synchronized int getPendingCount()
+    {
+        int pending_count = 0;
+        for (Recipient recipient : recipient_map.values())
+        {
+            pending_count += recipient.pending.size();
+        }
+        return pending_count;
+    }
+
+    private boolean canSend(final Recipient recipient, final long now)
+    {
+        while (!recipient.sent_times.isEmpty() && recipient.sent_times.peekFirst() <= now - RATE_WINDOW)
+        {
+            recipient.sent_times.pollFirst();
+        }
+        if (rate_limit > 0 && recipient.sent_times.size() >= rate_limit)
+        {
+            return false;
+        }
+        return recipient.sent_times.isEmpty() || recipient.sent_times.peekLast() <= now - digest_window;
+    }
+
+    private boolean canHold(final Recipient recipient, final long now)
+    {
+        return !recipient.sent_times.isEmpty() && recipient.sent_times.peekLast() > now - Math.max(digest_window, rate_limit > 0 ? RATE_WINDOW : 0);
+    }
+
+    private void deliver(final Recipient recipient, final EmailMessage email_message, final long now)
+    {
+        if (rate_limit > 0 || digest_window > 0)
+        {
+            recipient.sent_times.addLast(now);
+            // Only as many send times as the rate limit are ever needed.
+            while (recipient.sent_times.size() > Math.max(1, rate_limit))
+            {
+                recipient.sent_times.pollFirst();
+            }
+        }
+        sink.send(email_message);
+    }
+
+    private static EmailMessage buildDigest(final String to, final Recipient recipient)
+    {
+        final EmailMessage first = recipient.pending.get(0);
+        if (recipient.pending.size() == 1 && recipient.dropped == 0)
+        {
+            return new EmailMessage(new String[]{to}, first.getFrom(), first.getSubject(), first.getBody(), first.getCreatedTime());
+        }
+        final int count = recipient.pending.size() + recipient.dropped;
+        final StringBuilder body = new StringBuilder();
+        body.append("<p>jpgAgent held ").append(count).append(" notifications for you:</p>");
+        for (EmailMessage email_message : recipient.pending)
+        {
+            // Subjects are plain text and carry job names, the bodies are already html.
+            body.append("<h3>").append(NotificationTemplate.escapeHtml(email_message.getSubject())).append("</h3>");
+            body.append(email_message.getBody());
+            body.append("<hr>");
+        }
+        if (recipient.dropped > 0)
+        {
+            body.append("<p>").append(recipient.dropped).append(" more notifications were left out of this digest.</p>");
+        }
+        return new EmailMessage(new String[]{to}, first.getFrom(), "jpgAgent digest: " + count + " notifications", body.toString(), first.getCreatedTime());
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.email;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.jfr.EmailSendEvent;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends email in the background, so a slow or unreachable SMTP server never holds up a job.
+ * Messages are queued and sent in order by a single thread over one SMTP connection, which is kept open
+ * between messages and closed once it has been idle for a while. A message which fails to send is set aside and
+ * retried with an increasing delay, so the messages queued behind it are not held up, and dropped once it runs out
+ * of attempts. A message rejected for invalid recipients is not retried. If the queue is full, new messages
+ * are dropped rather than waited on.
+ */
+public class EmailDispatcher implements EmailSink, Runnable
+{
+    private static final long IDLE_TIMEOUT = 60000;
+    private static final long RETRY_DELAY = 1000;
+    private static EmailDispatcher instance;
+
+    private final Session session;
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final int max_attempts;
+    private final BlockingQueue<EmailMessage> queue;
+    // Messages waiting out the delay before their next attempt, taken only by the thread sending the messages.
+    private final DelayQueue<Retry> retry_queue = new DelayQueue<>();
+    private Transport transport;
+    private final AtomicLong sent_count = new AtomicLong();
+    private final AtomicLong failed_count = new AtomicLong();
+
+    /**
+     * A message waiting to be sent again.
+     */
+    private static class Retry implements Delayed
+    {
+        private final EmailMessage email_message;
+        private final MimeMessage message;
+        private final int attempt;
+        private final long due_time;
+
+        private Retry(final EmailMessage email_message, final MimeMessage message, final int attempt, final long delay)
+        {
+            this.email_message = email_message;
+            this.message = message;
+            this.attempt = attempt;
+            this.due_time = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit)
+        {
+            return unit.convert(due_time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other)
+        {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * @return the dispatcher configured for jpgAgent, started on first use
+     */
+    public static synchronized EmailDispatcher getInstance()
+    {
+        if (instance == null)
+        {
+            final int port = Config.INSTANCE.smtp_port != null ? Integer.parseInt(Config.INSTANCE.smtp_port) : (Config.INSTANCE.smtp_ssl ? 465 : 25);
+            instance = new EmailDispatcher(Config.INSTANCE.smtp_host, port, Config.INSTANCE.smtp_ssl, Config.INSTANCE.smtp_user, Config.INSTANCE.smtp_password,
+                    Config.INSTANCE.email_queue_size, Config.INSTANCE.email_max_attempts);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a dispatcher, which does not send anything until it is started.
+     * @param host the SMTP server
+     * @param port the SMTP server port
+     * @param ssl true to connect to the server over SSL
+     * @param user the user to authenticate as, or null to not authenticate
+     * @param password the password to authenticate with
+     * @param queue_size the maximum number of messages waiting to be sent
+     * @param max_attempts the number of times to try sending a message
+     */
+    public EmailDispatcher(final String host, final int port, final boolean ssl, final String user, final String password, final int queue_size, final int max_attempts)
+    {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.max_attempts = Math.max(1, max_attempts);
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queue_size));
+
+        // Kept to the session rather than set on the system properties, which are shared with everything else in the JVM.
+        final Properties properties = new Properties();
+        properties.put("mail.smtp.host", host);
+        properties.put("mail.smtp.port", Integer.toString(port));
+        properties.put("mail.smtp.auth", Boolean.toString(user != null));
+        properties.put("mail.smtp.connectiontimeout", "30000");
+        properties.put("mail.smtp.timeout", "30000");
+        // Valid recipients still get the message when others are rejected.
+        properties.put("mail.smtp.sendpartial", "true");
+        if (ssl)
+        {
+            properties.put("mail.smtp.socketFactory.port", Integer.toString(port));
+            properties.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
+        }
+        this.session = Session.getInstance(properties);
+    }
+
+    /**
+     * Starts the thread sending the queued messages.
+     */
+    public void start()
+    {
+        final Thread thread = new Thread(this, "jpgagent-email");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a message to be sent.
+     * @param email_message the message to send
+     * @return false if the queue is full and the message was dropped
+     */
+    @Override
+    public boolean send(final EmailMessage email_message)
+    {
+        if (!queue.offer(email_message))
+        {
+            failed_count.incrementAndGet();
+            Config.INSTANCE.logger.error("Email queue is full, dropping email: {}", email_message.getSubject());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of messages waiting to be sent, including those waiting to be retried
+     */
+    public int getQueueSize()
+    {
+        return queue.size() + retry_queue.size();
+    }
+
+    /**
+     * @return the number of messages sent
+     */
+    public long getSentCount()
+    {
+        return sent_count.get();
+    }
+
+    /**
+     * @return the number of messages dropped, either because the queue was full or they could not be sent
+     */
+    public long getFailedCount()
+    {
+        return failed_count.get();
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                final Retry retry = retry_queue.poll();
+                if (retry != null)
+                {
+                    deliver(retry.email_message, retry.message, retry.attempt);
+                    continue;
+                }
+                // Wake up in time for the next retry.
+                final Retry next_retry = retry_queue.peek();
+                final long timeout = next_retry == null ? IDLE_TIMEOUT : Math.min(IDLE_TIMEOUT, Math.max(0, next_retry.getDelay(TimeUnit.MILLISECONDS)));
+                final EmailMessage email_message = queue.poll(timeout, TimeUnit.MILLISECONDS);
+                if (email_message == null)
+                {
+                    if (next_retry == null)
+                    {
+                        closeTransport();
+                    }
+                    continue;
+                }
+                final MimeMessage message;
+                try
+                {
+                    message = buildMessage(email_message);
+                }
+                catch (MessagingException e)
+                {
+                    failed_count.incrementAndGet();
+                    Config.INSTANCE.logger.error("Unable to build email: {}. Message: {}", email_message.getSubject(), e.getMessage());
+                    continue;
+                }
+                deliver(email_message, message, 1);
+            }
+            catch (InterruptedException e)
+            {
+                closeTransport();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt at sending the message, setting it aside to be retried later if it fails and has attempts left.
+     * @param email_message the message to send
+     * @param message the message built from it
+     * @param attempt the number of this attempt, starting at 1
+     */
+    private void deliver(final EmailMessage email_message, final MimeMessage message, final int attempt)
+    {
+        final EmailSendEvent email_event = new EmailSendEvent();
+        email_event.begin();
+        try
+        {
+            if (transport == null || !transport.isConnected())
+            {
+                transport = session.getTransport("smtp");
+                transport.connect(host, port, user, password);
+            }
+            transport.sendMessage(message, message.getAllRecipients());
+            sent_count.incrementAndGet();
+            email_event.success = true;
+            MetricsRegistry.INSTANCE.histogram("email_lag_seconds", "Time from a notification being raised to its email being sent.").observeSince(email_message.getCreatedTime());
+        }
+        catch (MessagingException e)
+        {
+            // The connection may have been dropped by the server, start over with a new one.
+            closeTransport();
+            if (isRejected(e))
+            {
+                failed_count.incrementAndGet();
+                Config.INSTANCE.logger.error("Email {} was rejected for invalid recipients {}, it will not be retried. Message: {}",
+                        email_message.getSubject(), Arrays.toString(((SendFailedException) e).getInvalidAddresses()), e.getMessage());
+            }
+            else if (attempt >= max_attempts)
+            {
+                failed_count.incrementAndGet();
+                Config.INSTANCE.logger.error("An error occurred when sending email. Please check your configuration.");
+                Config.INSTANCE.logger.error(e.getMessage());
+            }
+            else
+            {
+                Config.INSTANCE.logger.warn("Unable to send email, attempt {} of {}. Message: {}", attempt, max_attempts, e.getMessage());
+                retry_queue.add(new Retry(email_message, message, attempt + 1, RETRY_DELAY << (attempt - 1)));
+            }
+        }
+        finally
+        {
+            email_event.end();
+            if (email_event.shouldCommit())
+            {
+                email_event.subject = email_message.getSubject();
+                email_event.recipients = email_message.getTo().length;
+                email_event.attempts = attempt;
+                email_event.commit();
+            }
+        }
+    }
+
+    /**
+     * @param e the error sending a message
+     * @return true if the server rejected recipients, which sending again will not change
+     */
+    private static boolean isRejected(final MessagingException e)
+    {
+        if (!(e instanceof SendFailedException))
+        {
+            return false;
+        }
+        final Object[] invalid_addresses = ((SendFailedException) e).getInvalidAddresses();
+        return invalid_addresses != null && invalid_addresses.length > 0;
+    }
+
+    private MimeMessage buildMessage(final EmailMessage email_message) throws MessagingException
+    {
+        final MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(email_message.getFrom()));
+        for (String to : email_message.getTo())
+        {
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+        }
+        message.setSubject(email_message.getSubject());
+        message.setContent(email_message.getBody(), "text/html; charset=utf-8");
+        return message;
+    }
+
+    private void closeTransport()
+    {
+        if (transport != null)
+        {
+            try
+            {
+                transport.close();
+            }
+            catch (MessagingException e)
+            {
+                Config.INSTANCE.logger.debug("Error closing SMTP connection. Message: {}", e.getMessage());
+            }
+            transport = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.email;
+
+/**
+ * An email waiting to be sent.
+ */
+public class EmailMessage
+{
+    private final String[] to;
+    private final String from;
+    private final String subject;
+    private final String body;
+    private final long created_time;
+
+    public EmailMessage(final String[] to, final String from, final String subject, final String body)
+    {
+        this(to, from, subject, body, System.currentTimeMillis());
+    }
+
+    /**
+     * @param created_time when the notification was raised, in ms since the epoch
+     */
+    public EmailMessage(final String[] to, final String from, final String subject, final String body, final long created_time)
+    {
+        this.to = to;
+        this.from = from;
+        this.subject = subject;
+        this.body = body;
+        this.created_time = created_time;
+    }
+
+    public String[] getTo()
+    {
+        return to;
+    }
+
+    public String getFrom()
+    {
+        return from;
+    }
+
+    public String getSubject()
+    {
+        return subject;
+    }
+
+    public String getBody()
+    {
+        return body;
+    }
+
+    public long getCreatedTime()
+    {
+        return created_time;
+    }
+}
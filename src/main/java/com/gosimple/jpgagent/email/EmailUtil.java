@@ -24,79 +24,21 @@ package com.gosimple.jpgagent.email;
 
 import com.gosimple.jpgagent.Config;
 
-import jakarta.mail.Authenticator;
-import jakarta.mail.Message;
-import jakarta.mail.PasswordAuthentication;
-import jakarta.mail.Session;
-import jakarta.mail.Transport;
-import jakarta.mail.internet.InternetAddress;
-import jakarta.mail.internet.MimeMessage;
-import java.util.Properties;
-
 public class EmailUtil
 {
     public static void sendEmailFromNoReply(String[] to, String subject, String body) {
         sendEmail(to, Config.INSTANCE.smtp_email, subject, body);
     }
 
+    /**
+     * Queues the email to be sent in the background by the {@link EmailDispatcher}, through the {@link EmailCoalescer} if configured.
+     */
     private static void sendEmail(String[] to, String from, String subject, String body) {
-        try
+        if (null == Config.INSTANCE.smtp_host)
         {
-            final Session session;
-            Properties emailProp = System.getProperties();
-            emailProp.put("mail.smtp.host", Config.INSTANCE.smtp_host);
-            emailProp.put("mail.smtp.port", Config.INSTANCE.smtp_port);
-
-            if (Config.INSTANCE.smtp_ssl)
-            {
-                emailProp.put("mail.smtp.socketFactory.port", Config.INSTANCE.smtp_port);
-                emailProp.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-            }
-            else
-            {
-                emailProp.put("mail.smtp.port", Config.INSTANCE.smtp_port);
-            }
-
-            if (null != Config.INSTANCE.smtp_user)
-            {
-                emailProp.put("mail.smtp.auth", "true");
-                Authenticator authenticator = new Authenticator()
-                {
-                    @Override
-                    protected PasswordAuthentication getPasswordAuthentication()
-                    {
-                        return new PasswordAuthentication(Config.INSTANCE.smtp_user, Config.INSTANCE.smtp_password);
-                    }
-                };
-                session = Session.getDefaultInstance(emailProp, authenticator);
-            }
-            else
-            {
-                emailProp.put("mail.smtp.auth", "false");
-                session = Session.getDefaultInstance(emailProp);
-            }
-                MimeMessage message = new MimeMessage(session);
-                message.setFrom(new InternetAddress(from));
-                InternetAddress[] toAddress = new InternetAddress[to.length];
-
-                // To get the array of addresses
-                for (int i = 0; i < to.length; i++)
-                {
-                    toAddress[i] = new InternetAddress(to[i]);
-                }
-
-                for (InternetAddress toAddres : toAddress)
-                {
-                    message.addRecipient(Message.RecipientType.TO, toAddres);
-                }
-
-                message.setSubject(subject);
-                message.setContent(body, "text/html; charset=utf-8");
-                Transport.send(message);
-        }
-        catch (Exception e) {
-            Config.INSTANCE.logger.error("An error occurred when sending email. Please check your configuration.");
-            Config.INSTANCE.logger.error(e.getMessage());
+            Config.INSTANCE.logger.error("An email could not be sent because no smtp host is configured.");
+            return;
         }
+        EmailCoalescer.getSink().send(new EmailMessage(to, from, subject, body));
     }
-}
+}
\ No newline at end of file
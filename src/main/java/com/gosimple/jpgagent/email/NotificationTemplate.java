@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.email;
+
+import com.gosimple.jpgagent.Config;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An email subject or body with ~token~ placeholders, split into its literal text and tokens once,
+ * so rendering it is a single pass over the parts. Templates are cached by their text, as the same
+ * annotations are compiled every time their job runs.
+ * Anything between two ~ which is not a known token is left as it is.
+ */
+public class NotificationTemplate
+{
+    private static final int MAX_CACHED_TEMPLATES = 1024;
+    private static final int OUTPUT_TAIL_LINES = 20;
+    private static final DateTimeFormatter start_time_formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final Map<String, NotificationTemplate> template_cache = new ConcurrentHashMap<>();
+    private static final Set<String> known_tokens = new HashSet<>(Arrays.asList(
+            Config.INSTANCE.status_token,
+            Config.INSTANCE.job_name_token,
+            Config.INSTANCE.job_step_name_token,
+            Config.INSTANCE.duration_token,
+            Config.INSTANCE.start_time_token,
+            Config.INSTANCE.exit_code_token,
+            Config.INSTANCE.output_tail_token,
+            Config.INSTANCE.agent_host_token));
+
+    // Literal text, or a token when the matching entry in is_token is set.
+    private final String[] parts;
+    private final boolean[] is_token;
+    private final int literal_length;
+
+    private NotificationTemplate(final List<String> parts, final List<Boolean> is_token)
+    {
+        this.parts = parts.toArray(new String[0]);
+        this.is_token = new boolean[parts.size()];
+        int literal_length = 0;
+        for (int i = 0; i < this.parts.length; i++)
+        {
+            this.is_token[i] = is_token.get(i);
+            if (!this.is_token[i])
+            {
+                literal_length += this.parts[i].length();
+            }
+        }
+        this.literal_length = literal_length;
+    }
+
+    /**
+     * @param text the template text, may be null
+     * @return the compiled template
+     */
+    public static NotificationTemplate compile(final String text)
+    {
+        final String template_text = text == null ? "" : text;
+        NotificationTemplate notification_template = template_cache.get(template_text);
+        if (notification_template == null)
+        {
+            notification_template = parse(template_text);
+            if (template_cache.size() >= MAX_CACHED_TEMPLATES)
+            {
+                template_cache.clear();
+            }
+            template_cache.put(template_text, notification_template);
+        }
+        return notification_template;
+    }
+
+    private static NotificationTemplate parse(final String text)
+    {
+        final List<String> parts = new ArrayList<>();
+        final List<Boolean> is_token = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < text.length())
+        {
+            final int token_start = text.indexOf('~', position);
+            final int token_end = token_start == -1 ? -1 : text.indexOf('~', token_start + 1);
+            if (token_end == -1)
+            {
+                literal.append(text, position, text.length());
+                break;
+            }
+            final String token = text.substring(token_start, token_end + 1);
+            if (known_tokens.contains(token))
+            {
+                literal.append(text, position, token_start);
+                if (literal.length() > 0)
+                {
+                    parts.add(literal.toString());
+                    is_token.add(false);
+                    literal.setLength(0);
+                }
+                parts.add(token);
+                is_token.add(true);
+                position = token_end + 1;
+            }
+            else
+            {
+                // The closing ~ may open the next token.
+                literal.append(text, position, token_end);
+                position = token_end;
+            }
+        }
+        if (literal.length() > 0)
+        {
+            parts.add(literal.toString());
+            is_token.add(false);
+        }
+        return new NotificationTemplate(parts, is_token);
+    }
+
+    /**
+     * @param values the value of each token, keyed by the token including the ~, missing tokens render as nothing
+     * @return the rendered text
+     */
+    public String render(final Map<String, String> values)
+    {
+        final StringBuilder string_builder = new StringBuilder(literal_length + 64);
+        for (int i = 0; i < parts.length; i++)
+        {
+            if (is_token[i])
+            {
+                final String value = values.get(parts[i]);
+                if (value != null)
+                {
+                    string_builder.append(value);
+                }
+            }
+            else
+            {
+                string_builder.append(parts[i]);
+            }
+        }
+        return string_builder.toString();
+    }
+
+    /**
+     * @param duration the duration in ms
+     * @return the duration for the ~duration~ token
+     */
+    public static String formatDuration(final long duration)
+    {
+        return String.format("%d.%03d s", duration / 1000, duration % 1000);
+    }
+
+    /**
+     * @param start_time the start time in ms since the epoch
+     * @return the start time for the ~start_time~ token
+     */
+    public static String formatStartTime(final long start_time)
+    {
+        return start_time_formatter.format(Instant.ofEpochMilli(start_time));
+    }
+
+    /**
+     * @param output the output of a step
+     * @return the last lines of the output for the ~output_tail~ token, escaped for html with line breaks kept
+     */
+    public static String formatOutputTail(final String output)
+    {
+        if (output == null || output.isEmpty())
+        {
+            return "";
+        }
+        // Ignore the line break ending the output.
+        final int end = output.endsWith("\n") ? output.length() - 1 : output.length();
+        int start = end;
+        for (int lines = 0; lines < OUTPUT_TAIL_LINES && start != -1; lines++)
+        {
+            start = output.lastIndexOf('\n', start - 1);
+        }
+        start = start == -1 ? 0 : start + 1;
+        return escapeHtml(output.substring(start, end)).replace("\r", "").replace("\n", "<br>");
+    }
+
+    /**
+     * @param text plain text, such as a subject or job name
+     * @return the text escaped for html
+     */
+    public static String escapeHtml(final String text)
+    {
+        final StringBuilder string_builder = new StringBuilder(text.length() + 16);
+        for (int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            switch (c)
+            {
+                case '<':
+                    string_builder.append("&lt;");
+                    break;
+                case '>':
+                    string_builder.append("&gt;");
+                    break;
+                case '&':
+                    string_builder.append("&amp;");
+                    break;
+                case '"':
+                    string_builder.append("&quot;");
+                    break;
+                default:
+                    string_builder.append(c);
+            }
+        }
+        return string_builder.toString();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A run of a job step.
+ */
+@Name("com.gosimple.jpgagent.StepRun")
+@Label("Step Run")
+@Category("jpgAgent")
+@Description("A run of a job step.")
+public class StepRunEvent extends Event
+{
+    @Label("Job Id")
+    @Description("The pgAgent job id.")
+    public int job_id;
+
+    @Label("Step Id")
+    @Description("The pgAgent job step id.")
+    public int step_id;
+
+    @Label("Step Name")
+    public String step_name;
+
+    @Label("Step Type")
+    public String step_type;
+
+    @Label("Database")
+    @Description("The database the step ran against, empty for batch steps.")
+    public String database;
+
+    @Label("Status")
+    @Description("The status the step finished with.")
+    public String status;
+}
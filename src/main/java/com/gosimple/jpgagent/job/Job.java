@@ -26,17 +26,29 @@ import com.gosimple.jpgagent.*;
 import com.gosimple.jpgagent.annotation.AnnotationUtil;
 import com.gosimple.jpgagent.database.Database;
 import com.gosimple.jpgagent.email.EmailUtil;
+import com.gosimple.jpgagent.email.NotificationTemplate;
+import com.gosimple.jpgagent.jfr.CancelEvent;
+import com.gosimple.jpgagent.jfr.JobRunEvent;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
 import com.gosimple.jpgagent.job.step.*;
 import com.gosimple.jpgagent.thread.CancellableRunnable;
 import com.gosimple.jpgagent.thread.ExecutionUtil;
+import com.gosimple.jpgagent.trace.Span;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Job implements CancellableRunnable
 {
@@ -44,32 +56,66 @@ public class Job implements CancellableRunnable
     private int job_log_id;
     private String job_name;
     private String job_comment;
-    private JobStatus job_status;
+    private volatile JobStatus job_status;
     private List<JobStep> job_step_list;
-    private final Map<JobStep, Future> future_map = new HashMap<>();
-    private Long start_time;
+    private final Map<JobStep, Future> future_map = new ConcurrentHashMap<>();
+    private final Map<String, Connection> shared_connection_map = new HashMap<>();
+    // Counted down once the thread running each step has left it, which may be well after its future was cancelled.
+    private final List<CountDownLatch> step_exit_list = new ArrayList<>();
+    private volatile Long start_time;
+    // Time (ms) from the job being due to it being claimed, as measured by the database.
+    private Long claim_lag;
+    // Time (ms) the job was claimed, as measured by jpgAgent.
+    private Long claim_time;
+    // Time (ms) from the job being claimed to it being ready to run.
+    private Long preparation_lag;
+    private final AtomicBoolean first_step_started = new AtomicBoolean(false);
+    // Set by whichever comes first of the job starting to run or being cancelled while waiting to run.
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    // Counted down once the job has finished tearing down, which may be well after its future was cancelled.
+    private final CountDownLatch exited = new CountDownLatch(1);
+    // Root span of the trace of the job, started when the job was claimed.
+    private Span span = Span.NOOP;
+    // Annotations overriding those of the job and its steps for this run.
+    private final Map<String, String> annotation_overrides;
+    // Jobs which ran before this one in a chain, first to last.
+    private List<Integer> chain = Collections.emptyList();
     /*
      * Annotation settings
      */
     // Timeout setting to abort job if running longer than this value.
     private Long job_timeout = null;
+    // If true, sequential steps against the same database will share a connection.
+    private Boolean reuse_connection = false;
     // List of status to send an email on
     private final List<JobStatus> email_on = new ArrayList<>();
     // Email to list
     private String[] email_to = null;
     // Email subject
-    private String email_subject = null;
+    private NotificationTemplate email_subject = NotificationTemplate.compile(null);
     // Email body
-    private String email_body = null;
+    private NotificationTemplate email_body = NotificationTemplate.compile(null);
+    // Jobs to run once this one finishes, by status
+    private Map<JobStatus, List<Integer>> chain_jobs = Collections.emptyMap();
+    // Jobs with a higher priority are dispatched first
+    private int priority = 0;
+    // The pgAgent job class, which limits how many jobs of the class run at once
+    private String job_class;
 
 
     public Job(final int job_id, final String job_name, final String job_comment, final int job_log_id)
+    {
+        this(job_id, job_name, job_comment, job_log_id, Collections.emptyMap());
+    }
+
+    public Job(final int job_id, final String job_name, final String job_comment, final int job_log_id, final Map<String, String> annotation_overrides)
     {
         Config.INSTANCE.logger.debug("Job: {} - Instantiating Job begin.", job_id);
         this.job_id = job_id;
         this.job_name = job_name;
         this.job_comment = job_comment;
         this.job_log_id = job_log_id;
+        this.annotation_overrides = annotation_overrides;
         processAnnotations();
         Config.INSTANCE.logger.debug("Job: {} - Instantiating Job complete.", job_id);
     }
@@ -77,10 +123,59 @@ public class Job implements CancellableRunnable
 
     public void run()
     {
+        if (!started.compareAndSet(false, true))
+        {
+            // Cancelled while waiting for its job class, and already aborted by cancelTask.
+            return;
+        }
+        try (Span.Scope scope = span.makeCurrent())
+        {
+            runJob();
+        }
+        finally
+        {
+            endSpan();
+            exited.countDown();
+        }
+    }
+
+    private void endSpan()
+    {
+        if (JobStatus.FAIL.equals(job_status) || JobStatus.ABORTED.equals(job_status))
+        {
+            span.setError(job_status.name());
+        }
+        span.setAttribute("jpgagent.job.status", job_status != null ? job_status.name() : null).end();
+    }
+
+    /**
+     * Aborts a job cancelled before it started, such as while it waited for a free slot in its job class.
+     * The job was claimed and its log started when it was submitted, so both are released here as it will never run.
+     */
+    private void abortUnstarted()
+    {
+        Config.INSTANCE.logger.info("Job: {} - Cancelled before it started.", this.job_id);
+        job_status = JobStatus.ABORTED;
+        try (Span.Scope scope = span.makeCurrent())
+        {
+            finishJob();
+        }
+        finally
+        {
+            endSpan();
+            exited.countDown();
+        }
+    }
+
+    private void runJob()
+    {
+        final JobRunEvent job_event = new JobRunEvent();
+        job_event.begin();
         try
         {
             Config.INSTANCE.logger.info("Job: {} - Started.", this.job_id);
             this.start_time = System.currentTimeMillis();
+            MetricsRegistry.INSTANCE.counter("jobs_started_total", "Jobs started.").inc();
             boolean failed_step = false;
             try
             {
@@ -92,7 +187,9 @@ public class Job implements CancellableRunnable
                         waitOnRunningJobSteps();
                     }
                     // Submit task.
-                    future_map.put(job_step, ExecutionUtil.INSTANCE.submitTask(job_step));
+                    final CountDownLatch step_exited = new CountDownLatch(1);
+                    step_exit_list.add(step_exited);
+                    future_map.put(job_step, ExecutionUtil.INSTANCE.submitTask(job_step, step_exited));
                 }
                 // Block until all JobSteps are done.
                 waitOnRunningJobSteps();
@@ -133,25 +230,114 @@ public class Job implements CancellableRunnable
                 Config.INSTANCE.logger.error("Job: {} - Stack Trace: {}", this.job_id, stackTrace.toString());
             }
         }
+        finally
+        {
+            // Cancelled steps may still be using the shared connections.
+            awaitJobStepExit();
+            closeSharedConnections();
+        }
 
+        finishJob();
+        job_event.end();
+        if (job_event.shouldCommit())
+        {
+            job_event.job_id = job_id;
+            job_event.job_log_id = job_log_id;
+            job_event.job_name = job_name;
+            job_event.status = job_status.name();
+            job_event.commit();
+        }
+        if (start_time != null)
+        {
+            MetricsRegistry.INSTANCE.histogram("job_duration_seconds", "Time taken running jobs.", "job", job_name).observeSince(start_time);
+        }
+        Config.INSTANCE.logger.info("Job: {} - Complete.", this.job_id);
+    }
+
+    /**
+     * Releases the job, records its status and sends the notifications and chained jobs for it.
+     */
+    private void finishJob()
+    {
         clearJobAgent();
 
         // Update the log record with the result
         JobLog.finishLog(job_log_id, job_status);
+        startChainedJobs();
+        MetricsRegistry.INSTANCE.counter("jobs_finished_total", "Jobs finished, by status.", "status", job_status.name()).inc();
 
         if(email_on.contains(job_status))
         {
-            // Token replacement
-            email_subject = email_subject.replaceAll(Config.INSTANCE.status_token, job_status.name());
-            email_body = email_body.replaceAll(Config.INSTANCE.status_token, job_status.name());
-
-            email_subject = email_subject.replaceAll(Config.INSTANCE.job_name_token, job_name);
-            email_body = email_body.replaceAll(Config.INSTANCE.job_name_token, job_name);
+            final Map<String, String> token_values = new HashMap<>();
+            token_values.put(Config.INSTANCE.status_token, job_status.name());
+            token_values.put(Config.INSTANCE.job_name_token, job_name);
+            token_values.put(Config.INSTANCE.agent_host_token, Config.INSTANCE.hostname);
+            if (start_time != null)
+            {
+                token_values.put(Config.INSTANCE.start_time_token, NotificationTemplate.formatStartTime(start_time));
+                token_values.put(Config.INSTANCE.duration_token, NotificationTemplate.formatDuration(System.currentTimeMillis() - start_time));
+            }
 
             // Send email
-            EmailUtil.sendEmailFromNoReply(email_to, email_subject, email_body);
+            EmailUtil.sendEmailFromNoReply(email_to, email_subject.render(token_values), email_body.render(token_values));
         }
-        Config.INSTANCE.logger.info("Job: {} - Complete.", this.job_id);
+    }
+
+    /**
+     * Starts the jobs chained to the status the job finished with.
+     * A job which already ran in the chain is never started again, and the chain stops at the maximum depth.
+     */
+    private void startChainedJobs()
+    {
+        final List<Integer> successors = chain_jobs.get(job_status);
+        if (successors == null)
+        {
+            return;
+        }
+        final List<Integer> successor_chain = new ArrayList<>(chain);
+        successor_chain.add(job_id);
+        for (Integer successor : successors)
+        {
+            if (successor_chain.contains(successor))
+            {
+                Config.INSTANCE.logger.warn("Job: {} - Not chaining job_id: {}, it already ran in this chain: {}.", this.job_id, successor, successor_chain);
+            }
+            else if (successor_chain.size() > Config.INSTANCE.max_chain_depth)
+            {
+                Config.INSTANCE.logger.warn("Job: {} - Not chaining job_id: {}, the chain is already {} jobs long: {}.", this.job_id, successor, successor_chain.size(), successor_chain);
+            }
+            else
+            {
+                Config.INSTANCE.logger.info("Job: {} - Finished with status {}, chaining job_id: {}.", this.job_id, job_status, successor);
+                JPGAgent.runChainedJob(new RunJobRequest(successor, Collections.emptyMap(), successor_chain));
+            }
+        }
+    }
+
+    /**
+     * Parses the jobs chained to each status, e.g. SUCCEED:12,13;FAIL:42
+     * @param value the value of the CHAIN_JOBS annotation
+     * @return the job ids to run, by status
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    public static Map<JobStatus, List<Integer>> parseChainJobs(final String value)
+    {
+        final Map<JobStatus, List<Integer>> chain_jobs = new HashMap<>();
+        for (String status_jobs : value.split(";"))
+        {
+            final int colon = status_jobs.indexOf(':');
+            if (colon < 0)
+            {
+                throw new IllegalArgumentException("Expected JOB_STATUS:job_id[,job_id], got: " + status_jobs);
+            }
+            final JobStatus status = JobStatus.valueOf(status_jobs.substring(0, colon).trim());
+            final List<Integer> job_ids = chain_jobs.computeIfAbsent(status, k -> new ArrayList<>());
+            for (String job_id : status_jobs.substring(colon + 1).split(","))
+            {
+                job_ids.add(Integer.parseInt(job_id.trim()));
+            }
+        }
+        return chain_jobs;
     }
 
     private void clearJobAgent()
@@ -180,10 +366,15 @@ public class Job implements CancellableRunnable
         try
         {
             Map<String, String> annotations = AnnotationUtil.parseAnnotations(job_comment);
+            annotations.putAll(annotation_overrides);
             if (annotations.containsKey(JobAnnotations.JOB_TIMEOUT.name()))
             {
                 job_timeout = AnnotationUtil.parseValue(JobAnnotations.JOB_TIMEOUT, annotations.get(JobAnnotations.JOB_TIMEOUT.name()), Long.class);
             }
+            if (annotations.containsKey(JobAnnotations.REUSE_CONNECTION.name()))
+            {
+                reuse_connection = AnnotationUtil.parseValue(JobAnnotations.REUSE_CONNECTION, annotations.get(JobAnnotations.REUSE_CONNECTION.name()), Boolean.class);
+            }
             if (annotations.containsKey(JobAnnotations.EMAIL_ON.name()))
             {
                 for (String email_on_string : AnnotationUtil.parseValue(JobAnnotations.EMAIL_ON, annotations.get(JobAnnotations.EMAIL_ON.name()), String.class).split(";"))
@@ -197,11 +388,19 @@ public class Job implements CancellableRunnable
             }
             if (annotations.containsKey(JobAnnotations.EMAIL_SUBJECT.name()))
             {
-                email_subject = AnnotationUtil.parseValue(JobAnnotations.EMAIL_SUBJECT, annotations.get(JobAnnotations.EMAIL_SUBJECT.name()), String.class);
+                email_subject = NotificationTemplate.compile(AnnotationUtil.parseValue(JobAnnotations.EMAIL_SUBJECT, annotations.get(JobAnnotations.EMAIL_SUBJECT.name()), String.class));
             }
             if (annotations.containsKey(JobAnnotations.EMAIL_BODY.name()))
             {
-                email_body = AnnotationUtil.parseValue(JobAnnotations.EMAIL_BODY, annotations.get(JobAnnotations.EMAIL_BODY.name()), String.class);
+                email_body = NotificationTemplate.compile(AnnotationUtil.parseValue(JobAnnotations.EMAIL_BODY, annotations.get(JobAnnotations.EMAIL_BODY.name()), String.class));
+            }
+            if (annotations.containsKey(JobAnnotations.JOB_PRIORITY.name()))
+            {
+                priority = JobPriority.parse(job_comment, annotation_overrides);
+            }
+            if (annotations.containsKey(JobAnnotations.CHAIN_JOBS.name()))
+            {
+                chain_jobs = parseChainJobs(AnnotationUtil.parseValue(JobAnnotations.CHAIN_JOBS, annotations.get(JobAnnotations.CHAIN_JOBS.name()), String.class));
             }
         }
         catch (Exception e)
@@ -211,6 +410,144 @@ public class Job implements CancellableRunnable
         }
     }
 
+    /**
+     * Returns if the step is allowed to use a connection shared with the other steps of this job.
+     * Steps that run in parallel with another step never share a connection.
+     * @param job_step the step to check
+     * @return true if the step can use {@link #getSharedConnection}, false otherwise
+     */
+    public boolean canShareConnection(final JobStep job_step)
+    {
+        if (!reuse_connection || job_step_list == null || job_step.canRunInParallel())
+        {
+            return false;
+        }
+        final int index = job_step_list.indexOf(job_step);
+        if (index == -1)
+        {
+            return false;
+        }
+        // The next step would run in parallel with this one.
+        return index + 1 == job_step_list.size() || !job_step_list.get(index + 1).canRunInParallel();
+    }
+
+    /**
+     * Returns a connection that is kept open for the lifetime of the job and shared between steps
+     * targeting the same host, database and user.
+     * The session state left behind by the previous step is reset before the connection is returned.
+     * The connection must not be closed by the caller.
+     *
+     * @param host_name
+     * @param database
+     * @param user
+     * @param password
+     * @param use_replica if the connection should be made to a hot standby, ignoring the host_name
+     * @return
+     * @throws SQLException
+     */
+    public synchronized Connection getSharedConnection(final String host_name, final String database, final String user, final String password, final boolean use_replica) throws SQLException
+    {
+        final String key = (use_replica ? "replica" : host_name) + "/" + database + "/" + user;
+        Connection connection = shared_connection_map.get(key);
+        if (connection != null)
+        {
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute(Config.INSTANCE.sql.getProperty("sql.job.reset_connection"));
+            }
+            catch (SQLException e)
+            {
+                // Most likely a broken connection, or a transaction left open by the previous step.
+                Config.INSTANCE.logger.debug("Job: {} - Unable to reset shared connection, opening a new one. Message: {}", this.job_id, e.getMessage());
+                closeConnection(connection);
+                connection = null;
+            }
+        }
+        if (connection == null)
+        {
+            connection = openSharedConnection(host_name, database, user, password, use_replica);
+            shared_connection_map.put(key, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Opens a new connection to be shared between steps.
+     *
+     * @param host_name
+     * @param database
+     * @param user
+     * @param password
+     * @param use_replica if the connection should be made to a hot standby, ignoring the host_name
+     * @return
+     * @throws SQLException
+     */
+    protected Connection openSharedConnection(final String host_name, final String database, final String user, final String password, final boolean use_replica) throws SQLException
+    {
+        if (use_replica)
+        {
+            return Database.INSTANCE.getReadOnlyConnection(database, user, password);
+        }
+        return Database.INSTANCE.getConnection(host_name, database, user, password);
+    }
+
+    /**
+     * Waits for the threads of all submitted steps to leave them. A cancelled step is given as long as
+     * the escalation of its cancel takes, after which it is left behind with a warning.
+     */
+    private void awaitJobStepExit()
+    {
+        // The job thread is interrupted when the job is cancelled, which must not cut the wait short.
+        final boolean interrupted = Thread.interrupted();
+        final long deadline = System.currentTimeMillis() + 3 * Config.INSTANCE.kill_grace_period;
+        try
+        {
+            for (CountDownLatch step_exited : step_exit_list)
+            {
+                if (!step_exited.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+                {
+                    Config.INSTANCE.logger.warn("Job: {} - Cancelled steps are still running, closing their shared connections anyway.", this.job_id);
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Config.INSTANCE.logger.warn("Job: {} - Interrupted waiting on cancelled steps.", this.job_id);
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Closes all connections shared between the steps of this job.
+     */
+    private synchronized void closeSharedConnections()
+    {
+        for (Connection connection : shared_connection_map.values())
+        {
+            closeConnection(connection);
+        }
+        shared_connection_map.clear();
+    }
+
+    private void closeConnection(final Connection connection)
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            Config.INSTANCE.logger.debug("Job: {} - Error closing shared connection. Message: {}", this.job_id, e.getMessage());
+        }
+    }
+
     /**
      * Waits on job steps that are running and responds to timeouts.
      * @throws InterruptedException
@@ -278,12 +615,40 @@ public class Job implements CancellableRunnable
         }
     }
 
+    /**
+     * Returns the time left before the job times out.
+     * @return the remaining time in ms, or null if the job has no timeout
+     */
+    public Long getRemainingTime()
+    {
+        if(null != job_timeout && null != start_time)
+        {
+            return job_timeout - (System.currentTimeMillis() - start_time);
+        }
+        else
+        {
+            return null;
+        }
+    }
+
     /**
      * Should stop any long running process the thread was doing to exit gracefully as quickly as possible.
      */
     @Override
     public void cancelTask()
     {
+        final CancelEvent cancel_event = new CancelEvent();
+        if (cancel_event.shouldCommit())
+        {
+            cancel_event.job_id = job_id;
+            cancel_event.timed_out = isTimedOut();
+            cancel_event.commit();
+        }
+        if (started.compareAndSet(false, true))
+        {
+            abortUnstarted();
+            return;
+        }
         for (Future<?> future : future_map.values())
         {
             if (!future.isDone())
@@ -293,6 +658,69 @@ public class Job implements CancellableRunnable
         }
     }
 
+    /**
+     * Cancels one step of the job, if it is running. The job carries on as it would after the step failed.
+     * @param step_id the step to cancel
+     * @return false if the step was not running
+     */
+    public boolean cancelStep(final int step_id)
+    {
+        for (Map.Entry<JobStep, Future> entry : future_map.entrySet())
+        {
+            if (entry.getKey().getStepId() == step_id && !entry.getValue().isDone())
+            {
+                entry.getValue().cancel(true);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true once the job has finished, including waiting on its cancelled steps, or was aborted before it started
+     */
+    public boolean hasExited()
+    {
+        return exited.getCount() == 0;
+    }
+
+    /**
+     * @return the JOB_PRIORITY of the job, before aging
+     */
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * @return the name of the pgAgent job class of the job, or null if it has none
+     */
+    public String getJobClass()
+    {
+        return job_class;
+    }
+
+    public void setJobClass(final String job_class)
+    {
+        this.job_class = job_class;
+    }
+
+    /**
+     * @param chain the jobs which ran before this one in a chain, first to last
+     */
+    public void setChain(final List<Integer> chain)
+    {
+        this.chain = chain;
+    }
+
+    /**
+     * @return the annotations overriding those of the job and its steps for this run
+     */
+    public Map<String, String> getAnnotationOverrides()
+    {
+        return annotation_overrides;
+    }
+
     public int getJobId()
     {
         return job_id;
@@ -308,8 +736,64 @@ public class Job implements CancellableRunnable
         return job_name;
     }
 
+    /**
+     * @return the time (ms since the epoch) the job started, or null if it has not started
+     */
+    public Long getStartTime()
+    {
+        return start_time;
+    }
+
+    public List<JobStep> getJobStepList()
+    {
+        return job_step_list;
+    }
+
     public void setJobStepList(List<JobStep> job_step_list)
     {
         this.job_step_list = job_step_list;
     }
+
+    /**
+     * @return the root span of the trace of the job
+     */
+    public Span getSpan()
+    {
+        return span;
+    }
+
+    public void setSpan(final Span span)
+    {
+        this.span = span;
+    }
+
+    /**
+     * Sets how late the job was claimed and made ready to run.
+     * @param claim_lag time (ms) from the job being due to it being claimed, as measured by the database
+     * @param claim_time the time (ms since the epoch) jpgAgent claimed the job
+     * @param preparation_lag time (ms) from the job being claimed to it being ready to run
+     */
+    public void setScheduleLag(final long claim_lag, final long claim_time, final long preparation_lag)
+    {
+        this.claim_lag = claim_lag;
+        this.claim_time = claim_time;
+        this.preparation_lag = preparation_lag;
+    }
+
+    /**
+     * Records how late the first step of the job started relative to when the job was due.
+     * Only the first call is recorded.
+     * @param step_start_time the time (ms since the epoch) the step started
+     */
+    public void recordStepStart(final long step_start_time)
+    {
+        if (claim_lag == null || !first_step_started.compareAndSet(false, true))
+        {
+            return;
+        }
+        // Relative to the claim, so the clocks of the database and jpgAgent do not need to agree.
+        final long first_step_lag = claim_lag + (step_start_time - claim_time);
+        MetricsRegistry.INSTANCE.histogram("job_first_step_lag_seconds", "Time from jobs being due to their first step starting.").observe(first_step_lag / 1000.0);
+        Config.INSTANCE.logger.info("Job: {} - Schedule lag: claimed {} ms after due, ready {} ms after claim, first step started {} ms after due.", this.job_id, claim_lag, preparation_lag, first_step_lag);
+    }
 }
@@ -30,10 +30,13 @@ import com.gosimple.jpgagent.annotation.AnnotationDefinition;
 public enum JobAnnotations implements AnnotationDefinition
 {
     JOB_TIMEOUT(Long.class),
+    REUSE_CONNECTION(Boolean.class),
     EMAIL_ON(String.class),
     EMAIL_SUBJECT(String.class),
     EMAIL_BODY(String.class),
-    EMAIL_TO(String.class);
+    EMAIL_TO(String.class),
+    CHAIN_JOBS(String.class),
+    JOB_PRIORITY(Integer.class);
 
     final Class<?> annotation_value_type;
 
@@ -22,12 +22,16 @@
 
 package com.gosimple.jpgagent.job;
 
+import java.util.Collections;
+import java.util.Map;
+
 public class JobBuilder
 {
     private Integer job_id;
     private String job_name;
     private String job_comment;
     private Integer job_log_id;
+    private Map<String, String> annotation_overrides = Collections.emptyMap();
 
     public JobBuilder setJobId(Integer job_id)
     {
@@ -53,13 +57,24 @@ public class JobBuilder
         return this;
     }
 
+    public JobBuilder setAnnotationOverrides(Map<String, String> annotation_overrides)
+    {
+        this.annotation_overrides = annotation_overrides;
+        return this;
+    }
+
     public Job createJob()
     {
-        return new Job(job_id, job_name, job_comment, job_log_id);
+        return new Job(job_id, job_name, job_comment, job_log_id, annotation_overrides);
     }
 
     public static Job createJob(final int job_id, final String job_name, final String job_comment)
     {
-        return new JobBuilder().setJobId(job_id).setJobName(job_name).setJobComment(job_comment).setJobLogId(JobLog.startLog(job_id)).createJob();
+        return createJob(job_id, job_name, job_comment, Collections.emptyMap());
+    }
+
+    public static Job createJob(final int job_id, final String job_name, final String job_comment, final Map<String, String> annotation_overrides)
+    {
+        return new JobBuilder().setJobId(job_id).setJobName(job_name).setJobComment(job_comment).setAnnotationOverrides(annotation_overrides).setJobLogId(JobLog.startLog(job_id)).createJob();
     }
 }
\ No newline at end of file
@@ -24,6 +24,10 @@ package com.gosimple.jpgagent.job;
 
 import com.gosimple.jpgagent.Config;
 import com.gosimple.jpgagent.database.Database;
+import com.gosimple.jpgagent.jfr.LogWriteEvent;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
+import com.gosimple.jpgagent.trace.Span;
+import com.gosimple.jpgagent.trace.Tracer;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -42,6 +46,11 @@ public class JobLog
     public static int startLog(final int job_id)
     {
         Config.INSTANCE.logger.debug("Inserting logging and marking job as being worked on.");
+        final long log_start = System.nanoTime();
+        final LogWriteEvent log_event = new LogWriteEvent();
+        log_event.begin();
+        final Span log_span = Tracer.INSTANCE.startSpan("log_write");
+        log_event.job_id = job_id;
         final String log_sql = Config.INSTANCE.sql.getProperty("sql.joblog.start_log");
         Integer job_log_id = null;
         try (final PreparedStatement log_statement = Database.INSTANCE.getMainConnection().prepareStatement(log_sql))
@@ -62,6 +71,11 @@ public class JobLog
             Config.INSTANCE.logger.error("Could not save job log to database.");
             Config.INSTANCE.logger.error("Message: " + e.getMessage());
         }
+        if (job_log_id != null)
+        {
+            log_event.log_id = job_log_id;
+        }
+        recordLogWrite("job_start", log_start, log_event, log_span);
 
         // If unable to return a job_step_log_id throw an exception.
         if(job_log_id == null)
@@ -75,6 +89,11 @@ public class JobLog
     public static void finishLog(final int job_log_id, final JobStatus job_status)
     {
         final String log_sql = Config.INSTANCE.sql.getProperty("sql.joblog.finish_log");
+        final long log_start = System.nanoTime();
+        final LogWriteEvent log_event = new LogWriteEvent();
+        log_event.begin();
+        final Span log_span = Tracer.INSTANCE.startSpan("log_write");
+        log_event.log_id = job_log_id;
         try (final PreparedStatement log_statement = Database.INSTANCE.getMainConnection().prepareStatement(log_sql))
         {
             log_statement.setString(1, job_status.getDbRepresentation());
@@ -86,5 +105,25 @@ public class JobLog
             Config.INSTANCE.logger.error("Could not save job log to database.");
             Config.INSTANCE.logger.error("Message: " + e.getMessage());
         }
+        recordLogWrite("job_finish", log_start, log_event, log_span);
+    }
+
+    /**
+     * Records how long writing a job or job step log took.
+     * @param operation the log write, such as job_start
+     * @param log_start the start of the write from {@link System#nanoTime()}
+     * @param log_event the flight recorder event for the write, begun at the start of the write
+     * @param log_span the trace span of the write, started at the start of the write
+     */
+    public static void recordLogWrite(final String operation, final long log_start, final LogWriteEvent log_event, final Span log_span)
+    {
+        log_span.setAttribute("jpgagent.log.operation", operation).end();
+        MetricsRegistry.INSTANCE.histogram("log_write_seconds", "Time taken writing job and job step logs.", "operation", operation).observeNanosSince(log_start);
+        log_event.end();
+        if (log_event.shouldCommit())
+        {
+            log_event.operation = operation;
+            log_event.commit();
+        }
     }
 }
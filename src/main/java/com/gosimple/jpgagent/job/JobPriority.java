@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.annotation.AnnotationUtil;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The order jobs are dispatched in. Jobs with a higher JOB_PRIORITY go first, and jobs without one have a priority of 0.
+ * So that a steady stream of important jobs can not hold back the rest forever, a job gains one priority for every
+ * aging interval it has been waiting.
+ * The ordering in sql.jpgagent.get_job must be kept the same as this.
+ */
+public class JobPriority
+{
+    // Fits an int and a regular expression the database can match, unlike the units and signs Integer annotations allow.
+    private static final Pattern priority_pattern = Pattern.compile("-?[0-9]{1,9}");
+
+    /**
+     * @param job_comment the comment of the job, holding its annotations
+     * @param annotation_overrides annotations overriding those of the job
+     * @return the JOB_PRIORITY of the job, 0 if it has none or it is not a plain integer of at most 9 digits
+     */
+    public static int parse(final String job_comment, final Map<String, String> annotation_overrides)
+    {
+        final Map<String, String> annotations = AnnotationUtil.parseAnnotations(job_comment);
+        annotations.putAll(annotation_overrides);
+        final String value = annotations.get(JobAnnotations.JOB_PRIORITY.name());
+        if (value == null || !priority_pattern.matcher(value).matches())
+        {
+            return 0;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * @param priority the JOB_PRIORITY of the job
+     * @param waited the time (ms) the job has been waiting to run
+     * @return the priority the job is dispatched with
+     */
+    public static long age(final int priority, final long waited)
+    {
+        return age(priority, waited, Config.INSTANCE.priority_aging_interval);
+    }
+
+    /**
+     * @param priority the JOB_PRIORITY of the job
+     * @param waited the time (ms) the job has been waiting to run
+     * @param aging_interval the time (ms) waited for each priority gained, 0 to not age jobs
+     * @return the priority the job is dispatched with
+     */
+    public static long age(final int priority, final long waited, final long aging_interval)
+    {
+        if (aging_interval <= 0 || waited <= 0)
+        {
+            return priority;
+        }
+        return priority + waited / aging_interval;
+    }
+}
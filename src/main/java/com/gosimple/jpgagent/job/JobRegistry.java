@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job;
+
+import com.gosimple.jpgagent.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * The jobs claimed by this agent which have not been cleaned up yet, along with whether new jobs are dispatched.
+ * Safe to read from any thread, so the state of the agent can be shown without touching the database.
+ */
+public enum JobRegistry
+{
+    INSTANCE;
+
+    private final Map<Integer, RegisteredJob> job_map = new ConcurrentHashMap<>();
+    private volatile boolean paused = false;
+    private volatile boolean draining = false;
+    private volatile int max_running_jobs = Config.INSTANCE.max_running_jobs;
+
+    /**
+     * A claimed job and the future it was submitted as.
+     */
+    public static class RegisteredJob
+    {
+        private final Job job;
+        private final Future<?> future;
+        private final long claim_time;
+
+        private RegisteredJob(final Job job, final Future<?> future)
+        {
+            this.job = job;
+            this.future = future;
+            this.claim_time = System.currentTimeMillis();
+        }
+
+        public Job getJob()
+        {
+            return job;
+        }
+
+        public Future<?> getFuture()
+        {
+            return future;
+        }
+
+        /**
+         * A cancelled job keeps running until its steps have been torn down, so it still holds its slot until then.
+         * @return true until the job has exited
+         */
+        public boolean isRunning()
+        {
+            return !job.hasExited();
+        }
+
+        /**
+         * @return true if the job was cancelled and has not exited yet
+         */
+        public boolean isCancelling()
+        {
+            return future.isCancelled() && isRunning();
+        }
+
+        /**
+         * @return the time (ms since the epoch) the job was registered
+         */
+        public long getClaimTime()
+        {
+            return claim_time;
+        }
+    }
+
+    /**
+     * @param job the job
+     * @param future the future the job was submitted as
+     */
+    public void register(final Job job, final Future<?> future)
+    {
+        job_map.put(job.getJobId(), new RegisteredJob(job, future));
+    }
+
+    /**
+     * Cancels the job, if it is registered and not done.
+     * @param job_id the job
+     * @return false if the job was not running
+     */
+    public boolean kill(final int job_id)
+    {
+        final RegisteredJob registered_job = job_map.get(job_id);
+        if (registered_job == null || registered_job.getFuture().isDone())
+        {
+            return false;
+        }
+        registered_job.getFuture().cancel(true);
+        return true;
+    }
+
+    /**
+     * Cancels one step of a job, if it is running.
+     * @param job_id the job
+     * @param step_id the step
+     * @return false if the step was not running
+     */
+    public boolean killStep(final int job_id, final int step_id)
+    {
+        final RegisteredJob registered_job = job_map.get(job_id);
+        return registered_job != null && !registered_job.getFuture().isDone() && registered_job.getJob().cancelStep(step_id);
+    }
+
+    /**
+     * Removes the jobs which have exited, and finishes draining once none are left.
+     */
+    public void removeDone()
+    {
+        job_map.values().removeIf(registered_job -> !registered_job.isRunning());
+        if (draining && getRunningCount() == 0)
+        {
+            draining = false;
+            Config.INSTANCE.logger.info("Drained, no jobs are running. Job dispatch stays paused until resumed.");
+        }
+    }
+
+    /**
+     * Removes every job, without cancelling them.
+     */
+    public void clear()
+    {
+        job_map.clear();
+    }
+
+    /**
+     * @return the registered jobs which have not exited, oldest claim first
+     */
+    public List<RegisteredJob> getJobs()
+    {
+        final List<RegisteredJob> jobs = new ArrayList<>();
+        for (RegisteredJob registered_job : job_map.values())
+        {
+            if (registered_job.isRunning())
+            {
+                jobs.add(registered_job);
+            }
+        }
+        jobs.sort((a, b) -> Long.compare(a.getClaimTime(), b.getClaimTime()));
+        return jobs;
+    }
+
+    /**
+     * @return the number of jobs claimed which have not exited, whether or not they have started or were cancelled
+     */
+    public int getRunningCount()
+    {
+        int count = 0;
+        for (RegisteredJob registered_job : job_map.values())
+        {
+            if (registered_job.isRunning())
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of jobs claimed which have not started yet
+     */
+    public int getWaitingCount()
+    {
+        int count = 0;
+        for (RegisteredJob registered_job : job_map.values())
+        {
+            if (registered_job.isRunning() && registered_job.getJob().getStartTime() == null)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of further jobs which may be claimed, or null if there is no limit
+     */
+    public Integer getAvailableSlots()
+    {
+        final int max = max_running_jobs;
+        if (max <= 0)
+        {
+            return null;
+        }
+        return Math.max(0, max - getRunningCount());
+    }
+
+    public boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Stops or restarts claiming new jobs. Jobs already claimed carry on either way.
+     * @param paused true to stop claiming new jobs
+     */
+    public void setPaused(final boolean paused)
+    {
+        if (this.paused != paused)
+        {
+            Config.INSTANCE.logger.info(paused ? "Job dispatch paused." : "Job dispatch resumed.");
+        }
+        this.paused = paused;
+        if (!paused)
+        {
+            draining = false;
+        }
+    }
+
+    /**
+     * Stops claiming new jobs, and logs once the jobs already claimed have all finished.
+     */
+    public void drain()
+    {
+        setPaused(true);
+        draining = getRunningCount() > 0;
+        Config.INSTANCE.logger.info("Draining, {} jobs still running.", getRunningCount());
+    }
+
+    /**
+     * @return true while dispatch is paused to drain and jobs are still running
+     */
+    public boolean isDraining()
+    {
+        return draining;
+    }
+
+    public int getMaxRunningJobs()
+    {
+        return max_running_jobs;
+    }
+
+    /**
+     * @param max_running_jobs the maximum number of jobs running at once, 0 for no limit
+     */
+    public void setMaxRunningJobs(final int max_running_jobs)
+    {
+        if (max_running_jobs < 0)
+        {
+            throw new IllegalArgumentException("The maximum number of running jobs can not be negative.");
+        }
+        Config.INSTANCE.logger.info("Maximum running jobs set to {}.", max_running_jobs);
+        this.max_running_jobs = max_running_jobs;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job;
+
+import com.gosimple.jpgagent.job.step.JobStepAnnotations;
+import com.gosimple.jpgagent.json.JsonUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A request to run a job right away, sent with NOTIFY on the jpgagent_run_job channel.
+ * The payload is either the job id, or a JSON object with the job id and annotations which override those of the job
+ * and its steps for this run only:
+ * <pre>
+ *     {"job_id": 12, "annotations": {"DATABASE_NAME": "reporting", "JOB_TIMEOUT": 60000}}
+ * </pre>
+ * Any role able to connect may send a notification, so only annotations which can not run code, change credentials
+ * or hosts, or send output elsewhere may be overridden.
+ */
+public class RunJobRequest
+{
+    public static final String CHANNEL = "jpgagent_run_job";
+    // The annotations a request may override, everything else is taken from the job as stored.
+    private static final Set<String> overridable_annotations = Set.of(
+            JobAnnotations.JOB_TIMEOUT.name(),
+            JobAnnotations.JOB_PRIORITY.name(),
+            JobStepAnnotations.JOB_STEP_TIMEOUT.name(),
+            JobStepAnnotations.LOCK_TIMEOUT.name(),
+            JobStepAnnotations.RUN_IN_PARALLEL.name(),
+            JobStepAnnotations.DATABASE_NAME.name());
+
+    private final int job_id;
+    private final Map<String, String> annotation_overrides;
+    private final List<Integer> chain;
+
+    public RunJobRequest(final int job_id, final Map<String, String> annotation_overrides)
+    {
+        this(job_id, annotation_overrides, Collections.emptyList());
+    }
+
+    /**
+     * @param job_id the job to run
+     * @param annotation_overrides the annotations overriding those of the job and its steps
+     * @param chain the jobs which ran before this one in a chain, first to last
+     */
+    public RunJobRequest(final int job_id, final Map<String, String> annotation_overrides, final List<Integer> chain)
+    {
+        this.job_id = job_id;
+        this.annotation_overrides = Collections.unmodifiableMap(new HashMap<>(annotation_overrides));
+        this.chain = Collections.unmodifiableList(new ArrayList<>(chain));
+    }
+
+    /**
+     * @param payload the payload of the notification
+     * @return the request
+     * @throws IllegalArgumentException if the payload is invalid, or overrides an annotation which is unknown or
+     *                                  may not be overridden
+     */
+    public static RunJobRequest parse(final String payload)
+    {
+        final String trimmed = payload == null ? "" : payload.trim();
+        if (!trimmed.startsWith("{"))
+        {
+            try
+            {
+                return new RunJobRequest(Integer.parseInt(trimmed), Collections.emptyMap());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Expected a job id or a JSON object, got: " + payload);
+            }
+        }
+
+        final Map<String, Object> request = JsonUtil.parseObject(trimmed);
+        final Object job_id = request.get("job_id");
+        if (!(job_id instanceof Long) || (Long) job_id < 0 || (Long) job_id > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("job_id must be a job id.");
+        }
+        final Map<String, String> annotation_overrides = new HashMap<>();
+        final Object annotations = request.get("annotations");
+        if (annotations != null)
+        {
+            if (!(annotations instanceof Map))
+            {
+                throw new IllegalArgumentException("annotations must be an object.");
+            }
+            for (Map.Entry<?, ?> annotation : ((Map<?, ?>) annotations).entrySet())
+            {
+                final String name = (String) annotation.getKey();
+                if (!isAnnotation(name))
+                {
+                    throw new IllegalArgumentException("Unknown annotation: " + name + ".");
+                }
+                if (!overridable_annotations.contains(name))
+                {
+                    throw new IllegalArgumentException("Annotation " + name + " can not be overridden, only " + new TreeSet<>(overridable_annotations) + " can.");
+                }
+                if (annotation.getValue() == null || annotation.getValue() instanceof Map || annotation.getValue() instanceof Iterable)
+                {
+                    throw new IllegalArgumentException("The value of annotation " + name + " must be a string, number or boolean.");
+                }
+                annotation_overrides.put(name, annotation.getValue().toString());
+            }
+        }
+        return new RunJobRequest(((Long) job_id).intValue(), annotation_overrides);
+    }
+
+    public int getJobId()
+    {
+        return job_id;
+    }
+
+    /**
+     * @return the annotations overriding those of the job and its steps, by name
+     */
+    public Map<String, String> getAnnotationOverrides()
+    {
+        return annotation_overrides;
+    }
+
+    /**
+     * @return the jobs which ran before this one in a chain, first to last, empty if the job was not chained
+     */
+    public List<Integer> getChain()
+    {
+        return chain;
+    }
+
+    private static boolean isAnnotation(final String name)
+    {
+        for (JobAnnotations annotation : JobAnnotations.values())
+        {
+            if (annotation.name().equals(name))
+            {
+                return true;
+            }
+        }
+        for (JobStepAnnotations annotation : JobStepAnnotations.values())
+        {
+            if (annotation.name().equals(name))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Escalates the cancel of a statement which keeps running, first with pg_cancel_backend and then with
+ * pg_terminate_backend on the backend running it.
+ * The backend is identified by its pid and start time, so a backend which took over the pid of one which
+ * already exited is never signalled.
+ */
+public final class BackendEscalation
+{
+    private static final String[] escalation_sql = {"sql.jobstep.cancel_backend", "sql.jobstep.terminate_backend"};
+
+    public interface ConnectionSource
+    {
+        /**
+         * @return a connection to the host the statement is running on, which the caller closes
+         * @throws SQLException
+         */
+        Connection getConnection() throws SQLException;
+    }
+
+    private BackendEscalation()
+    {
+    }
+
+    /**
+     * Waits out a grace period at a time while the statement keeps running, signalling its backend after each one.
+     * @param is_running tells if the statement is still running; must only be true while its connection is open
+     * @param connection_source opens the connection to send the signals through
+     * @param backend_pid the pid of the backend running the statement
+     * @param grace_period the time (ms) the statement is given to stop before each escalation
+     * @param job_id the job of the step, for logging
+     * @param step_id the step running the statement, for logging
+     * @throws SQLException
+     * @throws InterruptedException
+     */
+    public static void escalate(final BooleanSupplier is_running, final ConnectionSource connection_source, final int backend_pid, final long grace_period, final int job_id, final int step_id) throws SQLException, InterruptedException
+    {
+        if (!waitWhileRunning(is_running, grace_period))
+        {
+            return;
+        }
+        try (Connection connection = connection_source.getConnection())
+        {
+            final String backend_start = getBackendStart(connection, backend_pid);
+            // The backend only counts as the one running the statement if it is still running after being looked up.
+            if (backend_start == null || !is_running.getAsBoolean())
+            {
+                return;
+            }
+            for (int i = 0; i < escalation_sql.length; i++)
+            {
+                if (i > 0 && !waitWhileRunning(is_running, grace_period))
+                {
+                    return;
+                }
+                Config.INSTANCE.logger.info("Job: {} - Job step: {} - Statement still running on backend {} after cancel, escalating with {}.", job_id, step_id, backend_pid, escalation_sql[i]);
+                try (PreparedStatement statement = connection.prepareStatement(Config.INSTANCE.sql.getProperty(escalation_sql[i])))
+                {
+                    statement.setInt(1, backend_pid);
+                    statement.setString(2, backend_start);
+                    statement.execute();
+                }
+            }
+        }
+    }
+
+    private static String getBackendStart(final Connection connection, final int backend_pid) throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement(Config.INSTANCE.sql.getProperty("sql.jobstep.get_backend_start")))
+        {
+            statement.setInt(1, backend_pid);
+            try (ResultSet result = statement.executeQuery())
+            {
+                return result.next() ? result.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the statement is still running after the timeout, false otherwise
+     */
+    private static boolean waitWhileRunning(final BooleanSupplier is_running, final long timeout) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (!is_running.getAsBoolean())
+            {
+                return false;
+            }
+            Thread.sleep(Math.min(100, Math.max(1, deadline - System.currentTimeMillis())));
+        }
+        return is_running.getAsBoolean();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operating system limits applied to a batch step: CPU priority, I/O priority and resource limits.
+ * The limits are applied by launching the script through /bin/sh, which sets them on itself before
+ * replacing itself with the script, so the script and everything it starts inherit them.
+ */
+public class BatchResourceLimits
+{
+    private static final boolean ionice_available = findIonice();
+
+    private Integer nice = null;
+    private Integer ionice_class = null;
+    private Integer ionice_level = null;
+    private Long address_space = null;
+    private Integer open_files = null;
+    private Long cpu_seconds = null;
+
+    /**
+     * @param nice the niceness to run with, from -20 (highest priority) to 19 (lowest priority), whatever the niceness of jpgAgent
+     */
+    public void setNice(final Integer nice)
+    {
+        if (nice != null && (nice < -20 || nice > 19))
+        {
+            throw new IllegalArgumentException("Nice value must be between -20 and 19: " + nice);
+        }
+        this.nice = nice;
+    }
+
+    /**
+     * @param ionice_class the I/O scheduling class, either idle, best-effort or realtime
+     */
+    public void setIoniceClass(final String ionice_class)
+    {
+        if (ionice_class == null)
+        {
+            this.ionice_class = null;
+        }
+        else if (ionice_class.equalsIgnoreCase("realtime"))
+        {
+            this.ionice_class = 1;
+        }
+        else if (ionice_class.equalsIgnoreCase("best-effort"))
+        {
+            this.ionice_class = 2;
+        }
+        else if (ionice_class.equalsIgnoreCase("idle"))
+        {
+            this.ionice_class = 3;
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported I/O scheduling class: " + ionice_class);
+        }
+    }
+
+    /**
+     * @param ionice_level the priority within the I/O scheduling class, from 0 (highest) to 7 (lowest)
+     */
+    public void setIoniceLevel(final Integer ionice_level)
+    {
+        if (ionice_level != null && (ionice_level < 0 || ionice_level > 7))
+        {
+            throw new IllegalArgumentException("I/O priority must be between 0 and 7: " + ionice_level);
+        }
+        this.ionice_level = ionice_level;
+    }
+
+    /**
+     * @param address_space the maximum virtual memory in MB
+     */
+    public void setAddressSpace(final Long address_space)
+    {
+        this.address_space = requirePositive(address_space, "Address space limit");
+    }
+
+    /**
+     * @param open_files the maximum number of open files
+     */
+    public void setOpenFiles(final Integer open_files)
+    {
+        this.open_files = open_files == null ? null : requirePositive(open_files.longValue(), "Open files limit").intValue();
+    }
+
+    /**
+     * @param cpu_seconds the maximum CPU time in seconds
+     */
+    public void setCpuSeconds(final Long cpu_seconds)
+    {
+        this.cpu_seconds = requirePositive(cpu_seconds, "CPU time limit");
+    }
+
+    /**
+     * @return true if no limits have been set
+     */
+    public boolean isEmpty()
+    {
+        return nice == null && ionice_class == null && ionice_level == null && address_space == null && open_files == null && cpu_seconds == null;
+    }
+
+    /**
+     * Removes all limits.
+     */
+    public void clear()
+    {
+        nice = null;
+        ionice_class = null;
+        ionice_level = null;
+        address_space = null;
+        open_files = null;
+        cpu_seconds = null;
+    }
+
+    /**
+     * Builds the command that runs the script with the limits applied.
+     * I/O priority is only applied on Linux when ionice is installed, and is skipped otherwise.
+     * If a limit can not be set the script is not run and the command fails.
+     * @param script the path of the script to run
+     * @return the command to start the script with
+     */
+    public List<String> wrapCommand(final String script)
+    {
+        final List<String> command = new ArrayList<>();
+        if (isEmpty())
+        {
+            command.add(script);
+            return command;
+        }
+
+        final StringBuilder shell_command = new StringBuilder();
+        if (address_space != null)
+        {
+            shell_command.append("ulimit -v ").append(address_space * 1024).append(" && ");
+        }
+        if (open_files != null)
+        {
+            shell_command.append("ulimit -n ").append(open_files).append(" && ");
+        }
+        if (cpu_seconds != null)
+        {
+            shell_command.append("ulimit -t ").append(cpu_seconds).append(" && ");
+        }
+        if (nice != null)
+        {
+            // nice only warns when it is not allowed to change the niceness, so check it takes before running the script.
+            shell_command.append("increment=$((").append(nice).append(" - $(nice))) && { [ \"$(nice -n \"$increment\" nice 2>/dev/null)\" = \"")
+                    .append(nice).append("\" ] || { echo \"Unable to set niceness to ").append(nice).append(".\" >&2; false; }; } && ");
+        }
+        shell_command.append("exec");
+        if (nice != null)
+        {
+            shell_command.append(" nice -n \"$increment\"");
+        }
+        if ((ionice_class != null || ionice_level != null) && ionice_available)
+        {
+            shell_command.append(" ionice -c ").append(ionice_class != null ? ionice_class : 2);
+            // The idle class has no priority levels.
+            if (ionice_level != null && (ionice_class == null || ionice_class != 3))
+            {
+                shell_command.append(" -n ").append(ionice_level);
+            }
+        }
+        // The script is passed as $0 so its path never has to be quoted into the command.
+        shell_command.append(" \"$0\"");
+
+        command.add("/bin/sh");
+        command.add("-c");
+        command.add(shell_command.toString());
+        command.add(script);
+        return command;
+    }
+
+    private static Long requirePositive(final Long value, final String name)
+    {
+        if (value != null && value <= 0)
+        {
+            throw new IllegalArgumentException(name + " must be greater than 0: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @return true if running on Linux with ionice on the path
+     */
+    private static boolean findIonice()
+    {
+        if (!System.getProperty("os.name").startsWith("Linux"))
+        {
+            return false;
+        }
+        final String path = System.getenv("PATH");
+        if (path == null)
+        {
+            return false;
+        }
+        for (String directory : path.split(File.pathSeparator))
+        {
+            if (new File(directory, "ionice").canExecute())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOut;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Streams COPY data between databases and processes without holding more than a row or a buffer at a time.
+ */
+public final class CopyStreams
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    private CopyStreams()
+    {
+    }
+
+    /**
+     * Writes each row to the target as soon as it is read from the source.
+     * @param copy_out the source of the rows
+     * @param copy_in the target of the rows, which the caller must end
+     * @return the number of bytes copied
+     * @throws SQLException
+     * @throws InterruptedException if the thread was interrupted while copying
+     */
+    public static long copy(final CopyOut copy_out, final CopyIn copy_in) throws SQLException, InterruptedException
+    {
+        long bytes = 0;
+        byte[] row;
+        while ((row = copy_out.readFromCopy()) != null)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedException();
+            }
+            copy_in.writeToCopy(row, 0, row.length);
+            bytes += row.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes each row to the output as soon as it is read. The output provides the back pressure.
+     * @param copy_out the source of the rows
+     * @param output the output to write to, which the caller must close
+     * @return the number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long copy(final CopyOut copy_out, final OutputStream output) throws SQLException, IOException
+    {
+        byte[] row;
+        while ((row = copy_out.readFromCopy()) != null)
+        {
+            output.write(row);
+        }
+        return copy_out.getHandledRowCount();
+    }
+
+    /**
+     * Writes everything read from the input to the target, a buffer at a time.
+     * @param input the input to read until it ends
+     * @param copy_in the target of the data, which the caller must end
+     * @throws SQLException
+     * @throws IOException
+     * @throws InterruptedException if the thread was interrupted while copying
+     */
+    public static void copy(final InputStream input, final CopyIn copy_in) throws SQLException, IOException, InterruptedException
+    {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = input.read(buffer)) != -1)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedException();
+            }
+            copy_in.writeToCopy(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Waits for the rows streamed into the standard input of a process. A process which exits successfully without
+     * reading all of its input breaks the pipe, which is not an error of the step, so the input is reported as
+     * truncated instead.
+     * @param process the process, which must have exited
+     * @param input_future the task streaming the input, returning the number of rows written
+     * @return the number of rows written, or null if the process exited before reading all of them
+     * @throws ExecutionException if streaming the input failed
+     * @throws InterruptedException
+     */
+    public static Long awaitInput(final Process process, final Future<Long> input_future) throws ExecutionException, InterruptedException
+    {
+        try
+        {
+            return input_future.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (process.exitValue() == 0 && e.getCause() instanceof IOException)
+            {
+                return null;
+            }
+            throw e;
+        }
+    }
+}
@@ -28,34 +28,63 @@ import com.gosimple.jpgagent.annotation.AnnotationUtil;
 import com.gosimple.jpgagent.database.Database;
 import com.gosimple.jpgagent.database.DatabaseAuth;
 import com.gosimple.jpgagent.email.EmailUtil;
+import com.gosimple.jpgagent.email.NotificationTemplate;
+import com.gosimple.jpgagent.jfr.CancelEvent;
+import com.gosimple.jpgagent.jfr.StepRunEvent;
 import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
 import com.gosimple.jpgagent.thread.CancellableRunnable;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+import com.gosimple.jpgagent.trace.Span;
+import com.gosimple.jpgagent.trace.Tracer;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.copy.CopyOperation;
+import org.postgresql.copy.CopyOut;
+import org.postgresql.util.HostSpec;
+import org.postgresql.util.PSQLWarning;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 public class JobStep implements CancellableRunnable
 {
     private final Job job;
     private int job_step_log_id;
-    private JobStepResult step_result;
+    private volatile JobStepResult step_result;
     private final int step_id;
     private final String step_name;
     private final String step_description;
-    private final StepType step_type;
-    private String code;
+    private StepType step_type;
+    private final String code;
     private final OnError on_error;
     private OSType os_type;
     private final String connection_string;
 
     private Statement running_statement;
+    // Backend running the statement, used to escalate when a cancel is not enough.
+    private HostSpec running_statement_host;
+    private int running_statement_backend_pid;
+    private final List<Connection> running_copy_connections = new ArrayList<>();
     private Process running_process;
-    private Long start_time;
+    private ShellWorker running_worker;
+    private ResourceSampler resource_sampler;
+    private volatile Long start_time;
     private List<DatabaseAuth> db_auth = new ArrayList<>();
-    private File tmp_file_script;
+    // Extension of the script of a batch step, which is written to the script cache when the step runs.
+    private String script_extension;
     private final Object lockObj = new Object();
 
     /*
@@ -65,24 +94,50 @@ public class JobStep implements CancellableRunnable
     private Boolean run_in_parallel = false;
     // Timeout setting to abort job if running longer than this value.
     private Long job_step_timeout = null;
+    // Lock timeout to set on the step connection.
+    private Long lock_timeout = null;
+    // Number of rows to fetch at a time when reading results.
+    private Integer fetch_size = null;
     // Database name
     private String database_name = null;
     // Database host
     private String database_host = null;
+    // If true, the step only reads and may be run on a hot standby.
+    private Boolean read_only = false;
     // Database login to use
     private String database_login = null;
     // Database password to use
     private String database_password = null;
     // Database auth query
     private String database_auth_query = null;
+    // Table to copy the results of the step query into, turns the step into a Copy step
+    private String copy_to_table = null;
+    // Database host to copy into
+    private String copy_to_host = null;
+    // Database name to copy into
+    private String copy_to_database = null;
+    // Database login to copy into with
+    private String copy_to_login = null;
+    // Database password to copy into with
+    private String copy_to_password = null;
+    // Format used for the copy
+    private String copy_format = null;
+    // Query to stream into the standard input of a batch step
+    private String batch_input_query = null;
+    // Table to stream the standard output of a batch step into
+    private String batch_output_table = null;
+    // Priority and resource limits to run a batch step with
+    private final BatchResourceLimits batch_limits = new BatchResourceLimits();
+    // Annotations which could not be applied, failing the step rather than running it without them
+    private final List<String> annotation_errors = new ArrayList<>();
     // List of status to send an email on
     private final List<StepStatus> email_on = new ArrayList<>();
     // Email to list
     private String[] email_to = null;
     // Email subject
-    private String email_subject = null;
+    private NotificationTemplate email_subject = NotificationTemplate.compile(null);
     // Email body
-    private String email_body = null;
+    private NotificationTemplate email_body = NotificationTemplate.compile(null);
 
     public JobStep(final Job job, final int step_id, final String step_name, final String step_description, final StepType step_type, final String code, final String connection_string, final String database_name, final OnError on_error) throws Exception
     {
@@ -107,9 +162,14 @@ public class JobStep implements CancellableRunnable
         }
 
         processAnnotations();
-        switch(step_type)
+        if (StepType.SQL.equals(step_type) && copy_to_table != null)
+        {
+            this.step_type = StepType.COPY;
+        }
+        switch(this.step_type)
         {
             case SQL:
+            case COPY:
                 initSql();
                 break;
             case BATCH:
@@ -145,9 +205,9 @@ public class JobStep implements CancellableRunnable
                             db_auth.add(new DatabaseAuth(result.getString(1), result.getString(2)));
                         }
                     }
-                    synchronized (lockObj)
+                    finally
                     {
-                        this.running_statement = null;
+                        clearRunningStatement();
                     }
                 }
             }
@@ -173,138 +233,702 @@ public class JobStep implements CancellableRunnable
             fileExtension = ".sh";
         }
 
-        tmp_file_script = File.createTempFile("pga_", fileExtension, null);
-        tmp_file_script.deleteOnExit();
-        tmp_file_script.setWritable(true);
-        tmp_file_script.setExecutable(true);
-
-        // Replace line breaks for each OS type.
-        code = code.replaceAll("\\r\\n|\\r|\\n", System.getProperty("line.separator"));
-
-        try (final BufferedWriter buffered_writer = new BufferedWriter(new FileWriter(tmp_file_script))) {
-            buffered_writer.write(this.code);
+        if (os_type.equals(OSType.WIN) && !batch_limits.isEmpty())
+        {
+            Config.INSTANCE.logger.warn("Job: {} - Job step: {} - Batch priority and resource limits are not supported on Windows and will be ignored.", this.job.getJobId(), this.step_id);
+            batch_limits.clear();
         }
+
+        script_extension = fileExtension;
     }
 
     private void runSql()
     {
         Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Executing SQL step.", this.job.getJobId(), this.step_id);
-        final StringBuilder string_builder = new StringBuilder();
+        final OutputCapture output_capture = new OutputCapture(false);
         try
         {
+            final boolean shared_connection = job.canShareConnection(this);
             for(DatabaseAuth auth : db_auth)
             {
-                try (Connection connection = Database.INSTANCE.getConnection(getHost(), getDatabase(), auth.getUser(), auth.getPass());
-                     Statement statement = connection.createStatement())
+                if (Thread.currentThread().isInterrupted())
                 {
-                    synchronized (lockObj)
+                    throw new InterruptedException();
+                }
+                final Connection connection;
+                if (shared_connection)
+                {
+                    connection = job.getSharedConnection(getHost(), getDatabase(), auth.getUser(), auth.getPass(), useReplica());
+                }
+                else
+                {
+                    connection = openConnection(auth);
+                }
+                try (Statement statement = connection.createStatement())
+                {
+                    applyServerTimeouts(connection);
+                    if (read_only)
                     {
-                        this.running_statement = statement;
+                        // Behave the same whether the step ended up on a standby or the primary.
+                        statement.execute(Config.INSTANCE.sql.getProperty("sql.jobstep.set_read_only"));
                     }
+                    final BaseConnection base_connection = connection.unwrap(BaseConnection.class);
+                    // Run one at a time, so each statement is timed and its rows can be fetched in batches.
+                    final List<String> sql_statements = SqlStatements.split(code, base_connection.getStandardConformingStrings());
+                    // Statements sent together run in one transaction, which is kept when running them one at a time.
+                    final boolean single_transaction = fetch_size != null || sql_statements.size() > 1;
                     Config.INSTANCE.logger.debug("Job: {} - Job step: {} - SQL step starting for DatabaseAuth: {}.", this.job.getJobId(), this.step_id, auth.getUser());
-                    string_builder.append("Step starting for DatabaseAuth: " + auth.getUser());
-                    string_builder.append(System.getProperty("line.separator"));
-                    statement.execute(code);
-                    synchronized (lockObj)
+                    output_capture.appendLine("sql", "Step starting for DatabaseAuth: " + auth.getUser());
+                    if (single_transaction)
                     {
-                        this.running_statement = null;
+                        // The driver only reads results through a cursor when autocommit is off.
+                        connection.setAutoCommit(false);
+                    }
+                    if (fetch_size != null)
+                    {
+                        statement.setFetchSize(fetch_size);
+                    }
+                    try
+                    {
+                        synchronized (lockObj)
+                        {
+                            this.running_statement = statement;
+                            this.running_statement_host = base_connection.getQueryExecutor().getHostSpec();
+                            this.running_statement_backend_pid = base_connection.getBackendPID();
+                        }
+                        final long execute_start = System.currentTimeMillis();
+                        final Span execute_span = Tracer.INSTANCE.startSpan("execute").setAttribute("db.user", auth.getUser());
+                        try
+                        {
+                            for (int i = 0; i < sql_statements.size(); i++)
+                            {
+                                if (i > 0)
+                                {
+                                    // statement_timeout counts from the start of each statement, so it only holds the budget left for the next one.
+                                    ServerTimeouts.apply(connection, getRemainingTime(), null);
+                                }
+                                final long statement_start = System.currentTimeMillis();
+                                // Notices are added to the output as they arrive, including those raised before an error.
+                                final NoticePump notice_pump = NoticePump.start(statement, warning -> captureWarning(warning, output_capture));
+                                try
+                                {
+                                    captureResults(statement, statement.execute(sql_statements.get(i)), i + 1, statement_start, output_capture);
+                                }
+                                finally
+                                {
+                                    notice_pump.finish();
+                                }
+                            }
+                        }
+                        catch (SQLException e)
+                        {
+                            execute_span.setError(e.getMessage());
+                            throw e;
+                        }
+                        finally
+                        {
+                            execute_span.end();
+                        }
+                        if (single_transaction)
+                        {
+                            connection.commit();
+                        }
+                        output_capture.appendLine("sql", "Step completed for DatabaseAuth: " + auth.getUser() + " in " + (System.currentTimeMillis() - execute_start) + " ms.");
+                    }
+                    finally
+                    {
+                        // Cleared whether the statement succeeded or not, a cancelled statement fails.
+                        clearRunningStatement();
+                        if (single_transaction)
+                        {
+                            restoreAutoCommit(connection);
+                        }
                     }
                     Config.INSTANCE.logger.debug("Job: {} - Job step: {} - SQL step executed successfully for DatabaseAuth: {}.", this.job.getJobId(), this.step_id, auth.getUser());
                 }
+                finally
+                {
+                    if (!shared_connection)
+                    {
+                        connection.close();
+                    }
+                }
             }
-            step_result = new JobStepResult(StepStatus.SUCCEED, 0, string_builder.toString());
+            step_result = new JobStepResult(StepStatus.SUCCEED, 0, output_capture.toString());
         }
         catch (Exception e)
         {
-            string_builder.append(e.getMessage());
-            string_builder.append(System.getProperty("line.separator"));
-            if (e instanceof InterruptedException || Thread.currentThread().isInterrupted())
+            output_capture.appendLine("sql", e.getMessage());
+            step_result = exceptionResult(e, output_capture.toString());
+        }
+    }
+
+    private void runBatch()
+    {
+        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Executing Batch step.", this.job.getJobId(), this.step_id);
+        // The script is only looked up now, and kept from being evicted until the step is done with it.
+        final ScriptCache script_cache;
+        final Path script;
+        try
+        {
+            script_cache = ScriptCache.getInstance();
+            script = script_cache.acquire(code, script_extension);
+        }
+        catch (IOException e)
+        {
+            step_result = exceptionResult(e, e.getMessage());
+            return;
+        }
+        try
+        {
+            runScript(script.toAbsolutePath().toString());
+        }
+        finally
+        {
+            script_cache.release(script);
+        }
+    }
+
+    /**
+     * Runs the script of the batch step, on a worker from the pool if possible.
+     * @param script_path the path to the script
+     */
+    private void runScript(final String script_path)
+    {
+        // Steps which need their own process setup are always started directly.
+        if (os_type.equals(OSType.NIX) && batch_limits.isEmpty() && batch_input_query == null && batch_output_table == null)
+        {
+            final ShellWorkerPool shell_worker_pool = ShellWorkerPool.getInstance();
+            final ShellWorker shell_worker = shell_worker_pool != null ? shell_worker_pool.acquire() : null;
+            if (shell_worker != null)
             {
-                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Step was interrupted and has completed unsuccessfully.", this.job.getJobId(), this.step_id);
-                step_result = new JobStepResult(StepStatus.ABORTED, -1, string_builder.toString());
+                runBatchOnWorker(shell_worker_pool, shell_worker, script_path);
+                return;
             }
-            else
+        }
+        final OutputCapture output_capture = new OutputCapture();
+        StreamPump output_pump = null;
+        StreamPump error_pump = null;
+        Integer process_result = null;
+        Exception exception = null;
+        Path usage_file = null;
+        try
+        {
+            List<String> command = batch_limits.wrapCommand(script_path);
+            final boolean sample_resources = Config.INSTANCE.resource_sample_interval > 0 && ResourceSampler.isSupported();
+            if (sample_resources)
+            {
+                // Processes which exit between two samples are only counted through what their parent reports.
+                usage_file = Files.createTempFile("jpgagent-step", ".usage");
+                command = ResourceSampler.wrapCommand(command, usage_file);
+            }
+            final ProcessBuilder process_builder = new ProcessBuilder(command);
+            synchronized (lockObj) {
+                this.running_process = process_builder.start();
+            }
+            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step started with pid: {}.", this.job.getJobId(), this.step_id, running_process.pid());
+
+            final Process process = this.running_process;
+            if (sample_resources)
             {
-                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Step encountered an exception and has completed unsuccessfully.", this.job.getJobId(), this.step_id);
-                if (on_error.equals(OnError.FAIL))
+                resource_sampler = ResourceSampler.start(process.toHandle(), Config.INSTANCE.resource_sample_interval);
+            }
+            error_pump = StreamPump.start(process.getErrorStream(), "stderr", output_capture);
+            if (batch_output_table == null)
+            {
+                output_pump = StreamPump.start(process.getInputStream(), "stdout", output_capture);
+            }
+            Future<Long> input_future = null;
+            if (batch_input_query != null)
+            {
+                input_future = ExecutionUtil.INSTANCE.submitTask(() -> feedProcessInput(process));
+            }
+
+            if (batch_output_table != null)
+            {
+                final Long rows = loadProcessOutput(process, input_future);
+                if (rows != null)
                 {
-                    step_result = new JobStepResult(StepStatus.FAIL, -1, string_builder.toString());
+                    output_capture.appendLine("jpgagent", "Loaded " + rows + " rows from the step output into " + batch_output_table + ".");
                 }
-                else if (on_error.equals(OnError.IGNORE))
+                else
                 {
-                    step_result = new JobStepResult(StepStatus.IGNORE, -1, string_builder.toString());
+                    output_capture.appendLine("jpgagent", "The step output was not loaded into " + batch_output_table + " because the step failed.");
                 }
-                else if (on_error.equals(OnError.SUCCEED))
+            }
+            // Waiting on the process rather than on its output means an interrupt is noticed right away.
+            process.waitFor();
+            if (input_future != null)
+            {
+                final Long input_rows = CopyStreams.awaitInput(process, input_future);
+                if (input_rows != null)
+                {
+                    output_capture.appendLine("jpgagent", "Streamed " + input_rows + " rows into the step input.");
+                }
+                else
                 {
-                    step_result = new JobStepResult(StepStatus.SUCCEED, -1, string_builder.toString());
+                    output_capture.appendLine("jpgagent", "The step exited before reading all of its input, the rest of the input was not streamed.");
+                    Config.INSTANCE.logger.info("Job: {} - Job step: {} - Batch step exited before reading all of its input.", this.job.getJobId(), this.step_id);
                 }
             }
+            process_result = process.exitValue();
         }
+        catch (Exception e)
+        {
+            exception = e;
+            // Nothing may be reading the output of the process any more, which would leave it blocked forever.
+            synchronized (lockObj)
+            {
+                if (running_process != null && running_process.isAlive())
+                {
+                    terminateProcess(running_process);
+                }
+            }
+        }
+        finally
+        {
+            if (output_pump != null)
+            {
+                output_pump.finish();
+            }
+            if (error_pump != null)
+            {
+                error_pump.finish();
+            }
+            if (resource_sampler != null)
+            {
+                resource_sampler.finish(ResourceSampler.Usage.read(usage_file));
+                output_capture.appendLine("jpgagent", resource_sampler.toString());
+                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - {}", this.job.getJobId(), this.step_id, resource_sampler);
+            }
+            if (usage_file != null)
+            {
+                try
+                {
+                    Files.deleteIfExists(usage_file);
+                }
+                catch (IOException e)
+                {
+                    Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Unable to delete {}. Message: {}", this.job.getJobId(), this.step_id, usage_file, e.getMessage());
+                }
+            }
+        }
+
+        step_result = batchResult(exception, process_result, output_capture);
     }
 
-    private void runBatch()
+    /**
+     * Runs the batch step on a worker from the pool, which saves starting a process for the script from the JVM.
+     * Standard error of the script is merged into its standard output.
+     * @param shell_worker_pool the pool the worker belongs to
+     * @param shell_worker the worker to run the script on
+     * @param script_path the path to the script
+     */
+    private void runBatchOnWorker(final ShellWorkerPool shell_worker_pool, final ShellWorker shell_worker, final String script_path)
     {
-        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Executing Batch step.", this.job.getJobId(), this.step_id);
-        final StringBuilder string_builder = new StringBuilder();
+        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step starting on worker with pid: {}.", this.job.getJobId(), this.step_id, shell_worker.toHandle().pid());
+        final OutputCapture output_capture = new OutputCapture();
+        Integer process_result = null;
+        Exception exception = null;
+        synchronized (lockObj)
+        {
+            this.running_worker = shell_worker;
+        }
+        if (Config.INSTANCE.resource_sample_interval > 0 && ResourceSampler.isSupported())
+        {
+            resource_sampler = ResourceSampler.startDescendants(shell_worker.toHandle(), Config.INSTANCE.resource_sample_interval);
+        }
         try
         {
-            final ProcessBuilder process_builder = new ProcessBuilder(tmp_file_script.getAbsolutePath());
-            synchronized (lockObj) {
-                this.running_process = process_builder.start();
+            process_result = shell_worker.run(script_path, output_capture);
+            // Reading from the worker can not be interrupted, a cancelled script is killed instead.
+            if (Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+        catch (Exception e)
+        {
+            exception = e;
+        }
+        finally
+        {
+            synchronized (lockObj)
+            {
+                this.running_worker = null;
             }
-            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step started.", this.job.getJobId(), this.step_id);
-            //TODO: When targeting 9+ we should use the below to provide better info
-            //Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step started with pid: {}.", this.job.getJobId(), this.step_id, running_process.pid());
+            // Read before the worker is released, as the next script run on it replaces the usage.
+            final ResourceSampler.Usage usage = shell_worker.getLastRunUsage();
+            shell_worker_pool.release(shell_worker);
+            if (resource_sampler != null)
+            {
+                resource_sampler.finish(usage);
+                output_capture.appendLine("jpgagent", resource_sampler.toString());
+                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - {}", this.job.getJobId(), this.step_id, resource_sampler);
+            }
+        }
+        step_result = batchResult(exception, process_result, output_capture);
+    }
 
-            try (final BufferedReader buffered_reader_out = new BufferedReader(new InputStreamReader(this.running_process.getInputStream()))) {
-                String line;
-                // Get normal output.
-                while ((line = buffered_reader_out.readLine()) != null && !Thread.currentThread().isInterrupted()) {
-                    string_builder.append(line);
+    /**
+     * @param exception the exception the step failed with, if any
+     * @param process_result the exit code of the script
+     * @param output_capture the output of the step
+     * @return the result of a batch step
+     */
+    private JobStepResult batchResult(final Exception exception, final Integer process_result, final OutputCapture output_capture)
+    {
+        final JobStepResult step_result;
+        if (exception != null)
+        {
+            step_result = exceptionResult(exception, output_capture.toString());
+        }
+        else if (process_result == 0)
+        {
+            step_result = new JobStepResult(StepStatus.SUCCEED, process_result, output_capture.toString());
+            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step completed successfully.", this.job.getJobId(), this.step_id);
+        }
+        else
+        {
+            step_result = new JobStepResult(StepStatus.FAIL, process_result, output_capture.toString());
+            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step completed unsuccessfully.", this.job.getJobId(), this.step_id);
+        }
+        return step_result;
+    }
+
+    private void runCopy()
+    {
+        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Executing Copy step.", this.job.getJobId(), this.step_id);
+        final StringBuilder string_builder = new StringBuilder();
+        try
+        {
+            final String copy_in_sql = "COPY " + copy_to_table + " FROM STDIN" + getCopyFormatOption();
+            for(DatabaseAuth auth : db_auth)
+            {
+                final String target_user = copy_to_login != null ? copy_to_login : auth.getUser();
+                final String target_password = copy_to_login != null || copy_to_password != null ? copy_to_password : auth.getPass();
+                try (Connection source_connection = openConnection(auth);
+                     Connection target_connection = Database.INSTANCE.getConnection(getCopyToHost(), getCopyToDatabase(), target_user, target_password))
+                {
+                    applyServerTimeouts(source_connection);
+                    applyServerTimeouts(target_connection);
+                    trackCopyConnection(source_connection);
+                    trackCopyConnection(target_connection);
+                    Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Copy step starting for DatabaseAuth: {}.", this.job.getJobId(), this.step_id, auth.getUser());
+                    string_builder.append("Step starting for DatabaseAuth: " + auth.getUser());
                     string_builder.append(System.getProperty("line.separator"));
-                }
-            }
-            this.running_process.waitFor();
 
-            int process_result = running_process.exitValue();
-            switch (process_result) {
-                case 0: {
-                    step_result = new JobStepResult(StepStatus.SUCCEED, process_result, string_builder.toString());
-                    Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step completed successfully.", this.job.getJobId(), this.step_id);
-                    break;
-                }
-                case 1:
-                default: {
-                    step_result = new JobStepResult(StepStatus.FAIL, process_result, string_builder.toString());
-                    Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Batch step completed unsuccessfully.", this.job.getJobId(), this.step_id);
-                    break;
+                    final long copy_start = System.currentTimeMillis();
+                    final CopyOut copy_out = source_connection.unwrap(PGConnection.class).getCopyAPI().copyOut(getCopyOutSql(source_connection, code));
+                    CopyIn copy_in = null;
+                    final long bytes;
+                    final long rows;
+                    try
+                    {
+                        copy_in = target_connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copy_in_sql);
+                        // Each row is written to the target as soon as it is read, so only a single row is held at a time.
+                        bytes = CopyStreams.copy(copy_out, copy_in);
+                        rows = copy_in.endCopy();
+                    }
+                    catch (Exception e)
+                    {
+                        cancelCopy(copy_in);
+                        cancelCopy(copy_out);
+                        throw e;
+                    }
+                    finally
+                    {
+                        untrackCopyConnection(source_connection);
+                        untrackCopyConnection(target_connection);
+                    }
+                    final long copy_time = Math.max(1, System.currentTimeMillis() - copy_start);
+                    string_builder.append(String.format("Copied %d rows (%d bytes) into %s in %d ms (%.0f rows/s, %.2f MB/s).",
+                            rows, bytes, copy_to_table, copy_time, rows * 1000.0 / copy_time, bytes / 1048.576 / copy_time));
+                    string_builder.append(System.getProperty("line.separator"));
+                    Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Copy step executed successfully for DatabaseAuth: {}.", this.job.getJobId(), this.step_id, auth.getUser());
                 }
             }
+            step_result = new JobStepResult(StepStatus.SUCCEED, 0, string_builder.toString());
         }
         catch (Exception e)
         {
-            if (e instanceof InterruptedException || Thread.currentThread().isInterrupted())
+            string_builder.append(e.getMessage());
+            string_builder.append(System.getProperty("line.separator"));
+            step_result = exceptionResult(e, string_builder.toString());
+        }
+    }
+
+    /**
+     * @param connection the connection the query runs on
+     * @param query the query to copy the results of, which may end with a semicolon
+     * @return the statement copying the results of the query to the client
+     * @throws SQLException if the query is not a single statement
+     */
+    private String getCopyOutSql(final Connection connection, final String query) throws SQLException
+    {
+        final String single_query;
+        try
+        {
+            single_query = SqlStatements.single(query, connection.unwrap(BaseConnection.class).getStandardConformingStrings());
+        }
+        catch (SQLException e)
+        {
+            throw new SQLException("The query to copy from must be a single statement. " + e.getMessage(), e);
+        }
+        // The line break keeps the closing parenthesis out of a line comment ending the query.
+        return "COPY (" + single_query + "\n) TO STDOUT" + getCopyFormatOption();
+    }
+
+    /**
+     * Streams the results of the input query into the standard input of the process, closing it once done.
+     * The pipe to the process provides the back pressure, so only a single row is held at a time.
+     * @param process the process to write to
+     * @return the number of rows written
+     * @throws Exception
+     */
+    private long feedProcessInput(final Process process) throws Exception
+    {
+        try (Connection connection = openBatchConnection();
+             OutputStream output = process.getOutputStream())
+        {
+            applyServerTimeouts(connection);
+            trackCopyConnection(connection);
+            final CopyOut copy_out = connection.unwrap(PGConnection.class).getCopyAPI().copyOut(getCopyOutSql(connection, batch_input_query));
+            try
             {
-                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Step was interrupted and has completed unsuccessfully.", this.job.getJobId(), this.step_id);
-                step_result = new JobStepResult(StepStatus.ABORTED, -1, string_builder.toString());
+                return CopyStreams.copy(copy_out, output);
             }
-            else
+            catch (Exception e)
+            {
+                cancelCopy(copy_out);
+                throw e;
+            }
+            finally
+            {
+                untrackCopyConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Streams the standard output of the process into the output table.
+     * The rows are only committed if the process, and the input feeding it if any, completed successfully.
+     * @param process the process to read from
+     * @param input_future the task feeding the standard input of the process, may be null
+     * @return the number of rows loaded, or null if they were discarded because the process failed
+     * @throws Exception
+     */
+    private Long loadProcessOutput(final Process process, final Future<Long> input_future) throws Exception
+    {
+        try (Connection connection = openBatchConnection())
+        {
+            applyServerTimeouts(connection);
+            trackCopyConnection(connection);
+            final CopyIn copy_in = connection.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY " + batch_output_table + " FROM STDIN" + getCopyFormatOption());
+            try
             {
-                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Step encountered an exception and has completed unsuccessfully.", this.job.getJobId(), this.step_id);
-                if (on_error.equals(OnError.FAIL))
+                try (InputStream input = process.getInputStream())
                 {
-                    step_result = new JobStepResult(StepStatus.FAIL, -1, string_builder.toString());
+                    CopyStreams.copy(input, copy_in);
                 }
-                else if (on_error.equals(OnError.IGNORE))
+                process.waitFor();
+                if (input_future != null)
+                {
+                    CopyStreams.awaitInput(process, input_future);
+                }
+                if (process.exitValue() != 0)
+                {
+                    cancelCopy(copy_in);
+                    return null;
+                }
+                return copy_in.endCopy();
+            }
+            catch (Exception e)
+            {
+                cancelCopy(copy_in);
+                throw e;
+            }
+            finally
+            {
+                untrackCopyConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection for a batch step to stream its input or output through.
+     * @return the connection, which the caller must close
+     * @throws SQLException
+     */
+    private Connection openBatchConnection() throws SQLException
+    {
+        final String database = database_name == null || database_name.isEmpty() ? Config.INSTANCE.db_database : database_name;
+        if (database_login != null || database_password != null)
+        {
+            return Database.INSTANCE.getConnection(getHost(), database, database_login, database_password);
+        }
+        return Database.INSTANCE.getConnection(getHost(), database, Config.INSTANCE.db_user, Config.INSTANCE.db_password);
+    }
+
+    /**
+     * @return the WITH clause for the copy format, or an empty string for the default format
+     */
+    private String getCopyFormatOption()
+    {
+        return copy_format != null ? " WITH (FORMAT " + copy_format + ")" : "";
+    }
+
+    private void trackCopyConnection(final Connection connection)
+    {
+        synchronized (lockObj)
+        {
+            running_copy_connections.add(connection);
+        }
+    }
+
+    private void untrackCopyConnection(final Connection connection)
+    {
+        synchronized (lockObj)
+        {
+            running_copy_connections.remove(connection);
+        }
+    }
+
+    /**
+     * Cancels a copy operation that is still in progress, ignoring any errors.
+     * @param copy_operation the copy operation, may be null
+     */
+    private void cancelCopy(final CopyOperation copy_operation)
+    {
+        try
+        {
+            if (copy_operation != null && copy_operation.isActive())
+            {
+                copy_operation.cancelCopy();
+            }
+        }
+        catch (SQLException e)
+        {
+            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Error cancelling copy. Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
+        }
+    }
+
+    /**
+     * Builds the result for a step which ended with an exception.
+     * A step killed by a timeout, including a server side one, is treated the same as one cancelled by jpgAgent.
+     * @param e the exception the step ended with
+     * @param output the output of the step
+     * @return the result of the step
+     */
+    private JobStepResult exceptionResult(final Exception e, final String output)
+    {
+        if (e instanceof InterruptedException || Thread.currentThread().isInterrupted() || isTimedOut() || job.isTimedOut())
+        {
+            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Step was interrupted and has completed unsuccessfully.", this.job.getJobId(), this.step_id);
+            return new JobStepResult(StepStatus.ABORTED, -1, output);
+        }
+        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Step encountered an exception and has completed unsuccessfully.", this.job.getJobId(), this.step_id);
+        switch (on_error)
+        {
+            case IGNORE:
+                return new JobStepResult(StepStatus.IGNORE, -1, output);
+            case SUCCEED:
+                return new JobStepResult(StepStatus.SUCCEED, -1, output);
+            case FAIL:
+            default:
+                return new JobStepResult(StepStatus.FAIL, -1, output);
+        }
+    }
+
+    /**
+     * Walks every result produced by a statement of the step code, appending the row count of each one
+     * and the time taken to the step output.
+     * Rows of a result set are counted and discarded rather than kept in memory.
+     * @param statement the statement which was executed
+     * @param is_result_set the value returned from {@link Statement#execute(String)}
+     * @param statement_number the position of the statement in the step code, from 1
+     * @param statement_start the time (ms since the epoch) the statement was sent
+     * @param output_capture the step output
+     * @throws SQLException
+     * @throws InterruptedException if the step was interrupted while reading results
+     */
+    private void captureResults(final Statement statement, boolean is_result_set, final int statement_number, final long statement_start, final OutputCapture output_capture) throws SQLException, InterruptedException
+    {
+        final List<String> result_descriptions = new ArrayList<>();
+        while (true)
+        {
+            if (is_result_set)
+            {
+                long row_count = 0;
+                try (ResultSet result_set = statement.getResultSet())
                 {
-                    step_result = new JobStepResult(StepStatus.IGNORE, -1, string_builder.toString());
+                    while (result_set.next())
+                    {
+                        row_count++;
+                        if (Thread.currentThread().isInterrupted())
+                        {
+                            throw new InterruptedException();
+                        }
+                    }
                 }
-                else if (on_error.equals(OnError.SUCCEED))
+                result_descriptions.add(row_count + " rows returned");
+            }
+            else
+            {
+                final int update_count = statement.getUpdateCount();
+                if (update_count == -1)
                 {
-                    step_result = new JobStepResult(StepStatus.SUCCEED, -1, string_builder.toString());
+                    // No more results.
+                    break;
                 }
+                result_descriptions.add(update_count + " rows affected");
             }
+            is_result_set = statement.getMoreResults();
         }
+        output_capture.appendLine("sql", "Statement " + statement_number + ": " + String.join(", ", result_descriptions) + " (" + (System.currentTimeMillis() - statement_start) + " ms).");
+    }
+
+    /**
+     * Appends a notice or warning raised by the step code to the step output.
+     * @param warning the warning
+     * @param output_capture the step output
+     */
+    private void captureWarning(final SQLWarning warning, final OutputCapture output_capture)
+    {
+        String severity = "WARNING";
+        if (warning instanceof PSQLWarning && ((PSQLWarning) warning).getServerErrorMessage() != null)
+        {
+            severity = ((PSQLWarning) warning).getServerErrorMessage().getSeverity();
+        }
+        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - {}: {}", this.job.getJobId(), this.step_id, severity, warning.getMessage());
+        output_capture.appendLine("sql", severity + ": " + warning.getMessage());
+    }
+
+    /**
+     * Rolls back anything left uncommitted and puts the connection back into autocommit mode.
+     * @param connection the connection to restore
+     */
+    private void restoreAutoCommit(final Connection connection)
+    {
+        try
+        {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+        catch (SQLException e)
+        {
+            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Unable to restore autocommit. Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
+        }
+    }
+
+    /**
+     * Pushes the remaining time budget of the step and job, and the lock timeout, to the server.
+     * @param connection the connection the step will run on
+     * @throws SQLException
+     */
+    public void applyServerTimeouts(final Connection connection) throws SQLException
+    {
+        ServerTimeouts.apply(connection, getRemainingTime(), lock_timeout);
     }
 
     /**
@@ -312,40 +936,93 @@ public class JobStep implements CancellableRunnable
      */
     public void run()
     {
+        final StepRunEvent step_event = new StepRunEvent();
+        step_event.begin();
         this.start_time = System.currentTimeMillis();
+        job.recordStepStart(start_time);
         // Insert the job step log and get the id
-        this.job_step_log_id = JobStepLog.startLog(job.getJobLogId(), step_id);
-
-        switch (step_type)
+        final Span step_span = Tracer.INSTANCE.startSpan("step", job.getSpan())
+                .setAttribute("jpgagent.step.id", step_id)
+                .setAttribute("jpgagent.step.name", step_name)
+                .setAttribute("jpgagent.step.type", step_type.name());
+        try (Span.Scope step_scope = step_span.makeCurrent())
         {
-            case SQL:
+            this.job_step_log_id = JobStepLog.startLog(job.getJobLogId(), step_id);
+
+            final Span run_span = Tracer.INSTANCE.startSpan(step_type.name().toLowerCase());
+            try (Span.Scope run_scope = run_span.makeCurrent())
             {
-                runSql();
-                break;
+                if (!annotation_errors.isEmpty())
+                {
+                    step_result = new JobStepResult(StepStatus.FAIL, -1, String.join(System.getProperty("line.separator"), annotation_errors));
+                }
+                else
+                {
+                    switch (step_type)
+                    {
+                        case SQL:
+                        {
+                            runSql();
+                            break;
+                        }
+                        case BATCH:
+                        {
+                            runBatch();
+                            break;
+                        }
+                        case COPY:
+                        {
+                            runCopy();
+                            break;
+                        }
+                    }
+                }
             }
-            case BATCH:
+            finally
             {
-                runBatch();
-                break;
+                run_span.end();
+            }
+            // Update the job step log record with the result of the job step.
+            JobStepLog.finishLog(job_step_log_id, step_result);
+        }
+        finally
+        {
+            if (step_result != null && StepStatus.FAIL.equals(step_result.getStepStatus()))
+            {
+                step_span.setError(step_result.getStepStatus().name());
             }
+            step_span.setAttribute("jpgagent.step.status", step_result != null ? step_result.getStepStatus().name() : null).end();
+        }
+        recordMetrics();
+        step_event.end();
+        if (step_event.shouldCommit())
+        {
+            step_event.job_id = job.getJobId();
+            step_event.step_id = step_id;
+            step_event.step_name = step_name;
+            step_event.step_type = step_type.name();
+            step_event.database = StepType.BATCH.equals(step_type) ? "" : getDatabase();
+            step_event.status = step_result.getStepStatus().name();
+            step_event.commit();
         }
-        // Update the job step log record with the result of the job step.
-        JobStepLog.finishLog(job_step_log_id, step_result);
 
         if(email_on.contains(step_result.getStepStatus()))
         {
-            // Token replacement
-            email_subject = email_subject.replaceAll(Config.INSTANCE.status_token, step_result.getStepStatus().name());
-            email_body = email_body.replaceAll(Config.INSTANCE.status_token, step_result.getStepStatus().name());
-
-            email_subject = email_subject.replaceAll(Config.INSTANCE.job_name_token, job.getJobName());
-            email_body = email_body.replaceAll(Config.INSTANCE.job_name_token, job.getJobName());
-
-            email_subject = email_subject.replaceAll(Config.INSTANCE.job_step_name_token, step_name);
-            email_body = email_body.replaceAll(Config.INSTANCE.job_step_name_token, step_name);
+            final Map<String, String> token_values = new HashMap<>();
+            token_values.put(Config.INSTANCE.status_token, step_result.getStepStatus().name());
+            token_values.put(Config.INSTANCE.job_name_token, job.getJobName());
+            token_values.put(Config.INSTANCE.job_step_name_token, step_name);
+            token_values.put(Config.INSTANCE.exit_code_token, Integer.toString(step_result.getStepResult()));
+            token_values.put(Config.INSTANCE.output_tail_token, NotificationTemplate.formatOutputTail(step_result.getStepOutput()));
+            token_values.put(Config.INSTANCE.agent_host_token, Config.INSTANCE.hostname);
+            if (start_time != null)
+            {
+                token_values.put(Config.INSTANCE.start_time_token, NotificationTemplate.formatStartTime(start_time));
+                token_values.put(Config.INSTANCE.duration_token, NotificationTemplate.formatDuration(System.currentTimeMillis() - start_time));
+            }
 
             // Send email
-            EmailUtil.sendEmailFromNoReply(email_to, email_subject, email_body);
+            EmailUtil.sendEmailFromNoReply(email_to, email_subject.render(token_values), email_body.render(token_values));
         }
     }
 
@@ -358,6 +1035,7 @@ public class JobStep implements CancellableRunnable
         try
         {
             Map<String, String> annotations = AnnotationUtil.parseAnnotations(step_description);
+            annotations.putAll(job.getAnnotationOverrides());
             if(annotations.containsKey(JobStepAnnotations.RUN_IN_PARALLEL.name()))
             {
                 run_in_parallel = AnnotationUtil.parseValue(JobStepAnnotations.RUN_IN_PARALLEL, annotations.get(JobStepAnnotations.RUN_IN_PARALLEL.name()), Boolean.class);
@@ -366,6 +1044,14 @@ public class JobStep implements CancellableRunnable
             {
                 job_step_timeout = AnnotationUtil.parseValue(JobStepAnnotations.JOB_STEP_TIMEOUT, annotations.get(JobStepAnnotations.JOB_STEP_TIMEOUT.name()), Long.class);
             }
+            if(annotations.containsKey(JobStepAnnotations.LOCK_TIMEOUT.name()))
+            {
+                lock_timeout = AnnotationUtil.parseValue(JobStepAnnotations.LOCK_TIMEOUT, annotations.get(JobStepAnnotations.LOCK_TIMEOUT.name()), Long.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.FETCH_SIZE.name()))
+            {
+                fetch_size = AnnotationUtil.parseValue(JobStepAnnotations.FETCH_SIZE, annotations.get(JobStepAnnotations.FETCH_SIZE.name()), Integer.class);
+            }
             if(annotations.containsKey(JobStepAnnotations.DATABASE_NAME.name()))
             {
                 database_name = AnnotationUtil.parseValue(JobStepAnnotations.DATABASE_NAME, annotations.get(JobStepAnnotations.DATABASE_NAME.name()), String.class);
@@ -374,6 +1060,10 @@ public class JobStep implements CancellableRunnable
             {
                 database_host = AnnotationUtil.parseValue(JobStepAnnotations.DATABASE_HOST, annotations.get(JobStepAnnotations.DATABASE_HOST.name()), String.class);
             }
+            if(annotations.containsKey(JobStepAnnotations.READ_ONLY.name()))
+            {
+                read_only = AnnotationUtil.parseValue(JobStepAnnotations.READ_ONLY, annotations.get(JobStepAnnotations.READ_ONLY.name()), Boolean.class);
+            }
             if(annotations.containsKey(JobStepAnnotations.DATABASE_LOGIN.name()))
             {
                 database_login = AnnotationUtil.parseValue(JobStepAnnotations.DATABASE_LOGIN, annotations.get(JobStepAnnotations.DATABASE_LOGIN.name()), String.class);
@@ -386,6 +1076,48 @@ public class JobStep implements CancellableRunnable
             {
                 database_auth_query = AnnotationUtil.parseValue(JobStepAnnotations.DATABASE_AUTH_QUERY, annotations.get(JobStepAnnotations.DATABASE_AUTH_QUERY.name()), String.class);
             }
+            if(annotations.containsKey(JobStepAnnotations.COPY_TO_TABLE.name()))
+            {
+                copy_to_table = AnnotationUtil.parseValue(JobStepAnnotations.COPY_TO_TABLE, annotations.get(JobStepAnnotations.COPY_TO_TABLE.name()), String.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.COPY_TO_HOST.name()))
+            {
+                copy_to_host = AnnotationUtil.parseValue(JobStepAnnotations.COPY_TO_HOST, annotations.get(JobStepAnnotations.COPY_TO_HOST.name()), String.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.COPY_TO_DATABASE.name()))
+            {
+                copy_to_database = AnnotationUtil.parseValue(JobStepAnnotations.COPY_TO_DATABASE, annotations.get(JobStepAnnotations.COPY_TO_DATABASE.name()), String.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.COPY_TO_LOGIN.name()))
+            {
+                copy_to_login = AnnotationUtil.parseValue(JobStepAnnotations.COPY_TO_LOGIN, annotations.get(JobStepAnnotations.COPY_TO_LOGIN.name()), String.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.COPY_TO_PASSWORD.name()))
+            {
+                copy_to_password = AnnotationUtil.parseValue(JobStepAnnotations.COPY_TO_PASSWORD, annotations.get(JobStepAnnotations.COPY_TO_PASSWORD.name()), String.class);
+            }
+            processRequired(annotations, JobStepAnnotations.COPY_FORMAT, String.class, format ->
+            {
+                if (!format.matches("(?i)text|csv|binary"))
+                {
+                    throw new IllegalArgumentException("Unsupported copy format: " + format);
+                }
+                copy_format = format;
+            });
+            if(annotations.containsKey(JobStepAnnotations.BATCH_INPUT_QUERY.name()))
+            {
+                batch_input_query = AnnotationUtil.parseValue(JobStepAnnotations.BATCH_INPUT_QUERY, annotations.get(JobStepAnnotations.BATCH_INPUT_QUERY.name()), String.class);
+            }
+            if(annotations.containsKey(JobStepAnnotations.BATCH_OUTPUT_TABLE.name()))
+            {
+                batch_output_table = AnnotationUtil.parseValue(JobStepAnnotations.BATCH_OUTPUT_TABLE, annotations.get(JobStepAnnotations.BATCH_OUTPUT_TABLE.name()), String.class);
+            }
+            processRequired(annotations, JobStepAnnotations.BATCH_NICE, Integer.class, batch_limits::setNice);
+            processRequired(annotations, JobStepAnnotations.BATCH_IONICE_CLASS, String.class, batch_limits::setIoniceClass);
+            processRequired(annotations, JobStepAnnotations.BATCH_IONICE_LEVEL, Integer.class, batch_limits::setIoniceLevel);
+            processRequired(annotations, JobStepAnnotations.BATCH_LIMIT_ADDRESS_SPACE, Long.class, batch_limits::setAddressSpace);
+            processRequired(annotations, JobStepAnnotations.BATCH_LIMIT_OPEN_FILES, Integer.class, batch_limits::setOpenFiles);
+            processRequired(annotations, JobStepAnnotations.BATCH_LIMIT_CPU_SECONDS, Long.class, batch_limits::setCpuSeconds);
             if(annotations.containsKey(JobStepAnnotations.EMAIL_ON.name()))
             {
                 for(String email_on_string : AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_ON, annotations.get(JobStepAnnotations.EMAIL_ON.name()), String.class).split(";"))
@@ -399,11 +1131,11 @@ public class JobStep implements CancellableRunnable
             }
             if(annotations.containsKey(JobStepAnnotations.EMAIL_SUBJECT.name()))
             {
-                email_subject = AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_SUBJECT, annotations.get(JobStepAnnotations.EMAIL_SUBJECT.name()), String.class);
+                email_subject = NotificationTemplate.compile(AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_SUBJECT, annotations.get(JobStepAnnotations.EMAIL_SUBJECT.name()), String.class));
             }
             if(annotations.containsKey(JobStepAnnotations.EMAIL_BODY.name()))
             {
-                email_body = AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_BODY, annotations.get(JobStepAnnotations.EMAIL_BODY.name()), String.class);
+                email_body = NotificationTemplate.compile(AnnotationUtil.parseValue(JobStepAnnotations.EMAIL_BODY, annotations.get(JobStepAnnotations.EMAIL_BODY.name()), String.class));
             }
         }
         catch (Exception e)
@@ -413,6 +1145,37 @@ public class JobStep implements CancellableRunnable
         Config.INSTANCE.logger.debug("Job: {} - Job step: {} - JobStep instantiation complete.", this.job.getJobId(), this.step_id);
     }
 
+    /**
+     * Applies an annotation which the step must not run without. If the value is invalid, the error is kept to fail the
+     * step with, and the rest of the annotations are still processed.
+     * @param annotations the annotations of the step, by name
+     * @param annotation the annotation to apply, if present
+     * @param type the type of its value
+     * @param setter applies the value, throwing IllegalArgumentException if it is out of range
+     */
+    private <T> void processRequired(final Map<String, String> annotations, final JobStepAnnotations annotation, final Class<T> type, final Consumer<T> setter)
+    {
+        if (!annotations.containsKey(annotation.name()))
+        {
+            return;
+        }
+        final String value = annotations.get(annotation.name());
+        try
+        {
+            final T parsed_value = AnnotationUtil.parseValue(annotation, value, type);
+            if (parsed_value == null)
+            {
+                throw new IllegalArgumentException("Unable to parse " + value);
+            }
+            setter.accept(parsed_value);
+        }
+        catch (IllegalArgumentException e)
+        {
+            annotation_errors.add("Invalid @" + annotation.name() + ": " + e.getMessage());
+            Config.INSTANCE.logger.error("Job: {} - Job step: {} - Invalid @{}, the step will fail. Message: {}", this.job.getJobId(), this.step_id, annotation.name(), e.getMessage());
+        }
+    }
+
     /**
      * @return the host of the database to connect to for a SQL step
      */
@@ -428,6 +1191,47 @@ public class JobStep implements CancellableRunnable
         }
     }
 
+    /**
+     * Opens a new connection for the step with the credentials passed in.
+     * @param auth the credentials to connect with
+     * @return the connection, which the caller must close
+     * @throws SQLException
+     */
+    private Connection openConnection(final DatabaseAuth auth) throws SQLException
+    {
+        if (useReplica())
+        {
+            return Database.INSTANCE.getReadOnlyConnection(getDatabase(), auth.getUser(), auth.getPass());
+        }
+        return Database.INSTANCE.getConnection(getHost(), getDatabase(), auth.getUser(), auth.getPass());
+    }
+
+    /**
+     * @return the host of the database to copy into for a Copy step
+     */
+    private String getCopyToHost()
+    {
+        return copy_to_host != null ? copy_to_host : getHost();
+    }
+
+    /**
+     * @return the name of the database to copy into for a Copy step
+     */
+    private String getCopyToDatabase()
+    {
+        return copy_to_database != null ? copy_to_database : getDatabase();
+    }
+
+    /**
+     * A read only step is routed to a hot standby when standbys are configured,
+     * unless it has been pointed at a specific host.
+     * @return if the step should connect to a hot standby
+     */
+    public boolean useReplica()
+    {
+        return read_only && database_host == null && Database.INSTANCE.hasReplicaHosts();
+    }
+
     /**
      * @return the name of the database to connect to for a SQL step
      */
@@ -452,12 +1256,39 @@ public class JobStep implements CancellableRunnable
         }
     }
 
+    /**
+     * Returns the time left before either the step or the job times out.
+     * @return the remaining time in ms, or null if neither the step nor the job has a timeout
+     */
+    private Long getRemainingTime()
+    {
+        Long remaining_time = job.getRemainingTime();
+        if(null != job_step_timeout && null != start_time)
+        {
+            final long step_remaining_time = job_step_timeout - (System.currentTimeMillis() - start_time);
+            if (remaining_time == null || step_remaining_time < remaining_time)
+            {
+                remaining_time = step_remaining_time;
+            }
+        }
+        return remaining_time;
+    }
+
     /**
      * Should stop any long running process the thread was doing to exit gracefully as quickly as possible.
      */
     @Override
     public void cancelTask()
     {
+        final CancelEvent cancel_event = new CancelEvent();
+        if (cancel_event.shouldCommit())
+        {
+            cancel_event.job_id = job.getJobId();
+            cancel_event.step_id = step_id;
+            cancel_event.step_type = step_type.name();
+            cancel_event.timed_out = isTimedOut() || job.isTimedOut();
+            cancel_event.commit();
+        }
         synchronized (lockObj)
         {
             switch (step_type)
@@ -471,11 +1302,42 @@ public class JobStep implements CancellableRunnable
                             Config.INSTANCE.logger.error("Job: {} - Job step: {} - There was an error canceling the job step.", this.job.getJobId(), this.step_id);
                             Config.INSTANCE.logger.error("Job: {} - Job step: {} - Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
                         }
+                        if (running_statement_host != null)
+                        {
+                            escalateStatementCancel(running_statement, running_statement_host, running_statement_backend_pid);
+                        }
+                    }
+                    break;
+                case COPY:
+                    if (!running_copy_connections.isEmpty()) {
+                        for (Connection connection : running_copy_connections) {
+                            try {
+                                connection.unwrap(PGConnection.class).cancelQuery();
+                            } catch (SQLException e) {
+                                Config.INSTANCE.logger.error("Job: {} - Job step: {} - There was an error canceling the job step.", this.job.getJobId(), this.step_id);
+                                Config.INSTANCE.logger.error("Job: {} - Job step: {} - Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
+                            }
+                        }
+                        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - cancelled.", this.job.getJobId(), this.step_id);
                     }
                     break;
                 case BATCH:
+                    for (Connection connection : running_copy_connections) {
+                        try {
+                            connection.unwrap(PGConnection.class).cancelQuery();
+                        } catch (SQLException e) {
+                            Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Error cancelling copy. Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
+                        }
+                    }
                     if (running_process != null) {
-                        running_process.destroyForcibly();
+                        terminateProcess(running_process);
+                        Config.INSTANCE.logger.debug("Job: {} - Job step: {} - cancelled.", this.job.getJobId(), this.step_id);
+                    }
+                    else if (running_worker != null) {
+                        // Only the script is stopped, the worker stays in the pool.
+                        final List<ProcessHandle> process_tree = new ArrayList<>();
+                        running_worker.toHandle().descendants().forEach(process_tree::add);
+                        terminateProcessTree(process_tree);
                         Config.INSTANCE.logger.debug("Job: {} - Job step: {} - cancelled.", this.job.getJobId(), this.step_id);
                     }
                     break;
@@ -483,6 +1345,163 @@ public class JobStep implements CancellableRunnable
         }
     }
 
+    /**
+     * Records the outcome, duration and resource usage of the step.
+     */
+    private void recordMetrics()
+    {
+        final MetricsRegistry registry = MetricsRegistry.INSTANCE;
+        final String job_name = job.getJobName();
+        registry.counter("steps_finished_total", "Job steps finished, by type and status.", "type", step_type.name(), "status", step_result.getStepStatus().name()).inc();
+        registry.histogram("step_duration_seconds", "Time taken running job steps.", "job", job_name, "step", step_name).observeSince(start_time);
+        if (resource_sampler != null)
+        {
+            registry.counter("step_cpu_seconds_total", "CPU time used by batch steps.", "job", job_name, "step", step_name).add(resource_sampler.getCpuTime() / 1000.0);
+            registry.counter("step_read_bytes_total", "Bytes read from storage by batch steps.", "job", job_name, "step", step_name).add(resource_sampler.getReadBytes());
+            registry.counter("step_write_bytes_total", "Bytes written to storage by batch steps.", "job", job_name, "step", step_name).add(resource_sampler.getWriteBytes());
+            registry.gauge("step_peak_rss_bytes", "Peak resident memory of the last run of batch steps.", "job", job_name, "step", step_name).set(resource_sampler.getPeakRss());
+        }
+    }
+
+    /**
+     * Terminates the process along with everything it started.
+     * @param process the process to terminate
+     */
+    private void terminateProcess(final Process process)
+    {
+        final List<ProcessHandle> process_tree = new ArrayList<>();
+        process.descendants().forEach(process_tree::add);
+        process_tree.add(process.toHandle());
+        terminateProcessTree(process_tree);
+    }
+
+    /**
+     * Sends SIGTERM to every process of the tree, then kills any of them still running
+     * after the grace period with SIGKILL. The grace period is waited out in the background.
+     * @param process_tree the processes to terminate, collected up front as descendants can no longer be found once their parent exits
+     */
+    private void terminateProcessTree(final List<ProcessHandle> process_tree)
+    {
+        for (ProcessHandle process_handle : process_tree)
+        {
+            process_handle.destroy();
+        }
+
+        ExecutionUtil.INSTANCE.submitTask(() ->
+        {
+            try
+            {
+                final long deadline = System.currentTimeMillis() + Config.INSTANCE.kill_grace_period;
+                for (ProcessHandle process_handle : process_tree)
+                {
+                    final long remaining_time = deadline - System.currentTimeMillis();
+                    if (remaining_time > 0)
+                    {
+                        try
+                        {
+                            process_handle.onExit().get(remaining_time, TimeUnit.MILLISECONDS);
+                        }
+                        catch (TimeoutException e)
+                        {
+                            // Killed below.
+                        }
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                Config.INSTANCE.logger.debug("Job: {} - Job step: {} - Error waiting on process tree. Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
+            }
+            for (ProcessHandle process_handle : process_tree)
+            {
+                if (process_handle.isAlive())
+                {
+                    // Anything started during the grace period goes too.
+                    process_handle.descendants().forEach(ProcessHandle::destroyForcibly);
+                    process_handle.destroyForcibly();
+                    Config.INSTANCE.logger.info("Job: {} - Job step: {} - Process {} did not exit after SIGTERM and was killed.", this.job.getJobId(), this.step_id, process_handle.pid());
+                }
+            }
+        });
+    }
+
+    /**
+     * If the statement is still running after the grace period, cancels it with pg_cancel_backend,
+     * and if that does not stop it within another grace period, terminates the backend with pg_terminate_backend.
+     * Runs in the background.
+     * @param statement the statement that was cancelled
+     * @param host the host the statement is running on
+     * @param backend_pid the pid of the backend running the statement
+     */
+    private void escalateStatementCancel(final Statement statement, final HostSpec host, final int backend_pid)
+    {
+        ExecutionUtil.INSTANCE.submitTask(() ->
+        {
+            try
+            {
+                BackendEscalation.escalate(() -> isRunning(statement), () -> Database.INSTANCE.getConnection(host.getHost(), host.getPort(), getDatabase()), backend_pid, Config.INSTANCE.kill_grace_period, this.job.getJobId(), this.step_id);
+            }
+            catch (Exception e)
+            {
+                Config.INSTANCE.logger.error("Job: {} - Job step: {} - There was an error escalating the cancel of the job step.", this.job.getJobId(), this.step_id);
+                Config.INSTANCE.logger.error("Job: {} - Job step: {} - Message: {}", this.job.getJobId(), this.step_id, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @param statement the statement to check
+     * @return true if the step is still running the statement, and so still has its connection open
+     */
+    private boolean isRunning(final Statement statement)
+    {
+        synchronized (lockObj)
+        {
+            return running_statement == statement;
+        }
+    }
+
+    private void clearRunningStatement()
+    {
+        synchronized (lockObj)
+        {
+            this.running_statement = null;
+            this.running_statement_host = null;
+            this.running_statement_backend_pid = 0;
+        }
+    }
+
+    public int getStepId()
+    {
+        return step_id;
+    }
+
+    public String getStepName()
+    {
+        return step_name;
+    }
+
+    public StepType getStepType()
+    {
+        return step_type;
+    }
+
+    /**
+     * @return the annotations which could not be applied, the step fails without running if there are any
+     */
+    public List<String> getAnnotationErrors()
+    {
+        return Collections.unmodifiableList(annotation_errors);
+    }
+
+    /**
+     * @return the time (ms since the epoch) the step started, or null if it has not started
+     */
+    public Long getStartTime()
+    {
+        return start_time;
+    }
+
     /**
      * @return the StepStatus of the JobStep
      */
@@ -491,6 +1510,14 @@ public class JobStep implements CancellableRunnable
         return step_result != null ? step_result.getStepStatus() : null;
     }
 
+    /**
+     * @return the resource usage of a batch step, or null if it was not sampled
+     */
+    public ResourceSampler getResourceUsage()
+    {
+        return resource_sampler;
+    }
+
     /**
      * @return the OnError of the JobStep
      */
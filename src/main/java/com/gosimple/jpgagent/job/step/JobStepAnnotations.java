@@ -31,11 +31,28 @@ public enum JobStepAnnotations implements AnnotationDefinition
 {
     RUN_IN_PARALLEL(Boolean.class),
     JOB_STEP_TIMEOUT(Long.class),
+    LOCK_TIMEOUT(Long.class),
+    FETCH_SIZE(Integer.class),
+    READ_ONLY(Boolean.class),
     DATABASE_NAME(String.class),
     DATABASE_HOST(String.class),
     DATABASE_LOGIN(String.class),
     DATABASE_PASSWORD(String.class),
     DATABASE_AUTH_QUERY(String.class),
+    COPY_TO_TABLE(String.class),
+    COPY_TO_HOST(String.class),
+    COPY_TO_DATABASE(String.class),
+    COPY_TO_LOGIN(String.class),
+    COPY_TO_PASSWORD(String.class),
+    COPY_FORMAT(String.class),
+    BATCH_INPUT_QUERY(String.class),
+    BATCH_OUTPUT_TABLE(String.class),
+    BATCH_NICE(Integer.class),
+    BATCH_IONICE_CLASS(String.class),
+    BATCH_IONICE_LEVEL(Integer.class),
+    BATCH_LIMIT_ADDRESS_SPACE(Long.class),
+    BATCH_LIMIT_OPEN_FILES(Integer.class),
+    BATCH_LIMIT_CPU_SECONDS(Long.class),
     EMAIL_ON(String.class),
     EMAIL_SUBJECT(String.class),
     EMAIL_BODY(String.class),
@@ -24,6 +24,10 @@ package com.gosimple.jpgagent.job.step;
 
 import com.gosimple.jpgagent.Config;
 import com.gosimple.jpgagent.database.Database;
+import com.gosimple.jpgagent.jfr.LogWriteEvent;
+import com.gosimple.jpgagent.job.JobLog;
+import com.gosimple.jpgagent.trace.Span;
+import com.gosimple.jpgagent.trace.Tracer;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -43,6 +47,10 @@ public class JobStepLog
     public static int startLog(final int job_log_id, final int step_id)
     {
         final String log_sql = Config.INSTANCE.sql.getProperty("sql.jobsteplog.start_log");
+        final long log_start = System.nanoTime();
+        final LogWriteEvent log_event = new LogWriteEvent();
+        log_event.begin();
+        final Span log_span = Tracer.INSTANCE.startSpan("log_write");
         Integer job_step_log_id = null;
         try (final PreparedStatement log_statement = Database.INSTANCE.getMainConnection().prepareStatement(log_sql))
         {
@@ -62,6 +70,11 @@ public class JobStepLog
             Config.INSTANCE.logger.error("Could not save job step log to database.");
             Config.INSTANCE.logger.error("Message: " + e.getMessage());
         }
+        if (job_step_log_id != null)
+        {
+            log_event.log_id = job_step_log_id;
+        }
+        JobLog.recordLogWrite("step_start", log_start, log_event, log_span);
 
         // If unable to return a job_step_log_id throw an exception.
         if(job_step_log_id == null)
@@ -75,6 +88,11 @@ public class JobStepLog
     public static void finishLog(final int job_step_log_id, final JobStepResult step_result)
     {
         final String log_sql = Config.INSTANCE.sql.getProperty("sql.jobsteplog.finish_log");
+        final long log_start = System.nanoTime();
+        final LogWriteEvent log_event = new LogWriteEvent();
+        log_event.begin();
+        final Span log_span = Tracer.INSTANCE.startSpan("log_write");
+        log_event.log_id = job_step_log_id;
         try (PreparedStatement update_log_statement = Database.INSTANCE.getMainConnection().prepareStatement(log_sql))
         {
             update_log_statement.setString(1, step_result.getStepStatus().getDbRepresentation());
@@ -88,5 +106,6 @@ public class JobStepLog
             Config.INSTANCE.logger.error("Could not save job step log to database.");
             Config.INSTANCE.logger.error("Message: " + e.getMessage());
         }
+        JobLog.recordLogWrite("step_finish", log_start, log_event, log_span);
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * Hands on the notices and warnings of a running statement (e.g. RAISE NOTICE) as they arrive.
+ * The driver adds each notice to the warning chain of the statement as soon as it is received, so the chain is
+ * polled on the scheduled pool of {@link ExecutionUtil} while the statement runs, the same as {@link StreamPump}
+ * does for the output of a process.
+ */
+public class NoticePump implements Runnable
+{
+    private static final long POLL_INTERVAL = 100;
+
+    private final Statement statement;
+    private final Consumer<SQLWarning> consumer;
+    // The last warning handed on, the chain is carried on from here.
+    private SQLWarning last_warning;
+    private ScheduledFuture<?> future;
+
+    private NoticePump(final Statement statement, final Consumer<SQLWarning> consumer)
+    {
+        this.statement = statement;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Starts polling the warnings of the statement, which should have none yet.
+     * @param statement the statement about to be executed
+     * @param consumer given each warning once, in the order they were raised
+     * @return the pump, which must be finished once the statement and its results are done
+     */
+    public static NoticePump start(final Statement statement, final Consumer<SQLWarning> consumer)
+    {
+        final NoticePump notice_pump = new NoticePump(statement, consumer);
+        synchronized (notice_pump)
+        {
+            notice_pump.future = ExecutionUtil.INSTANCE.scheduleTask(notice_pump, POLL_INTERVAL);
+        }
+        return notice_pump;
+    }
+
+    @Override
+    public synchronized void run()
+    {
+        try
+        {
+            drain();
+        }
+        catch (SQLException e)
+        {
+            Config.INSTANCE.logger.debug("Error reading statement warnings. Message: {}", e.getMessage());
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Stops polling, hands on the warnings left and clears them from the statement.
+     * Should be called once the statement is done, so nothing is added to the chain while it is cleared.
+     */
+    public synchronized void finish()
+    {
+        future.cancel(false);
+        try
+        {
+            drain();
+            statement.clearWarnings();
+        }
+        catch (SQLException e)
+        {
+            Config.INSTANCE.logger.debug("Error reading statement warnings. Message: {}", e.getMessage());
+        }
+        last_warning = null;
+    }
+
+    /**
+     * Hands on the warnings added since the last drain. The chain is never cleared while the statement runs,
+     * as a notice added between reading and clearing it would be lost.
+     */
+    private void drain() throws SQLException
+    {
+        SQLWarning warning = last_warning != null ? last_warning.getNextWarning() : statement.getWarnings();
+        while (warning != null)
+        {
+            consumer.accept(warning);
+            last_warning = warning;
+            warning = warning.getNextWarning();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Collects the output of a step from one or more streams.
+ * Lines can be tagged with the stream they came from and the time they were read.
+ */
+public class OutputCapture
+{
+    private static final DateTimeFormatter timestamp_formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private final StringBuilder string_builder = new StringBuilder();
+    private final boolean tag_lines;
+
+    /**
+     * Creates a capture which tags lines if --batch-output-tags is set.
+     */
+    public OutputCapture()
+    {
+        this(Config.INSTANCE.batch_output_tags);
+    }
+
+    /**
+     * @param tag_lines if each line is prefixed with the time it was read and the stream it came from
+     */
+    public OutputCapture(final boolean tag_lines)
+    {
+        this.tag_lines = tag_lines;
+    }
+
+    /**
+     * @param tag the stream the line came from
+     * @param line the line, without a line break
+     */
+    public synchronized void appendLine(final String tag, final String line)
+    {
+        if (tag_lines)
+        {
+            string_builder.append('[').append(LocalDateTime.now().format(timestamp_formatter)).append("] [").append(tag).append("] ");
+        }
+        string_builder.append(line);
+        string_builder.append(System.getProperty("line.separator"));
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return string_builder.toString();
+    }
+}
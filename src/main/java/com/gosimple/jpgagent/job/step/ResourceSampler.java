@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Samples the resource usage of a process and all of its descendants from /proc while it runs.
+ * Sampling runs on the scheduled pool of {@link ExecutionUtil}, like {@link StreamPump}.
+ * CPU time and I/O of a process are counted up to the last time it was sampled, so processes that
+ * start and exit between two samples are missed, unless their parent reports what it waited on as {@link Usage}
+ * when the sampler is finished. Only available on Linux.
+ */
+public class ResourceSampler implements Runnable
+{
+    private static final Path proc = Paths.get("/proc");
+    // Runs the command as its child, and once it has waited on it writes the CPU time and I/O of everything it waited
+    // on to the file in $0, as a process is gone from /proc by the time jpgAgent sees it has exited.
+    private static final String USAGE_WRAPPER = "\"$@\"; status=$?; { times; cat /proc/$$/io; } > \"$0\" 2>/dev/null; exit $status";
+
+    private final ProcessHandle root;
+    private final boolean include_root;
+    // Highest values seen for each pid, the counters only ever grow while the process lives.
+    private final Map<Long, Long> cpu_time_map = new HashMap<>();
+    private final Map<Long, Long> read_bytes_map = new HashMap<>();
+    private final Map<Long, Long> write_bytes_map = new HashMap<>();
+    private long peak_rss = 0;
+    private int peak_processes = 0;
+    // Usage of the processes waited on, as reported by their parent once they exited.
+    private Usage reported_usage;
+    private ScheduledFuture<?> future;
+
+    private ResourceSampler(final ProcessHandle root, final boolean include_root)
+    {
+        this.root = root;
+        this.include_root = include_root;
+    }
+
+    /**
+     * @return true if resource usage can be sampled on this system
+     */
+    public static boolean isSupported()
+    {
+        return Files.isDirectory(proc.resolve("self"));
+    }
+
+    /**
+     * Starts sampling the process tree.
+     * @param root the process to sample, along with its descendants
+     * @param interval time (ms) between samples
+     * @return the sampler, which must be finished once the process has exited
+     */
+    public static ResourceSampler start(final ProcessHandle root, final long interval)
+    {
+        return start(new ResourceSampler(root, true), interval);
+    }
+
+    /**
+     * Starts sampling the descendants of a process, but not the process itself.
+     * @param parent the process whose descendants are sampled
+     * @param interval time (ms) between samples
+     * @return the sampler, which must be finished once the descendants have exited
+     */
+    public static ResourceSampler startDescendants(final ProcessHandle parent, final long interval)
+    {
+        return start(new ResourceSampler(parent, false), interval);
+    }
+
+    private static ResourceSampler start(final ResourceSampler resource_sampler, final long interval)
+    {
+        synchronized (resource_sampler)
+        {
+            resource_sampler.sample();
+            resource_sampler.future = ExecutionUtil.INSTANCE.scheduleTask(resource_sampler, interval);
+        }
+        return resource_sampler;
+    }
+
+    @Override
+    public synchronized void run()
+    {
+        sample();
+    }
+
+    /**
+     * Wraps a command so that it reports its resource usage once it exits, to be read with {@link Usage#read}.
+     * @param command the command to run
+     * @param usage_file the file the usage is written to
+     * @return the wrapped command, which exits with the exit code of the command
+     */
+    public static List<String> wrapCommand(final List<String> command, final Path usage_file)
+    {
+        final List<String> wrapped_command = new ArrayList<>();
+        wrapped_command.add("/bin/sh");
+        wrapped_command.add("-c");
+        wrapped_command.add(USAGE_WRAPPER);
+        wrapped_command.add(usage_file.toAbsolutePath().toString());
+        wrapped_command.addAll(command);
+        return wrapped_command;
+    }
+
+    /**
+     * Stops sampling, taking a last sample of anything still running.
+     * @param reported_usage the usage of the sampled processes as reported by the parent which waited on them,
+     *                       covering those which exited since the last sample, or null if not known
+     */
+    public synchronized void finish(final Usage reported_usage)
+    {
+        future.cancel(false);
+        sample();
+        this.reported_usage = reported_usage;
+    }
+
+    /**
+     * @return CPU time (ms) used, user and system
+     */
+    public synchronized long getCpuTime()
+    {
+        return Math.max(sum(cpu_time_map), reported_usage != null ? reported_usage.cpu_time : 0);
+    }
+
+    /**
+     * @return the highest resident memory (bytes) of all processes combined
+     */
+    public synchronized long getPeakRss()
+    {
+        return peak_rss;
+    }
+
+    /**
+     * @return bytes read from storage
+     */
+    public synchronized long getReadBytes()
+    {
+        return Math.max(sum(read_bytes_map), reported_usage != null ? reported_usage.read_bytes : 0);
+    }
+
+    /**
+     * @return bytes written to storage
+     */
+    public synchronized long getWriteBytes()
+    {
+        return Math.max(sum(write_bytes_map), reported_usage != null ? reported_usage.write_bytes : 0);
+    }
+
+    /**
+     * @return the number of processes seen
+     */
+    public synchronized int getProcessCount()
+    {
+        return cpu_time_map.size();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Resource usage: cpu " + getCpuTime() + " ms, peak rss " + peak_rss / 1024 + " kB, read " + getReadBytes() / 1024
+                + " kB, written " + getWriteBytes() / 1024 + " kB, processes " + getProcessCount() + " (at most " + peak_processes + " at once).";
+    }
+
+    private void sample()
+    {
+        final List<ProcessHandle> process_tree = new ArrayList<>();
+        if (include_root)
+        {
+            process_tree.add(root);
+        }
+        root.descendants().forEach(process_tree::add);
+
+        long rss = 0;
+        int processes = 0;
+        for (ProcessHandle process_handle : process_tree)
+        {
+            if (!process_handle.isAlive())
+            {
+                continue;
+            }
+            final long pid = process_handle.pid();
+            try
+            {
+                final Path pid_directory = proc.resolve(Long.toString(pid));
+                final long cpu_time = process_handle.info().totalCpuDuration().map(Duration::toMillis).orElse(0L);
+                cpu_time_map.merge(pid, cpu_time, Math::max);
+                for (String line : Files.readAllLines(pid_directory.resolve("status"), StandardCharsets.UTF_8))
+                {
+                    if (line.startsWith("VmRSS:"))
+                    {
+                        rss += parseValue(line) * 1024;
+                        break;
+                    }
+                }
+                // Only readable for processes owned by the same user.
+                final Path io = pid_directory.resolve("io");
+                if (Files.isReadable(io))
+                {
+                    for (String line : Files.readAllLines(io, StandardCharsets.UTF_8))
+                    {
+                        if (line.startsWith("read_bytes:"))
+                        {
+                            read_bytes_map.merge(pid, parseValue(line), Math::max);
+                        }
+                        else if (line.startsWith("write_bytes:"))
+                        {
+                            write_bytes_map.merge(pid, parseValue(line), Math::max);
+                        }
+                    }
+                }
+                processes++;
+            }
+            catch (IOException e)
+            {
+                // The process exited while it was being sampled.
+                Config.INSTANCE.logger.trace("Unable to sample process {}. Message: {}", pid, e.getMessage());
+            }
+        }
+        peak_rss = Math.max(peak_rss, rss);
+        peak_processes = Math.max(peak_processes, processes);
+    }
+
+    /**
+     * Parses the number out of a "name: value [unit]" line.
+     */
+    private static long parseValue(final String line)
+    {
+        long value = 0;
+        for (int i = line.indexOf(':') + 1; i < line.length(); i++)
+        {
+            final char c = line.charAt(i);
+            if (c >= '0' && c <= '9')
+            {
+                value = value * 10 + (c - '0');
+            }
+            else if (value > 0 || c != ' ' && c != '\t')
+            {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static long sum(final Map<Long, Long> map)
+    {
+        long sum = 0;
+        for (long value : map.values())
+        {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * CPU time and I/O of the processes a shell has waited on, as written by the times builtin followed by
+     * /proc/$$/io of the shell. The kernel adds the usage of a process to its parent once the parent waits on it.
+     */
+    public static final class Usage
+    {
+        // The second line of times is the user and system time of the children, e.g. 0m0.450000s 0m0.010000s
+        private static final Pattern times_pattern = Pattern.compile("(\\d+)m([\\d.]+)s\\s+(\\d+)m([\\d.]+)s");
+
+        private final long cpu_time;
+        private final long read_bytes;
+        private final long write_bytes;
+
+        private Usage(final long cpu_time, final long read_bytes, final long write_bytes)
+        {
+            this.cpu_time = cpu_time;
+            this.read_bytes = read_bytes;
+            this.write_bytes = write_bytes;
+        }
+
+        /**
+         * @param usage_file the file the usage was written to
+         * @return the usage, or null if the file is missing or incomplete
+         */
+        public static Usage read(final Path usage_file)
+        {
+            final List<String> lines;
+            try
+            {
+                lines = Files.readAllLines(usage_file, StandardCharsets.UTF_8);
+            }
+            catch (IOException e)
+            {
+                Config.INSTANCE.logger.trace("Unable to read resource usage from {}. Message: {}", usage_file, e.getMessage());
+                return null;
+            }
+            if (lines.size() < 2)
+            {
+                return null;
+            }
+            final Matcher matcher = times_pattern.matcher(lines.get(1));
+            if (!matcher.find())
+            {
+                return null;
+            }
+            final long cpu_time = parseTime(matcher.group(1), matcher.group(2)) + parseTime(matcher.group(3), matcher.group(4));
+            long read_bytes = 0;
+            long write_bytes = 0;
+            for (String line : lines.subList(2, lines.size()))
+            {
+                if (line.startsWith("read_bytes:"))
+                {
+                    read_bytes = parseValue(line);
+                }
+                else if (line.startsWith("write_bytes:"))
+                {
+                    write_bytes = parseValue(line);
+                }
+            }
+            return new Usage(cpu_time, read_bytes, write_bytes);
+        }
+
+        /**
+         * @param earlier usage read earlier from the same shell
+         * @return the usage since the earlier one
+         */
+        public Usage minus(final Usage earlier)
+        {
+            return new Usage(cpu_time - earlier.cpu_time, read_bytes - earlier.read_bytes, write_bytes - earlier.write_bytes);
+        }
+
+        /**
+         * @return CPU time (ms) used, user and system
+         */
+        public long getCpuTime()
+        {
+            return cpu_time;
+        }
+
+        private static long parseTime(final String minutes, final String seconds)
+        {
+            return Long.parseLong(minutes) * 60000 + Math.round(Double.parseDouble(seconds) * 1000);
+        }
+    }
+}
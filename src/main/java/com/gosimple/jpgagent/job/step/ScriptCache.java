@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of batch step scripts on disk, keyed by a hash of the script content.
+ * A script is written once and reused for every run of the step, including across restarts of jpgAgent.
+ * When the cache holds more than the maximum number of scripts, the least recently used ones are deleted,
+ * apart from those acquired by a running step.
+ */
+public class ScriptCache
+{
+    private static final Pattern script_name_pattern = Pattern.compile("^[0-9a-f]{64}\\.(sh|bat)$");
+    private static final Set<PosixFilePermission> owner_only = PosixFilePermissions.fromString("rwx------");
+    private static ScriptCache instance;
+
+    private final Path directory;
+    private final int max_scripts;
+    // Access ordered, so iteration starts at the least recently used script.
+    private final LinkedHashMap<String, Path> script_map = new LinkedHashMap<>(16, 0.75f, true);
+    // Scripts found on disk at start up, whose content is checked before they are first used.
+    private final Set<String> unverified_scripts = new HashSet<>();
+    // Number of steps running each script, which are never evicted.
+    private final Map<String, Integer> acquired_scripts = new HashMap<>();
+
+    /**
+     * @return the script cache configured for jpgAgent
+     * @throws IOException if the cache directory could not be created
+     */
+    public static synchronized ScriptCache getInstance() throws IOException
+    {
+        if (instance == null)
+        {
+            final String directory = Config.INSTANCE.script_cache_dir != null
+                    ? Config.INSTANCE.script_cache_dir
+                    : Paths.get(System.getProperty("java.io.tmpdir"), "jpgagent-scripts").toString();
+            instance = new ScriptCache(Paths.get(directory), Config.INSTANCE.script_cache_size);
+        }
+        return instance;
+    }
+
+    /**
+     * Creates the cache, picking up any scripts already in the directory.
+     * @param directory the directory to keep the scripts in, created if it does not exist
+     * @param max_scripts the maximum number of scripts to keep
+     * @throws IOException
+     */
+    public ScriptCache(final Path directory, final int max_scripts) throws IOException
+    {
+        this.directory = directory;
+        this.max_scripts = Math.max(1, max_scripts);
+        if (isPosix())
+        {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(owner_only));
+            Files.setPosixFilePermissions(directory, owner_only);
+        }
+        else
+        {
+            Files.createDirectories(directory);
+        }
+
+        // Oldest first, so the most recently used scripts end up at the end of the access order.
+        final List<Path> existing_scripts = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+        {
+            for (Path path : stream)
+            {
+                if (script_name_pattern.matcher(path.getFileName().toString()).matches())
+                {
+                    existing_scripts.add(path);
+                }
+            }
+        }
+        existing_scripts.sort(Comparator.comparing(ScriptCache::getLastModifiedTime));
+        for (Path path : existing_scripts)
+        {
+            script_map.put(path.getFileName().toString(), path);
+            unverified_scripts.add(path.getFileName().toString());
+        }
+        evict(null);
+    }
+
+    /**
+     * Returns an executable script containing the code, writing it to the cache if it is not there yet.
+     * @param code the code of the script
+     * @param file_extension the extension of the script, including the dot
+     * @return the path to the script
+     * @throws IOException
+     */
+    public synchronized Path getScript(final String code, final String file_extension) throws IOException
+    {
+        final String content = normalizeLineEndings(code);
+        final String key = hash(content.getBytes(StandardCharsets.UTF_8)) + file_extension;
+        Path script = script_map.get(key);
+        if (script != null && unverified_scripts.remove(key) && !isIntact(key, script))
+        {
+            Config.INSTANCE.logger.warn("Cached script: {} does not match its hash, writing it again.", script);
+            Files.deleteIfExists(script);
+        }
+        if (script != null && Files.exists(script))
+        {
+            // Keeps the least recently used order intact across restarts.
+            Files.setLastModifiedTime(script, FileTime.fromMillis(System.currentTimeMillis()));
+            return script;
+        }
+
+        script = directory.resolve(key);
+        final Path tmp_script;
+        if (isPosix())
+        {
+            tmp_script = Files.createTempFile(directory, "pga_", file_extension, PosixFilePermissions.asFileAttribute(owner_only));
+        }
+        else
+        {
+            tmp_script = Files.createTempFile(directory, "pga_", file_extension);
+        }
+        try
+        {
+            try (BufferedWriter buffered_writer = Files.newBufferedWriter(tmp_script, StandardCharsets.UTF_8))
+            {
+                buffered_writer.write(content);
+            }
+            tmp_script.toFile().setExecutable(true);
+            // The script is only ever visible once it is complete.
+            Files.move(tmp_script, script, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp_script);
+        }
+        script_map.put(key, script);
+        evict(key);
+        return script;
+    }
+
+    /**
+     * Returns an executable script containing the code, like {@link #getScript}, and keeps it from being evicted
+     * until it is released.
+     * @param code the code of the script
+     * @param file_extension the extension of the script, including the dot
+     * @return the path to the script
+     * @throws IOException
+     */
+    public synchronized Path acquire(final String code, final String file_extension) throws IOException
+    {
+        final Path script = getScript(code, file_extension);
+        acquired_scripts.merge(script.getFileName().toString(), 1, Integer::sum);
+        return script;
+    }
+
+    /**
+     * Lets a script acquired before be evicted again, once no other step is using it.
+     * @param script the script returned by {@link #acquire}
+     */
+    public synchronized void release(final Path script)
+    {
+        acquired_scripts.computeIfPresent(script.getFileName().toString(), (key, count) -> count > 1 ? count - 1 : null);
+        evict(null);
+    }
+
+    /**
+     * @return the number of scripts in the cache
+     */
+    public synchronized int size()
+    {
+        return script_map.size();
+    }
+
+    /**
+     * Deletes the least recently used scripts until the cache is within its maximum size.
+     * Scripts which are acquired are skipped, so the cache can stay above its size until they are released.
+     * @param keep_key the script about to be returned, which is never evicted, or null
+     */
+    private void evict(final String keep_key)
+    {
+        final Iterator<Map.Entry<String, Path>> iterator = script_map.entrySet().iterator();
+        while (script_map.size() > max_scripts && iterator.hasNext())
+        {
+            final Map.Entry<String, Path> entry = iterator.next();
+            if (acquired_scripts.containsKey(entry.getKey()) || entry.getKey().equals(keep_key))
+            {
+                continue;
+            }
+            final Path path = entry.getValue();
+            iterator.remove();
+            unverified_scripts.remove(entry.getKey());
+            try
+            {
+                Files.deleteIfExists(path);
+            }
+            catch (IOException e)
+            {
+                Config.INSTANCE.logger.warn("Unable to remove cached script: {}. Message: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replaces all line breaks with the line separator of the OS.
+     * @param code the code to normalize
+     * @return the normalized code
+     */
+    private static String normalizeLineEndings(final String code)
+    {
+        final String line_separator = System.getProperty("line.separator");
+        final StringBuilder string_builder = new StringBuilder(code.length());
+        for (int i = 0; i < code.length(); i++)
+        {
+            final char c = code.charAt(i);
+            if (c == '\r')
+            {
+                if (i + 1 < code.length() && code.charAt(i + 1) == '\n')
+                {
+                    i++;
+                }
+                string_builder.append(line_separator);
+            }
+            else if (c == '\n')
+            {
+                string_builder.append(line_separator);
+            }
+            else
+            {
+                string_builder.append(c);
+            }
+        }
+        return string_builder.toString();
+    }
+
+    /**
+     * Checks a script written before jpgAgent started is a plain file whose content still matches the hash it is named by.
+     * @param key the name of the script
+     * @param script the path to the script
+     * @return true if the script can be used as is
+     */
+    private static boolean isIntact(final String key, final Path script)
+    {
+        try
+        {
+            return Files.isRegularFile(script, LinkOption.NOFOLLOW_LINKS)
+                    && key.startsWith(hash(Files.readAllBytes(script)) + ".");
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private static String hash(final byte[] content)
+    {
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            final StringBuilder string_builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                string_builder.append(String.format("%02x", b));
+            }
+            return string_builder.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static FileTime getLastModifiedTime(final Path path)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(path);
+        }
+        catch (IOException e)
+        {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static boolean isPosix()
+    {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Sets the timeouts of a step on its connection, so the database enforces them as well as jpgAgent.
+ */
+public final class ServerTimeouts
+{
+    private ServerTimeouts()
+    {
+    }
+
+    /**
+     * Sets the remaining time budget of the step and job as the statement_timeout of the connection,
+     * so a runaway statement is stopped by the database even if jpgAgent is unable to cancel it.
+     * Also sets the lock_timeout if one was specified. Does nothing if server timeouts are disabled.
+     * @param connection the connection the step will run on
+     * @param remaining_time the time (ms) left before the step or job times out, or null for no timeout
+     * @param lock_timeout the lock timeout (ms) of the step, or null for none
+     * @throws SQLException
+     */
+    public static void apply(final Connection connection, final Long remaining_time, final Long lock_timeout) throws SQLException
+    {
+        if (Config.INSTANCE.disable_server_timeouts)
+        {
+            return;
+        }
+
+        if (remaining_time != null)
+        {
+            try (PreparedStatement statement = connection.prepareStatement(Config.INSTANCE.sql.getProperty("sql.jobstep.set_statement_timeout")))
+            {
+                // A value of 0 would disable the timeout, so always leave at least 1ms.
+                statement.setString(1, Math.max(1, remaining_time) + "ms");
+                statement.execute();
+            }
+        }
+        if (lock_timeout != null)
+        {
+            try (PreparedStatement statement = connection.prepareStatement(Config.INSTANCE.sql.getProperty("sql.jobstep.set_lock_timeout")))
+            {
+                statement.setString(1, lock_timeout + "ms");
+                statement.execute();
+            }
+        }
+    }
+}
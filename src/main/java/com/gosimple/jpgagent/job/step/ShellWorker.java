@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * A long running /bin/sh process which runs batch step scripts on request, so a script can be started
+ * without forking the JVM. The path of the script is written to the standard input of the worker, and the
+ * output of the script, with standard error merged into it, is read from the standard output of the worker
+ * until a marker line carrying the exit code. The marker is random for each worker, so a script can not fake it.
+ * A worker runs one script at a time.
+ */
+public class ShellWorker
+{
+    // "$0" is the marker. The leading line break keeps the marker on its own line if the output of the script does not end with one.
+    // The usage of every script run so far is written to the file in "$1" after each one, as read by ResourceSampler.Usage.
+    private static final String DRIVER = "while IFS= read -r script; do \"$script\" </dev/null 2>&1; status=$?; { times; cat /proc/$$/io; } > \"$1\" 2>/dev/null; printf '\\n%s %s\\n' \"$0\" \"$status\"; done";
+
+    private final Process process;
+    private final String marker = UUID.randomUUID().toString();
+    private final InputStream input;
+    private final OutputStream output;
+    private final byte[] buffer = new byte[8192];
+    private final Path usage_file;
+    // Usage of the scripts run before the last one, as the worker reports the total.
+    private ResourceSampler.Usage total_usage;
+    private ResourceSampler.Usage last_run_usage;
+    private boolean reusable = true;
+
+    /**
+     * Starts a new worker.
+     * @throws IOException
+     */
+    public ShellWorker() throws IOException
+    {
+        usage_file = Files.createTempFile("jpgagent-worker", ".usage");
+        process = new ProcessBuilder("/bin/sh", "-c", DRIVER, marker, usage_file.toString())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        input = process.getInputStream();
+        output = process.getOutputStream();
+    }
+
+    /**
+     * Runs a script and waits for it to exit.
+     * If this fails, or the worker exits while the script is running, the worker can not be reused.
+     * @param script the path of the script to run
+     * @param output_capture where the output of the script is written, tagged as stdout
+     * @return the exit code of the script
+     * @throws IOException
+     */
+    public int run(final String script, final OutputCapture output_capture) throws IOException
+    {
+        if (script.indexOf('\n') != -1 || script.indexOf('\r') != -1)
+        {
+            throw new IllegalArgumentException("Script paths with line breaks can not be run by a worker: " + script);
+        }
+        reusable = false;
+        last_run_usage = null;
+        output.write((script + "\n").getBytes(Charset.defaultCharset()));
+        output.flush();
+
+        final ByteArrayOutputStream line_buffer = new ByteArrayOutputStream();
+        // The line before the marker is only known to be the extra line break written by the driver once the marker is read.
+        String pending_line = null;
+        int length;
+        while ((length = input.read(buffer)) != -1)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                if (buffer[i] != '\n')
+                {
+                    line_buffer.write(buffer[i]);
+                    continue;
+                }
+                String line = new String(line_buffer.toByteArray(), Charset.defaultCharset());
+                line_buffer.reset();
+                if (line.startsWith(marker + " "))
+                {
+                    if (pending_line != null && !pending_line.isEmpty())
+                    {
+                        output_capture.appendLine("stdout", pending_line);
+                    }
+                    reusable = i == length - 1;
+                    readUsage();
+                    return Integer.parseInt(line.substring(marker.length() + 1).trim());
+                }
+                if (pending_line != null)
+                {
+                    output_capture.appendLine("stdout", pending_line);
+                }
+                if (line.endsWith("\r"))
+                {
+                    line = line.substring(0, line.length() - 1);
+                }
+                pending_line = line;
+            }
+        }
+        throw new IOException("Batch worker exited while running the script.");
+    }
+
+    /**
+     * Works out the usage of the script which just ran from the total the worker reported.
+     */
+    private void readUsage()
+    {
+        final ResourceSampler.Usage usage = ResourceSampler.Usage.read(usage_file);
+        last_run_usage = usage != null && total_usage != null ? usage.minus(total_usage) : usage;
+        total_usage = usage;
+    }
+
+    /**
+     * @return the CPU time and I/O of the last script run and everything it waited on, or null if not known
+     */
+    public ResourceSampler.Usage getLastRunUsage()
+    {
+        return last_run_usage;
+    }
+
+    /**
+     * @return true if the worker is alive and ready to run another script
+     */
+    public boolean isReusable()
+    {
+        // Anything the script left running in the background could still write to the worker output.
+        return reusable && process.isAlive() && !process.children().findAny().isPresent();
+    }
+
+    /**
+     * @return the worker process, scripts it runs are its descendants
+     */
+    public ProcessHandle toHandle()
+    {
+        return process.toHandle();
+    }
+
+    /**
+     * Stops the worker and any script it is running.
+     */
+    public void destroy()
+    {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        try
+        {
+            Files.deleteIfExists(usage_file);
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.debug("Unable to delete {}. Message: {}", usage_file, e.getMessage());
+        }
+    }
+}
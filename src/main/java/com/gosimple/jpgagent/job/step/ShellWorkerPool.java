@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Pool of {@link ShellWorker} started ahead of time, so batch steps can be launched without forking the JVM.
+ * If no worker is idle, the step should start its script itself rather than wait for one.
+ */
+public class ShellWorkerPool
+{
+    private static ShellWorkerPool instance;
+
+    private final BlockingQueue<ShellWorker> idle_workers = new LinkedBlockingQueue<>();
+
+    /**
+     * @return the worker pool configured for jpgAgent, or null if the pool is disabled or not supported on this OS
+     */
+    public static synchronized ShellWorkerPool getInstance()
+    {
+        if (instance == null && Config.INSTANCE.batch_worker_pool_size > 0 && !System.getProperty("os.name").startsWith("Windows"))
+        {
+            instance = new ShellWorkerPool(Config.INSTANCE.batch_worker_pool_size);
+        }
+        return instance;
+    }
+
+    /**
+     * Starts the workers of the pool.
+     * @param size the number of workers
+     */
+    public ShellWorkerPool(final int size)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            startWorker();
+        }
+    }
+
+    /**
+     * @return an idle worker, or null if all of them are busy
+     */
+    public ShellWorker acquire()
+    {
+        return idle_workers.poll();
+    }
+
+    /**
+     * Returns a worker to the pool once its script has exited.
+     * A worker that can not be reused is stopped and replaced in the background.
+     * @param shell_worker the worker to return
+     */
+    public void release(final ShellWorker shell_worker)
+    {
+        if (shell_worker.isReusable())
+        {
+            idle_workers.offer(shell_worker);
+        }
+        else
+        {
+            shell_worker.destroy();
+            ExecutionUtil.INSTANCE.executeTask(this::startWorker);
+        }
+    }
+
+    /**
+     * @return the number of idle workers
+     */
+    public int getIdleCount()
+    {
+        return idle_workers.size();
+    }
+
+    private void startWorker()
+    {
+        try
+        {
+            idle_workers.offer(new ShellWorker());
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.error("Unable to start a batch worker. Message: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import org.postgresql.core.NativeQuery;
+import org.postgresql.core.Parser;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the code of a step into its statements the same way the driver does before sending them to the server,
+ * so quotes, dollar quotes and comments containing semicolons are left alone.
+ */
+public final class SqlStatements
+{
+    private SqlStatements()
+    {
+    }
+
+    /**
+     * @param code the code of the step
+     * @param standard_conforming_strings if backslashes in string literals are taken literally, as set on the server
+     * @return the statements, without their terminating semicolons, leaving out any which are empty or only comments
+     * @throws SQLException if the code can not be parsed
+     */
+    public static List<String> split(final String code, final boolean standard_conforming_strings) throws SQLException
+    {
+        final List<String> statements = new ArrayList<>();
+        if (code == null)
+        {
+            return statements;
+        }
+        for (NativeQuery query : Parser.parseJdbcSql(code, standard_conforming_strings, false, true, false))
+        {
+            if (!isBlank(query.nativeSql))
+            {
+                statements.add(query.nativeSql);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * @param code code which must hold exactly one statement, such as a query to wrap in another statement
+     * @param standard_conforming_strings if backslashes in string literals are taken literally, as set on the server
+     * @return the statement, without its terminating semicolon or trailing whitespace
+     * @throws SQLException if the code can not be parsed or does not hold exactly one statement
+     */
+    public static String single(final String code, final boolean standard_conforming_strings) throws SQLException
+    {
+        final List<String> statements = split(code, standard_conforming_strings);
+        if (statements.size() != 1)
+        {
+            throw new SQLException("Expected a single statement, found " + statements.size() + ".");
+        }
+        return statements.get(0).stripTrailing();
+    }
+
+    /**
+     * @param sql the sql to check
+     * @return true if the sql is only whitespace and comments
+     */
+    private static boolean isBlank(final String sql)
+    {
+        final char[] chars = sql.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+        {
+            if (chars[i] == '-' && i + 1 < chars.length && chars[i + 1] == '-')
+            {
+                i = Parser.parseLineComment(chars, i);
+            }
+            else if (chars[i] == '/' && i + 1 < chars.length && chars[i + 1] == '*')
+            {
+                i = Parser.parseBlockComment(chars, i);
+            }
+            else if (!Character.isWhitespace(chars[i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -28,7 +28,9 @@ package com.gosimple.jpgagent.job.step;
 public enum StepType
 {
     SQL("s"),
-    BATCH("b");
+    BATCH("b"),
+    // Not a pgAgent step kind, a SQL step becomes a COPY step when it has the COPY_TO_TABLE annotation.
+    COPY(null);
 
     private final String db_representation;
 
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.job.step;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Drains a stream into an {@link OutputCapture} line by line without dedicating a thread to it.
+ * The stream is polled for the bytes available on the scheduled pool of {@link ExecutionUtil},
+ * so a few threads can drain the output of any number of running processes, and a full pipe
+ * never blocks the process writing to it.
+ */
+public class StreamPump implements Runnable
+{
+    private static final long POLL_INTERVAL = 10;
+
+    private final InputStream input;
+    private final String tag;
+    private final OutputCapture output_capture;
+    private final byte[] buffer = new byte[8192];
+    private final ByteArrayOutputStream line_buffer = new ByteArrayOutputStream();
+    private ScheduledFuture<?> future;
+
+    private StreamPump(final InputStream input, final String tag, final OutputCapture output_capture)
+    {
+        this.input = input;
+        this.tag = tag;
+        this.output_capture = output_capture;
+    }
+
+    /**
+     * Starts draining the stream.
+     * @param input the stream to drain
+     * @param tag the tag for lines read from the stream
+     * @param output_capture where the lines are written
+     * @return the pump, which must be finished once the process has exited
+     */
+    public static StreamPump start(final InputStream input, final String tag, final OutputCapture output_capture)
+    {
+        final StreamPump stream_pump = new StreamPump(input, tag, output_capture);
+        synchronized (stream_pump)
+        {
+            stream_pump.future = ExecutionUtil.INSTANCE.scheduleTask(stream_pump, POLL_INTERVAL);
+        }
+        return stream_pump;
+    }
+
+    @Override
+    public synchronized void run()
+    {
+        try
+        {
+            drain();
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.debug("Error reading {}. Message: {}", tag, e.getMessage());
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Stops polling and drains whatever is left in the stream.
+     * Should be called once the process has exited, anything written after that by processes it left behind is ignored.
+     */
+    public synchronized void finish()
+    {
+        future.cancel(false);
+        try
+        {
+            drain();
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.debug("Error reading {}. Message: {}", tag, e.getMessage());
+        }
+        if (line_buffer.size() > 0)
+        {
+            flushLine();
+        }
+        try
+        {
+            input.close();
+        }
+        catch (IOException e)
+        {
+            Config.INSTANCE.logger.debug("Error closing {}. Message: {}", tag, e.getMessage());
+        }
+    }
+
+    /**
+     * Reads only what is available, so it never blocks.
+     */
+    private void drain() throws IOException
+    {
+        int available;
+        while ((available = input.available()) > 0)
+        {
+            final int length = input.read(buffer, 0, Math.min(available, buffer.length));
+            if (length == -1)
+            {
+                break;
+            }
+            for (int i = 0; i < length; i++)
+            {
+                if (buffer[i] == '\n')
+                {
+                    flushLine();
+                }
+                else
+                {
+                    line_buffer.write(buffer[i]);
+                }
+            }
+        }
+    }
+
+    private void flushLine()
+    {
+        String line = new String(line_buffer.toByteArray(), Charset.defaultCharset());
+        if (line.endsWith("\r"))
+        {
+            line = line.substring(0, line.length() - 1);
+        }
+        output_capture.appendLine(tag, line);
+        line_buffer.reset();
+    }
+}
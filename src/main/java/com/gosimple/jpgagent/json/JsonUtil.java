@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.json;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes JSON without pulling in a JSON library.
+ */
+public class JsonUtil
+{
+    private final String json;
+    private int position = 0;
+
+    private JsonUtil(final String json)
+    {
+        this.json = json;
+    }
+
+    /**
+     * Parses a JSON document.
+     * Objects are returned as a {@link Map} keeping the order of their keys, arrays as a {@link List}, whole numbers
+     * as a {@link Long}, other numbers as a {@link Double}, and true, false and null as {@link Boolean} and null.
+     * @param json the document
+     * @return the value of the document
+     * @throws IllegalArgumentException if the document is not valid JSON
+     */
+    public static Object parse(final String json)
+    {
+        if (json == null)
+        {
+            throw new IllegalArgumentException("Invalid JSON: nothing to parse.");
+        }
+        final JsonUtil parser = new JsonUtil(json);
+        final Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.position < json.length())
+        {
+            throw parser.error("Unexpected content after the value");
+        }
+        return value;
+    }
+
+    /**
+     * Parses a JSON document which must be an object.
+     * @param json the document
+     * @return the object
+     * @throws IllegalArgumentException if the document is not a valid JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> parseObject(final String json)
+    {
+        final Object value = parse(json);
+        if (!(value instanceof Map))
+        {
+            throw new IllegalArgumentException("Invalid JSON: expected an object.");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    private Object readValue()
+    {
+        skipWhitespace();
+        if (position >= json.length())
+        {
+            throw error("Unexpected end");
+        }
+        final char c = json.charAt(position);
+        switch (c)
+        {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                readLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                readLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                readLiteral("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                {
+                    return readNumber();
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> readObject()
+    {
+        final Map<String, Object> object = new LinkedHashMap<>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}')
+        {
+            position++;
+            return object;
+        }
+        while (true)
+        {
+            skipWhitespace();
+            if (peek() != '"')
+            {
+                throw error("Expected a key");
+            }
+            final String key = readString();
+            skipWhitespace();
+            expect(':');
+            object.put(key, readValue());
+            skipWhitespace();
+            if (peek() == ',')
+            {
+                position++;
+                continue;
+            }
+            expect('}');
+            return object;
+        }
+    }
+
+    private List<Object> readArray()
+    {
+        final List<Object> array = new ArrayList<>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']')
+        {
+            position++;
+            return array;
+        }
+        while (true)
+        {
+            array.add(readValue());
+            skipWhitespace();
+            if (peek() == ',')
+            {
+                position++;
+                continue;
+            }
+            expect(']');
+            return array;
+        }
+    }
+
+    private String readString()
+    {
+        position++;
+        final StringBuilder string_builder = new StringBuilder();
+        while (position < json.length())
+        {
+            final char c = json.charAt(position++);
+            if (c == '"')
+            {
+                return string_builder.toString();
+            }
+            if (c != '\\')
+            {
+                string_builder.append(c);
+                continue;
+            }
+            if (position >= json.length())
+            {
+                break;
+            }
+            final char escaped = json.charAt(position++);
+            switch (escaped)
+            {
+                case '"':
+                case '\\':
+                case '/':
+                    string_builder.append(escaped);
+                    break;
+                case 'b':
+                    string_builder.append('\b');
+                    break;
+                case 'f':
+                    string_builder.append('\f');
+                    break;
+                case 'n':
+                    string_builder.append('\n');
+                    break;
+                case 'r':
+                    string_builder.append('\r');
+                    break;
+                case 't':
+                    string_builder.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > json.length())
+                    {
+                        throw error("Invalid unicode escape");
+                    }
+                    try
+                    {
+                        string_builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw error("Invalid unicode escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    throw error("Invalid escape '\\" + escaped + "'");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Number readNumber()
+    {
+        final int start = position;
+        boolean whole = true;
+        while (position < json.length())
+        {
+            final char c = json.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E')
+            {
+                whole = false;
+            }
+            else if (c != '-' && c != '+' && (c < '0' || c > '9'))
+            {
+                break;
+            }
+            position++;
+        }
+        final String number = json.substring(start, position);
+        try
+        {
+            return whole ? (Number) Long.parseLong(number) : (Number) Double.parseDouble(number);
+        }
+        catch (NumberFormatException e)
+        {
+            throw error("Invalid number '" + number + "'");
+        }
+    }
+
+    private void readLiteral(final String literal)
+    {
+        if (!json.startsWith(literal, position))
+        {
+            throw error("Unexpected character '" + json.charAt(position) + "'");
+        }
+        position += literal.length();
+    }
+
+    private void expect(final char expected)
+    {
+        if (peek() != expected)
+        {
+            throw error("Expected '" + expected + "'");
+        }
+        position++;
+    }
+
+    private char peek()
+    {
+        if (position >= json.length())
+        {
+            throw error("Unexpected end");
+        }
+        return json.charAt(position);
+    }
+
+    private void skipWhitespace()
+    {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position)))
+        {
+            position++;
+        }
+    }
+
+    private IllegalArgumentException error(final String message)
+    {
+        return new IllegalArgumentException("Invalid JSON: " + message + " at position " + position + ".");
+    }
+
+    /**
+     * Appends the value as a quoted JSON string, or null.
+     * @param string_builder where the value is appended
+     * @param value the value to append
+     */
+    public static void appendString(final StringBuilder string_builder, final String value)
+    {
+        if (value == null)
+        {
+            string_builder.append("null");
+            return;
+        }
+        string_builder.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    string_builder.append("\\\"");
+                    break;
+                case '\\':
+                    string_builder.append("\\\\");
+                    break;
+                case '\n':
+                    string_builder.append("\\n");
+                    break;
+                case '\r':
+                    string_builder.append("\\r");
+                    break;
+                case '\t':
+                    string_builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        string_builder.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        string_builder.append(c);
+                    }
+            }
+        }
+        string_builder.append('"');
+    }
+}
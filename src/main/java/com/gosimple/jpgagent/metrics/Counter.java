@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value which only ever goes up, either counted here or read from somewhere else.
+ */
+public class Counter
+{
+    private final DoubleAdder value = new DoubleAdder();
+    private final DoubleSupplier supplier;
+
+    Counter(final DoubleSupplier supplier)
+    {
+        this.supplier = supplier;
+    }
+
+    public void inc()
+    {
+        value.add(1);
+    }
+
+    /**
+     * @param amount the amount to add, must not be negative
+     */
+    public void add(final double amount)
+    {
+        if (amount < 0)
+        {
+            throw new IllegalArgumentException("Counters can not be decreased: " + amount);
+        }
+        value.add(amount);
+    }
+
+    public double getValue()
+    {
+        return supplier != null ? supplier.getAsDouble() : value.sum();
+    }
+}
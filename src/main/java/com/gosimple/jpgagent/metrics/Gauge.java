@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value which can go up and down, either set here or read from somewhere else.
+ */
+public class Gauge
+{
+    private double value = 0;
+    private final DoubleSupplier supplier;
+
+    Gauge(final DoubleSupplier supplier)
+    {
+        this.supplier = supplier;
+    }
+
+    public synchronized void set(final double value)
+    {
+        this.value = value;
+    }
+
+    public synchronized void inc()
+    {
+        value++;
+    }
+
+    public synchronized void dec()
+    {
+        value--;
+    }
+
+    public synchronized double getValue()
+    {
+        return supplier != null ? supplier.getAsDouble() : value;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observed values into buckets, for durations and sizes.
+ */
+public class Histogram
+{
+    // Durations in seconds, from a few ms for log writes up to an hour for long running jobs.
+    static final double[] DEFAULT_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300, 900, 1800, 3600};
+
+    private final double[] buckets;
+    // Not cumulative, each value is counted in the first bucket it fits, and the last one is +Inf.
+    private final LongAdder[] bucket_counts;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(final double[] buckets)
+    {
+        this.buckets = buckets;
+        this.bucket_counts = new LongAdder[buckets.length + 1];
+        for (int i = 0; i < bucket_counts.length; i++)
+        {
+            bucket_counts[i] = new LongAdder();
+        }
+    }
+
+    public void observe(final double value)
+    {
+        int i = 0;
+        while (i < buckets.length && value > buckets[i])
+        {
+            i++;
+        }
+        bucket_counts[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * @param start_time the start time in ms since the epoch
+     */
+    public void observeSince(final long start_time)
+    {
+        observe((System.currentTimeMillis() - start_time) / 1000.0);
+    }
+
+    /**
+     * @param start_nanos the start time from {@link System#nanoTime()}
+     */
+    public void observeNanosSince(final long start_nanos)
+    {
+        observe((System.nanoTime() - start_nanos) / 1e9);
+    }
+
+    double[] getBuckets()
+    {
+        return buckets;
+    }
+
+    /**
+     * @return the count of values in each bucket, cumulative, ending with +Inf which is the count of all values
+     */
+    long[] getCumulativeCounts()
+    {
+        final long[] counts = new long[bucket_counts.length];
+        long total = 0;
+        for (int i = 0; i < bucket_counts.length; i++)
+        {
+            total += bucket_counts[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount()
+    {
+        long count = 0;
+        for (LongAdder bucket_count : bucket_counts)
+        {
+            count += bucket_count.sum();
+        }
+        return count;
+    }
+
+    public double getSum()
+    {
+        return sum.sum();
+    }
+}
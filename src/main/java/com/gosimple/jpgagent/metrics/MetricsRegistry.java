@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Holds all metrics of jpgAgent, and renders them in the Prometheus text format.
+ * Metrics are created on first use and looked up by name and labels after that, so callers
+ * do not need to keep hold of them. Labels are given as name, value pairs.
+ */
+public enum MetricsRegistry
+{
+    INSTANCE;
+
+    private static final String PREFIX = "jpgagent_";
+
+    private final Map<String, Family> family_map = new ConcurrentSkipListMap<>();
+
+    private static class Family
+    {
+        private final String name;
+        private final String help;
+        private final String type;
+        // Keyed by the rendered labels.
+        private final Map<String, Object> metric_map = new ConcurrentSkipListMap<>();
+
+        private Family(final String name, final String help, final String type)
+        {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public Counter counter(final String name, final String help, final String... labels)
+    {
+        return get(name, help, "counter", labels, k -> new Counter(null));
+    }
+
+    /**
+     * Registers a counter read from somewhere else, replacing any registered before.
+     */
+    public void counter(final String name, final String help, final DoubleSupplier supplier, final String... labels)
+    {
+        getFamily(name, help, "counter").metric_map.put(renderLabels(labels), new Counter(supplier));
+    }
+
+    public Gauge gauge(final String name, final String help, final String... labels)
+    {
+        return get(name, help, "gauge", labels, k -> new Gauge(null));
+    }
+
+    /**
+     * Registers a gauge read from somewhere else, replacing any registered before.
+     */
+    public void gauge(final String name, final String help, final DoubleSupplier supplier, final String... labels)
+    {
+        getFamily(name, help, "gauge").metric_map.put(renderLabels(labels), new Gauge(supplier));
+    }
+
+    public Histogram histogram(final String name, final String help, final String... labels)
+    {
+        return get(name, help, "histogram", labels, k -> new Histogram(Histogram.DEFAULT_BUCKETS));
+    }
+
+    /**
+     * Removes all metrics.
+     */
+    public void clear()
+    {
+        family_map.clear();
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String scrape()
+    {
+        final StringBuilder string_builder = new StringBuilder(4096);
+        for (Family family : family_map.values())
+        {
+            if (family.metric_map.isEmpty())
+            {
+                continue;
+            }
+            string_builder.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            string_builder.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : family.metric_map.entrySet())
+            {
+                final String labels = entry.getKey();
+                final Object metric = entry.getValue();
+                if (metric instanceof Counter)
+                {
+                    appendSample(string_builder, family.name, labels, ((Counter) metric).getValue());
+                }
+                else if (metric instanceof Gauge)
+                {
+                    appendSample(string_builder, family.name, labels, ((Gauge) metric).getValue());
+                }
+                else
+                {
+                    final Histogram histogram = (Histogram) metric;
+                    final double[] buckets = histogram.getBuckets();
+                    final long[] counts = histogram.getCumulativeCounts();
+                    for (int i = 0; i < counts.length; i++)
+                    {
+                        final String le = i < buckets.length ? formatValue(buckets[i]) : "+Inf";
+                        final String bucket_labels = labels.isEmpty() ? "{le=\"" + le + "\"}" : labels.substring(0, labels.length() - 1) + ",le=\"" + le + "\"}";
+                        appendSample(string_builder, family.name + "_bucket", bucket_labels, counts[i]);
+                    }
+                    appendSample(string_builder, family.name + "_sum", labels, histogram.getSum());
+                    appendSample(string_builder, family.name + "_count", labels, counts[counts.length - 1]);
+                }
+            }
+        }
+        return string_builder.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(final String name, final String help, final String type, final String[] labels, final Function<String, T> factory)
+    {
+        final Family family = getFamily(name, help, type);
+        final Object metric = family.metric_map.computeIfAbsent(renderLabels(labels), factory::apply);
+        return (T) metric;
+    }
+
+    private Family getFamily(final String name, final String help, final String type)
+    {
+        final Family family = family_map.computeIfAbsent(PREFIX + name, k -> new Family(k, help, type));
+        if (!family.type.equals(type))
+        {
+            throw new IllegalArgumentException("Metric " + family.name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static void appendSample(final StringBuilder string_builder, final String name, final String labels, final double value)
+    {
+        string_builder.append(name).append(labels).append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(final double value)
+    {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+        {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String renderLabels(final String[] labels)
+    {
+        if (labels.length % 2 != 0)
+        {
+            throw new IllegalArgumentException("Labels must be given as name, value pairs.");
+        }
+        if (labels.length == 0)
+        {
+            return "";
+        }
+        final StringBuilder string_builder = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2)
+        {
+            if (i > 0)
+            {
+                string_builder.append(',');
+            }
+            string_builder.append(labels[i]).append("=\"");
+            final String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++)
+            {
+                final char c = value.charAt(j);
+                switch (c)
+                {
+                    case '\\':
+                        string_builder.append("\\\\");
+                        break;
+                    case '"':
+                        string_builder.append("\\\"");
+                        break;
+                    case '\n':
+                        string_builder.append("\\n");
+                        break;
+                    default:
+                        string_builder.append(c);
+                }
+            }
+            string_builder.append('"');
+        }
+        return string_builder.append('}').toString();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.metrics;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.database.Database;
+import com.gosimple.jpgagent.email.EmailDispatcher;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the metrics of jpgAgent over http for Prometheus to scrape, at /metrics.
+ */
+public class MetricsServer
+{
+    private final HttpServer http_server;
+
+    /**
+     * Starts the server configured for jpgAgent, if a metrics port is configured, and registers the metrics
+     * read from the JVM, the thread pools and the database.
+     * @return the server, or null if none is configured
+     * @throws IOException if the server could not be started
+     */
+    public static MetricsServer start() throws IOException
+    {
+        registerAgentMetrics();
+        if (Config.INSTANCE.metrics_port <= 0)
+        {
+            return null;
+        }
+        final MetricsServer metrics_server = new MetricsServer(Config.INSTANCE.metrics_address, Config.INSTANCE.metrics_port);
+        Config.INSTANCE.logger.info("Serving metrics on {}:{}/metrics.", Config.INSTANCE.metrics_address, metrics_server.getPort());
+        return metrics_server;
+    }
+
+    /**
+     * Starts a server.
+     * @param address the address to listen on
+     * @param port the port to listen on, 0 to pick a free one
+     * @throws IOException
+     */
+    public MetricsServer(final String address, final int port) throws IOException
+    {
+        http_server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        http_server.createContext("/metrics", this::handle);
+        http_server.setExecutor(Executors.newSingleThreadExecutor(r ->
+        {
+            final Thread thread = new Thread(r, "jpgagent-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http_server.start();
+    }
+
+    public int getPort()
+    {
+        return http_server.getAddress().getPort();
+    }
+
+    public void stop()
+    {
+        http_server.stop(0);
+    }
+
+    private void handle(final HttpExchange http_exchange) throws IOException
+    {
+        try
+        {
+            final byte[] response = MetricsRegistry.INSTANCE.scrape().getBytes(StandardCharsets.UTF_8);
+            http_exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            http_exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream output = http_exchange.getResponseBody())
+            {
+                output.write(response);
+            }
+        }
+        finally
+        {
+            http_exchange.close();
+        }
+    }
+
+    /**
+     * Registers the metrics which are read when scraped rather than recorded as they happen.
+     */
+    private static void registerAgentMetrics()
+    {
+        final MetricsRegistry registry = MetricsRegistry.INSTANCE;
+        registry.gauge("executor_active_threads", "Threads running jobs and job steps.", () -> ExecutionUtil.INSTANCE.getActiveCount());
+        registry.gauge("executor_pool_threads", "Threads in the job pool, running or idle.", () -> ExecutionUtil.INSTANCE.getPoolSize());
+        registry.gauge("executor_scheduled_queue_depth", "Periodic tasks, such as output draining and resource sampling, waiting on the scheduled pool.", () -> ExecutionUtil.INSTANCE.getScheduledQueueSize());
+        registry.counter("executor_completed_tasks_total", "Tasks completed by the job pool.", () -> ExecutionUtil.INSTANCE.getCompletedTaskCount());
+        registry.gauge("db_connections_open", "Database connections currently open.", () -> Database.INSTANCE.getOpenConnectionCount());
+        registry.counter("db_connections_opened_total", "Database connections opened.", () -> Database.INSTANCE.getOpenedConnectionCount());
+        if (Config.INSTANCE.smtp_host != null)
+        {
+            registry.gauge("email_queue_depth", "Emails waiting to be sent.", () -> EmailDispatcher.getInstance().getQueueSize());
+            registry.counter("email_sent_total", "Emails sent.", () -> EmailDispatcher.getInstance().getSentCount());
+            registry.counter("email_failed_total", "Emails dropped, because the queue was full or they could not be sent.", () -> EmailDispatcher.getInstance().getFailedCount());
+        }
+
+        final MemoryMXBean memory_bean = ManagementFactory.getMemoryMXBean();
+        registry.gauge("jvm_heap_used_bytes", "Heap memory used.", () -> memory_bean.getHeapMemoryUsage().getUsed());
+        registry.gauge("jvm_heap_committed_bytes", "Heap memory committed.", () -> memory_bean.getHeapMemoryUsage().getCommitted());
+        registry.gauge("jvm_heap_max_bytes", "Maximum heap memory.", () -> memory_bean.getHeapMemoryUsage().getMax());
+        registry.gauge("jvm_threads", "Live threads.", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        for (GarbageCollectorMXBean gc_bean : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            registry.counter("jvm_gc_collections_total", "Garbage collections.", gc_bean::getCollectionCount, "gc", gc_bean.getName());
+            registry.counter("jvm_gc_collection_seconds_total", "Time spent in garbage collection.", () -> gc_bean.getCollectionTime() / 1000.0, "gc", gc_bean.getName());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.thread;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many tasks of one kind run at once, so a flood of them can not take every thread from the rest.
+ * Tasks over the limit wait in a queue, highest priority first, and start as running tasks finish. A waiting task
+ * gains one priority for every aging interval it has been waiting, the same as when jobs are claimed.
+ */
+public class Bulkhead
+{
+    private final String name;
+    private final int limit;
+    private final long aging_interval;
+    private final PriorityBlockingQueue<QueuedTask> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong queued_count = new AtomicLong();
+    private int running = 0;
+
+    /**
+     * @param name the name the metrics of the bulkhead are labeled with
+     * @param limit the maximum number of tasks running at once, 0 for no limit
+     * @param aging_interval the time (ms) a task waits to gain one priority, 0 to not age tasks
+     */
+    public Bulkhead(final String name, final int limit, final long aging_interval)
+    {
+        this.name = name;
+        this.limit = Math.max(0, limit);
+        this.aging_interval = aging_interval;
+        final MetricsRegistry registry = MetricsRegistry.INSTANCE;
+        registry.gauge("job_class_running", "Jobs running, by job class.", this::getRunningCount, "class", name);
+        registry.gauge("job_class_queued", "Jobs waiting for a free slot in their job class.", this::getQueuedCount, "class", name);
+        registry.gauge("job_class_limit", "Maximum jobs running at once, by job class. 0 for no limit.", () -> this.limit, "class", name);
+        registry.counter("job_class_saturated_total", "Jobs which had to wait because their job class was at its limit.", queued_count::get, "class", name);
+    }
+
+    /**
+     * Parses limits given as Name=limit[,Name=limit].
+     * @param limits the limits, or null for none
+     * @return the limits by name
+     * @throws IllegalArgumentException if the limits are invalid
+     */
+    public static Map<String, Integer> parseLimits(final String limits)
+    {
+        final Map<String, Integer> limit_map = new HashMap<>();
+        if (limits == null || limits.trim().isEmpty())
+        {
+            return limit_map;
+        }
+        for (String name_limit : limits.split(","))
+        {
+            final int equals = name_limit.lastIndexOf('=');
+            if (equals <= 0)
+            {
+                throw new IllegalArgumentException("Expected Name=limit, got: " + name_limit);
+            }
+            final int limit;
+            try
+            {
+                limit = Integer.parseInt(name_limit.substring(equals + 1).trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Expected a whole number as the limit, got: " + name_limit);
+            }
+            if (limit < 0)
+            {
+                throw new IllegalArgumentException("The limit can not be negative, got: " + name_limit);
+            }
+            limit_map.put(name_limit.substring(0, equals).trim(), limit);
+        }
+        return limit_map;
+    }
+
+    /**
+     * Runs the task on the general pool, now if the bulkhead has a free slot, or else once one frees up.
+     * Cancelling the returned future cancels the task, whether it is waiting or running. A task cancelled while
+     * waiting never runs, so its {@link CancellableRunnable#cancelTask} must clean up anything it holds.
+     * @param task the task to run
+     * @param priority the priority of the task, higher first
+     * @param waiting_since the time (ms since the epoch) the task started waiting, which it is aged from
+     * @return the future of the task
+     */
+    public Future<?> submit(final CancellableRunnable task, final int priority, final long waiting_since)
+    {
+        final FutureTask<Void> future = new CancellableFutureTask<>(task, null);
+        final QueuedTask queued_task = new QueuedTask(future, priority, waiting_since);
+        synchronized (this)
+        {
+            if (limit == 0 || running < limit)
+            {
+                running++;
+                start(queued_task);
+                return future;
+            }
+            queue.add(queued_task);
+        }
+        queued_count.incrementAndGet();
+        Config.INSTANCE.logger.debug("Job class: {} - At its limit of {}, {} tasks waiting.", name, limit, queue.size());
+        return future;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the maximum number of tasks running at once, 0 for no limit
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public synchronized int getRunningCount()
+    {
+        return running;
+    }
+
+    public int getQueuedCount()
+    {
+        return queue.size();
+    }
+
+    private void start(final QueuedTask queued_task)
+    {
+        MetricsRegistry.INSTANCE.histogram("job_class_queue_wait_seconds", "Time jobs waited for a free slot in their job class.", "class", name).observeSince(queued_task.queued_time);
+        ExecutionUtil.INSTANCE.executeTask(() ->
+        {
+            try
+            {
+                queued_task.future.run();
+            }
+            finally
+            {
+                release();
+            }
+        });
+    }
+
+    /**
+     * Hands the slot of a finished task to the next waiting task, if any.
+     */
+    private synchronized void release()
+    {
+        QueuedTask next_task = queue.poll();
+        // Tasks cancelled while waiting will never run, so they are dropped rather than given the slot.
+        while (next_task != null && next_task.future.isCancelled())
+        {
+            next_task = queue.poll();
+        }
+        if (next_task == null)
+        {
+            running--;
+            return;
+        }
+        start(next_task);
+    }
+
+    private class QueuedTask implements Comparable<QueuedTask>
+    {
+        private final FutureTask<Void> future;
+        private final long queued_time = System.currentTimeMillis();
+        private final long order = sequence.getAndIncrement();
+        // As every task ages at the same rate, ordering on the priority at a fixed time keeps the order right as time passes.
+        private final double aged_priority;
+
+        private QueuedTask(final FutureTask<Void> future, final int priority, final long waiting_since)
+        {
+            this.future = future;
+            this.aged_priority = aging_interval > 0 ? priority - (double) waiting_since / aging_interval : priority;
+        }
+
+        @Override
+        public int compareTo(final QueuedTask other)
+        {
+            final int compare = Double.compare(other.aged_priority, aged_priority);
+            return compare != 0 ? compare : Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.thread;
+
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link FutureTask} which tells its task to stop when it is cancelled, as interrupting the thread running it is not
+ * always enough to stop a long running process.
+ */
+public class CancellableFutureTask<T> extends FutureTask<T>
+{
+    private final Runnable cancel;
+
+    public CancellableFutureTask(final CancellableRunnable runnable, final T value)
+    {
+        super(runnable, value);
+        this.cancel = runnable::cancelTask;
+    }
+
+    public CancellableFutureTask(final CancellableCallable<T> callable)
+    {
+        super(callable);
+        this.cancel = callable::cancelTask;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        cancel.run();
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
@@ -22,13 +22,26 @@
 
 package com.gosimple.jpgagent.thread;
 
+import com.gosimple.jpgagent.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public enum ExecutionUtil
 {
     INSTANCE;
 
+    // Number of threads shared by all short, periodic tasks such as draining process output.
+    private static final int SCHEDULED_POOL_SIZE = 2;
+    // Name of the bulkhead for jobs without a job class.
+    public static final String DEFAULT_BULKHEAD = "default";
+
     private final ThreadPoolExecutor generalThreadPool;
+    private final ScheduledThreadPoolExecutor scheduledThreadPool;
+    private final Map<String, Bulkhead> bulkhead_map = new ConcurrentHashMap<>();
+    private volatile Map<String, Integer> bulkhead_limit_map;
 
     ExecutionUtil()
     {
@@ -38,6 +51,8 @@ public enum ExecutionUtil
                 300L,
                 TimeUnit.SECONDS,
                 new SynchronousQueue<>());
+        scheduledThreadPool = new ScheduledThreadPoolExecutor(SCHEDULED_POOL_SIZE);
+        scheduledThreadPool.setRemoveOnCancelPolicy(true);
     }
 
     public void executeTask(Runnable r)
@@ -55,6 +70,102 @@ public enum ExecutionUtil
         return generalThreadPool.submit(c);
     }
 
+    /**
+     * Submits the task, counting the latch down once the thread running it has left it.
+     * The future is done as soon as it is cancelled, while the latch tells when the task has really stopped.
+     * @param r the task to run
+     * @param exited counted down once the task has returned, or once it is skipped because it was cancelled first
+     * @return the future used to cancel the task
+     */
+    public Future<?> submitTask(CancellableRunnable r, CountDownLatch exited)
+    {
+        final FutureTask<Void> future = new CancellableFutureTask<>(r, null);
+        generalThreadPool.execute(() ->
+        {
+            try
+            {
+                future.run();
+            }
+            finally
+            {
+                exited.countDown();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns the bulkhead for a pgAgent job class, creating it with the limit configured for the class on first use.
+     * @param class_name the name of the job class, or null for jobs without one
+     * @return the bulkhead for the job class
+     */
+    public Bulkhead getBulkhead(final String class_name)
+    {
+        final String name = class_name == null ? DEFAULT_BULKHEAD : class_name;
+        return bulkhead_map.computeIfAbsent(name, n -> new Bulkhead(n, getBulkheadLimits().getOrDefault(n, 0), Config.INSTANCE.priority_aging_interval));
+    }
+
+    /**
+     * @return the bulkheads created so far
+     */
+    public List<Bulkhead> getBulkheads()
+    {
+        return new ArrayList<>(bulkhead_map.values());
+    }
+
+    private Map<String, Integer> getBulkheadLimits()
+    {
+        if (bulkhead_limit_map == null)
+        {
+            bulkhead_limit_map = Bulkhead.parseLimits(Config.INSTANCE.job_class_limit);
+        }
+        return bulkhead_limit_map;
+    }
+
+    /**
+     * Runs the task repeatedly on the scheduled pool, with the delay between the end of one run and the start of the next.
+     * Tasks must be short and never block, as the pool only has a few threads.
+     * @param r the task to run
+     * @param delay the delay between runs in ms
+     * @return the future used to stop the task
+     */
+    public ScheduledFuture<?> scheduleTask(Runnable r, long delay)
+    {
+        return scheduledThreadPool.scheduleWithFixedDelay(r, 0, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of threads running tasks
+     */
+    public int getActiveCount()
+    {
+        return generalThreadPool.getActiveCount();
+    }
+
+    /**
+     * @return the number of threads in the pool, running or idle
+     */
+    public int getPoolSize()
+    {
+        return generalThreadPool.getPoolSize();
+    }
+
+    /**
+     * @return the number of tasks completed
+     */
+    public long getCompletedTaskCount()
+    {
+        return generalThreadPool.getCompletedTaskCount();
+    }
+
+    /**
+     * @return the number of periodic tasks waiting on the scheduled pool
+     */
+    public int getScheduledQueueSize()
+    {
+        return scheduledThreadPool.getQueue().size();
+    }
+
     private class CancellableExecutor extends ThreadPoolExecutor
     {
         public CancellableExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue)
@@ -79,15 +190,7 @@ public enum ExecutionUtil
         {
             if (runnable instanceof CancellableRunnable)
             {
-                return new FutureTask<T>(runnable, value)
-                {
-                    @Override
-                    public boolean cancel(boolean mayInterruptIfRunning)
-                    {
-                        ((CancellableRunnable) runnable).cancelTask();
-                        return super.cancel(mayInterruptIfRunning);
-                    }
-                };
+                return new CancellableFutureTask<>((CancellableRunnable) runnable, value);
             }
             else
             {
@@ -110,15 +213,7 @@ public enum ExecutionUtil
         {
             if (callable instanceof CancellableCallable)
             {
-                return new FutureTask<T>(callable)
-                {
-                    @Override
-                    public boolean cancel(boolean mayInterruptIfRunning)
-                    {
-                        ((CancellableCallable) callable).cancelTask();
-                        return super.cancel(mayInterruptIfRunning);
-                    }
-                };
+                return new CancellableFutureTask<>((CancellableCallable<T>) callable);
             }
             else
             {
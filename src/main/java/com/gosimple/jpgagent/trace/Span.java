@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A timed operation within a trace. Spans which are not sampled do nothing, so instrumented code
+ * never has to check whether tracing is on.
+ */
+public class Span
+{
+    /**
+     * The span of everything which is not traced.
+     */
+    public static final Span NOOP = new Span();
+    private static final Scope NOOP_SCOPE = () -> { };
+
+    private final boolean sampled;
+    private final String trace_id;
+    private final String span_id;
+    private final String parent_span_id;
+    private final String name;
+    private final long start_epoch_nanos;
+    private final long start_nanos;
+    private final List<Object[]> attributes;
+    private long end_epoch_nanos;
+    private String error;
+    private boolean ended = false;
+
+    /**
+     * Restores the span which was current before, when closed.
+     */
+    public interface Scope extends AutoCloseable
+    {
+        @Override
+        void close();
+    }
+
+    private Span()
+    {
+        this.sampled = false;
+        this.trace_id = null;
+        this.span_id = null;
+        this.parent_span_id = null;
+        this.name = null;
+        this.start_epoch_nanos = 0;
+        this.start_nanos = 0;
+        this.attributes = null;
+    }
+
+    Span(final String name, final Span parent)
+    {
+        this.sampled = true;
+        this.trace_id = parent != null ? parent.trace_id : randomHex(16);
+        this.span_id = randomHex(8);
+        this.parent_span_id = parent != null ? parent.span_id : null;
+        this.name = name;
+        this.start_epoch_nanos = System.currentTimeMillis() * 1000000L;
+        this.start_nanos = System.nanoTime();
+        this.attributes = new ArrayList<>();
+    }
+
+    public boolean isSampled()
+    {
+        return sampled;
+    }
+
+    /**
+     * @param key the attribute name
+     * @param value a String, Number or Boolean
+     * @return this span
+     */
+    public Span setAttribute(final String key, final Object value)
+    {
+        if (sampled && value != null)
+        {
+            synchronized (this)
+            {
+                attributes.add(new Object[]{key, value});
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Marks the span as failed.
+     * @param error what went wrong
+     * @return this span
+     */
+    public Span setError(final String error)
+    {
+        if (sampled)
+        {
+            synchronized (this)
+            {
+                this.error = error == null ? "" : error;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Makes this the current span of the thread, so spans started on it become its children.
+     * @return the scope to close, on the same thread, once the work of the span is done
+     */
+    public Scope makeCurrent()
+    {
+        if (!sampled)
+        {
+            return NOOP_SCOPE;
+        }
+        return Tracer.INSTANCE.makeCurrent(this);
+    }
+
+    /**
+     * Ends the span and queues it for export. Only the first call has any effect.
+     */
+    public void end()
+    {
+        if (!sampled)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (ended)
+            {
+                return;
+            }
+            ended = true;
+            end_epoch_nanos = start_epoch_nanos + (System.nanoTime() - start_nanos);
+        }
+        Tracer.INSTANCE.export(this);
+    }
+
+    public String getTraceId()
+    {
+        return trace_id;
+    }
+
+    public String getSpanId()
+    {
+        return span_id;
+    }
+
+    public String getParentSpanId()
+    {
+        return parent_span_id;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    long getStartEpochNanos()
+    {
+        return start_epoch_nanos;
+    }
+
+    synchronized long getEndEpochNanos()
+    {
+        return end_epoch_nanos;
+    }
+
+    synchronized List<Object[]> getAttributes()
+    {
+        return new ArrayList<>(attributes);
+    }
+
+    synchronized String getError()
+    {
+        return error;
+    }
+
+    private static String randomHex(final int bytes)
+    {
+        final StringBuilder string_builder = new StringBuilder(bytes * 2);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++)
+        {
+            final int b = random.nextInt(256);
+            string_builder.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return string_builder.toString();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.trace;
+
+import com.gosimple.jpgagent.Config;
+import com.gosimple.jpgagent.json.JsonUtil;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes ended spans to a file in the background, as OTLP JSON.
+ * Each line of the file is one export request in the OTLP/JSON format, holding a batch of spans, so the
+ * file can be read line by line or replayed to a collector as is. If the queue is full, spans are dropped
+ * rather than waited on.
+ */
+public class SpanExporter implements Runnable
+{
+    private static final int QUEUE_SIZE = 10000;
+    private static final int BATCH_SIZE = 512;
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final Path file;
+    private final String host_name;
+    private final BlockingQueue<Span> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+    private final BufferedWriter writer;
+    private volatile long exported_count = 0;
+    private volatile long dropped_count = 0;
+
+    /**
+     * Opens the file, appending to it if it exists. Nothing is written until the exporter is started or flushed.
+     * @param file the file to write the spans to
+     * @param host_name the host recorded as the source of the spans
+     * @throws IOException if the file could not be opened
+     */
+    public SpanExporter(final Path file, final String host_name) throws IOException
+    {
+        this.file = file;
+        this.host_name = host_name;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Starts the thread writing the queued spans.
+     */
+    public void start()
+    {
+        final Thread thread = new Thread(this, "jpgagent-trace");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an ended span to be written.
+     * @param span the span
+     */
+    void export(final Span span)
+    {
+        if (!queue.offer(span))
+        {
+            dropped_count++;
+        }
+    }
+
+    /**
+     * Writes all queued spans now.
+     */
+    public synchronized void flush()
+    {
+        final List<Span> batch = new ArrayList<>(BATCH_SIZE);
+        while (queue.drainTo(batch, BATCH_SIZE) > 0)
+        {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return the number of spans written
+     */
+    public long getExportedCount()
+    {
+        return exported_count;
+    }
+
+    /**
+     * @return the number of spans dropped, either because the queue was full or they could not be written
+     */
+    public long getDroppedCount()
+    {
+        return dropped_count;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                final Span span = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (span == null)
+                {
+                    continue;
+                }
+                // Gives the rest of a trace a moment to end, so it is written as one batch.
+                Thread.sleep(Math.min(FLUSH_INTERVAL, 100));
+                synchronized (this)
+                {
+                    final List<Span> batch = new ArrayList<>(BATCH_SIZE);
+                    batch.add(span);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    write(batch);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                flush();
+                return;
+            }
+        }
+    }
+
+    private void write(final List<Span> batch)
+    {
+        try
+        {
+            writer.write(toJson(batch));
+            writer.newLine();
+            writer.flush();
+            exported_count += batch.size();
+        }
+        catch (IOException e)
+        {
+            dropped_count += batch.size();
+            Config.INSTANCE.logger.error("Unable to write spans to trace file: {}. Message: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * @param batch the spans
+     * @return the spans as an OTLP/JSON export request
+     */
+    String toJson(final List<Span> batch)
+    {
+        final StringBuilder json = new StringBuilder(256 * batch.size());
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        appendAttribute(json, "service.name", "jpgagent");
+        if (host_name != null)
+        {
+            json.append(',');
+            appendAttribute(json, "host.name", host_name);
+        }
+        json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"jpgagent\"},\"spans\":[");
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            appendSpan(json, batch.get(i));
+        }
+        json.append("]}]}]}");
+        return json.toString();
+    }
+
+    private static void appendSpan(final StringBuilder json, final Span span)
+    {
+        json.append("{\"traceId\":\"").append(span.getTraceId())
+                .append("\",\"spanId\":\"").append(span.getSpanId()).append('"');
+        if (span.getParentSpanId() != null)
+        {
+            json.append(",\"parentSpanId\":\"").append(span.getParentSpanId()).append('"');
+        }
+        json.append(",\"name\":");
+        JsonUtil.appendString(json, span.getName());
+        // OTLP/JSON encodes 64 bit integers as strings.
+        json.append(",\"kind\":1,\"startTimeUnixNano\":\"").append(span.getStartEpochNanos())
+                .append("\",\"endTimeUnixNano\":\"").append(span.getEndEpochNanos())
+                .append("\",\"attributes\":[");
+        final List<Object[]> attributes = span.getAttributes();
+        for (int i = 0; i < attributes.size(); i++)
+        {
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            appendAttribute(json, (String) attributes.get(i)[0], attributes.get(i)[1]);
+        }
+        json.append(']');
+        final String error = span.getError();
+        if (error != null)
+        {
+            json.append(",\"status\":{\"code\":2,\"message\":");
+            JsonUtil.appendString(json, error);
+            json.append('}');
+        }
+        json.append('}');
+    }
+
+    private static void appendAttribute(final StringBuilder json, final String key, final Object value)
+    {
+        json.append("{\"key\":");
+        JsonUtil.appendString(json, key);
+        json.append(",\"value\":{");
+        if (value instanceof Boolean)
+        {
+            json.append("\"boolValue\":").append(value);
+        }
+        else if (value instanceof Integer || value instanceof Long)
+        {
+            json.append("\"intValue\":\"").append(value).append('"');
+        }
+        else if (value instanceof Number)
+        {
+            json.append("\"doubleValue\":").append(value);
+        }
+        else
+        {
+            json.append("\"stringValue\":");
+            JsonUtil.appendString(json, value.toString());
+        }
+        json.append("}}");
+    }
+}
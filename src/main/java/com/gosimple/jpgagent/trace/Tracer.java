@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent.trace;
+
+import com.gosimple.jpgagent.Config;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts spans and keeps track of the current span of each thread.
+ * Whether a trace is recorded is decided once, when its root span is started. A trace which is not sampled
+ * only ever hands out the same no-op span, so it costs nothing more than a random number.
+ */
+public enum Tracer
+{
+    INSTANCE;
+
+    private final ThreadLocal<Span> current_span = new ThreadLocal<>();
+    private volatile double sample_rate = 0;
+    private volatile SpanExporter span_exporter;
+    private volatile boolean configured = false;
+
+    /**
+     * Sets the sample rate and where the sampled spans are exported to, replacing the configuration of jpgAgent.
+     * @param sample_rate the fraction of traces to record, from 0 to 1
+     * @param span_exporter where ended spans are sent, or null to record nothing
+     */
+    public synchronized void configure(final double sample_rate, final SpanExporter span_exporter)
+    {
+        this.sample_rate = span_exporter == null ? 0 : sample_rate;
+        this.span_exporter = span_exporter;
+        this.configured = true;
+    }
+
+    /**
+     * Starts a new trace, if it is sampled.
+     * @param name the name of the root span
+     * @return the root span, or a no-op span if the trace is not sampled
+     */
+    public Span startRootSpan(final String name)
+    {
+        if (!configured)
+        {
+            configureFromConfig();
+        }
+        final double rate = sample_rate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate))
+        {
+            return Span.NOOP;
+        }
+        return new Span(name, null);
+    }
+
+    /**
+     * Starts a child of the current span of the thread.
+     * @param name the name of the span
+     * @return the span, or a no-op span if there is no current span
+     */
+    public Span startSpan(final String name)
+    {
+        return startSpan(name, current_span.get());
+    }
+
+    /**
+     * Starts a child of the parent, which may have been started on another thread.
+     * @param name the name of the span
+     * @param parent the parent span
+     * @return the span, or a no-op span if the parent is not sampled
+     */
+    public Span startSpan(final String name, final Span parent)
+    {
+        if (parent == null || !parent.isSampled())
+        {
+            return Span.NOOP;
+        }
+        return new Span(name, parent);
+    }
+
+    /**
+     * @return the current span of the thread, or a no-op span if there is none
+     */
+    public Span currentSpan()
+    {
+        final Span span = current_span.get();
+        return span == null ? Span.NOOP : span;
+    }
+
+    Span.Scope makeCurrent(final Span span)
+    {
+        final Span previous = current_span.get();
+        current_span.set(span);
+        return () -> {
+            if (previous == null)
+            {
+                current_span.remove();
+            }
+            else
+            {
+                current_span.set(previous);
+            }
+        };
+    }
+
+    void export(final Span span)
+    {
+        final SpanExporter exporter = span_exporter;
+        if (exporter != null)
+        {
+            exporter.export(span);
+        }
+    }
+
+    private synchronized void configureFromConfig()
+    {
+        if (configured)
+        {
+            return;
+        }
+        SpanExporter exporter = null;
+        if (Config.INSTANCE.trace_sample_rate > 0)
+        {
+            if (Config.INSTANCE.trace_file == null)
+            {
+                Config.INSTANCE.logger.warn("--trace-sample-rate is set without --trace-file, tracing is disabled.");
+            }
+            else
+            {
+                try
+                {
+                    exporter = new SpanExporter(Paths.get(Config.INSTANCE.trace_file), Config.INSTANCE.hostname);
+                    exporter.start();
+                }
+                catch (IOException e)
+                {
+                    Config.INSTANCE.logger.error("Unable to open trace file: {}, tracing is disabled. Message: {}", Config.INSTANCE.trace_file, e.getMessage());
+                    exporter = null;
+                }
+            }
+        }
+        configure(Config.INSTANCE.trace_sample_rate, exporter);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.admin.AdminServer;
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.JobRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.FutureTask;
+
+public class AdminServerTest
+{
+    private AdminServer admin_server;
+
+    @Before
+    public void start() throws IOException
+    {
+        admin_server = new AdminServer("127.0.0.1", 0);
+    }
+
+    @After
+    public void stop()
+    {
+        admin_server.stop();
+        JobRegistry.INSTANCE.clear();
+        JobRegistry.INSTANCE.setPaused(false);
+        JobRegistry.INSTANCE.setMaxRunningJobs(0);
+    }
+
+    @Test
+    public void listsAndKillsRegisteredJobs() throws Exception
+    {
+        final Job job = new Job(12, "nightly \"backup\"", "", 34);
+        job.setJobStepList(new ArrayList<>());
+        final FutureTask<Void> future = new FutureTask<>(job, null);
+        JobRegistry.INSTANCE.register(job, future);
+
+        final String jobs = request("GET", "/jobs", 200);
+        Assert.assertTrue(jobs.startsWith("{\"jobs\":[{\"job_id\":12,\"job_log_id\":34,\"job_name\":\"nightly \\\"backup\\\"\",\"priority\":0,\"job_class\":null,\"status\":\"WAITING\""));
+        Assert.assertTrue(request("GET", "/stats", 200).contains("\"running_jobs\":1,\"waiting_jobs\":1"));
+
+        Assert.assertTrue(request("POST", "/jobs/12/kill", 200).contains("\"killed\":12"));
+        Assert.assertTrue(future.isCancelled());
+        // The job never ran, so it is still cancelling and holding its slot.
+        Assert.assertTrue(request("GET", "/jobs", 200).contains("\"status\":\"CANCELLING\""));
+        Assert.assertTrue(request("GET", "/stats", 200).contains("\"running_jobs\":1"));
+        request("POST", "/jobs/12/kill", 404);
+        request("POST", "/jobs/abc/kill", 400);
+    }
+
+    @Test
+    public void controlsDispatch() throws Exception
+    {
+        Assert.assertTrue(request("POST", "/pause", 200).contains("\"paused\":true"));
+        Assert.assertTrue(JobRegistry.INSTANCE.isPaused());
+        Assert.assertTrue(request("POST", "/resume", 200).contains("\"paused\":false"));
+        Assert.assertFalse(JobRegistry.INSTANCE.isPaused());
+
+        Assert.assertTrue(request("POST", "/max-running-jobs?value=3", 200).contains("\"max_running_jobs\":3"));
+        Assert.assertEquals(Integer.valueOf(3), JobRegistry.INSTANCE.getAvailableSlots());
+        request("POST", "/max-running-jobs?value=-1", 400);
+        request("POST", "/max-running-jobs", 400);
+        Assert.assertEquals(3, JobRegistry.INSTANCE.getMaxRunningJobs());
+        request("GET", "/pause", 404);
+    }
+
+    @Test
+    public void refusesCrossSiteRequests() throws Exception
+    {
+        final HttpClient http_client = HttpClient.newHttpClient();
+        final URI pause = URI.create("http://127.0.0.1:" + admin_server.getPort() + "/pause");
+        // What a plain html form on another site sends.
+        final HttpResponse<String> form_post = http_client.send(HttpRequest.newBuilder(pause)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(403, form_post.statusCode());
+        final HttpResponse<String> page_post = http_client.send(HttpRequest.newBuilder(pause)
+                .header("Origin", "http://example.com")
+                .header(AdminServer.REQUEST_HEADER, "page")
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(403, page_post.statusCode());
+        Assert.assertFalse(JobRegistry.INSTANCE.isPaused());
+    }
+
+    private String request(final String method, final String path, final int expected_status) throws IOException
+    {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + admin_server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty(AdminServer.REQUEST_HEADER, "test");
+        Assert.assertEquals(expected_status, connection.getResponseCode());
+        try (InputStream input = expected_status < 400 ? connection.getInputStream() : connection.getErrorStream())
+        {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.BackendEscalation;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BackendEscalationTest
+{
+    private static final String BACKEND_START = "2026-01-01 00:00:00.123456+00";
+    private static final String LOOKUP = "SELECT backend_start::text FROM pg_stat_activity WHERE pid = ?; [42]";
+    private static final String CANCEL = "SELECT pg_cancel_backend(pid) FROM pg_stat_activity WHERE pid = ? AND backend_start::text = ?; [42, " + BACKEND_START + "]";
+    private static final String TERMINATE = "SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE pid = ? AND backend_start::text = ?; [42, " + BACKEND_START + "]";
+
+    @Test
+    public void leavesStatementsWhichStopAlone() throws Exception
+    {
+        final AtomicInteger connections = new AtomicInteger();
+        BackendEscalation.escalate(() -> false, () ->
+        {
+            connections.incrementAndGet();
+            return new FakeConnection().getConnection();
+        }, 42, 50, 1, 1);
+        Assert.assertEquals(0, connections.get());
+    }
+
+    @Test
+    public void cancelsThenTerminatesTheSameBackend() throws Exception
+    {
+        final FakeConnection fake_connection = new FakeConnection();
+        fake_connection.setQueryResult(BACKEND_START);
+        BackendEscalation.escalate(() -> true, fake_connection::getConnection, 42, 50, 1, 1);
+        Assert.assertEquals(Arrays.asList(LOOKUP, CANCEL, TERMINATE), fake_connection.getExecuted());
+        Assert.assertTrue(fake_connection.isClosed());
+    }
+
+    @Test
+    public void stopsOnceTheCancelWorks() throws Exception
+    {
+        final FakeConnection fake_connection = new FakeConnection();
+        fake_connection.setQueryResult(BACKEND_START);
+        BackendEscalation.escalate(() -> !fake_connection.getExecuted().contains(CANCEL), fake_connection::getConnection, 42, 50, 1, 1);
+        Assert.assertEquals(Arrays.asList(LOOKUP, CANCEL), fake_connection.getExecuted());
+    }
+
+    @Test
+    public void neverSignalsABackendWhichIsGone() throws Exception
+    {
+        final FakeConnection fake_connection = new FakeConnection();
+        BackendEscalation.escalate(() -> true, fake_connection::getConnection, 42, 50, 1, 1);
+        Assert.assertEquals(Collections.singletonList(LOOKUP), fake_connection.getExecuted());
+
+        // The statement finished while the backend was looked up, so the pid may already belong to another session.
+        final FakeConnection finished_connection = new FakeConnection();
+        finished_connection.setQueryResult(BACKEND_START);
+        BackendEscalation.escalate(() -> finished_connection.getExecuted().isEmpty(), finished_connection::getConnection, 42, 50, 1, 1);
+        Assert.assertEquals(Collections.singletonList(LOOKUP), finished_connection.getExecuted());
+    }
+}
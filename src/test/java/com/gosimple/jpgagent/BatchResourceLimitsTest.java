@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.step.BatchResourceLimits;
+import com.gosimple.jpgagent.job.step.JobStep;
+import com.gosimple.jpgagent.job.step.OnError;
+import com.gosimple.jpgagent.job.step.StepType;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BatchResourceLimitsTest
+{
+    @Test
+    public void noLimitsRunsScriptDirectly()
+    {
+        final BatchResourceLimits limits = new BatchResourceLimits();
+        Assert.assertEquals(Collections.singletonList("/tmp/script.sh"), limits.wrapCommand("/tmp/script.sh"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidNiceIsRejected()
+    {
+        new BatchResourceLimits().setNice(20);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidIoniceClassIsRejected()
+    {
+        new BatchResourceLimits().setIoniceClass("fast");
+    }
+
+    @Test
+    public void limitsAreInheritedByScript() throws Exception
+    {
+        Assume.assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        final File script = File.createTempFile("jpgagent", ".sh");
+        script.deleteOnExit();
+        Files.write(script.toPath(), "#!/bin/sh\nulimit -n\nulimit -t\nnice\n".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(script.setExecutable(true));
+
+        final BatchResourceLimits limits = new BatchResourceLimits();
+        limits.setNice(5);
+        limits.setOpenFiles(64);
+        limits.setCpuSeconds(600L);
+        limits.setIoniceClass("idle");
+
+        final Process process = new ProcessBuilder(limits.wrapCommand(script.getAbsolutePath())).redirectErrorStream(true).start();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = process.getInputStream())
+        {
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = input.read(buffer)) != -1)
+            {
+                output.write(buffer, 0, read);
+            }
+        }
+        Assert.assertEquals(0, process.waitFor());
+
+        final String[] lines = output.toString("UTF-8").trim().split("\n");
+        Assert.assertEquals("64", lines[0].trim());
+        Assert.assertEquals("600", lines[1].trim());
+        Assert.assertEquals("5", lines[2].trim());
+    }
+
+    @Test
+    public void scriptDoesNotRunWhenNicenessCanNotBeSet() throws Exception
+    {
+        Assume.assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        final File script = File.createTempFile("jpgagent", ".sh");
+        script.deleteOnExit();
+        Files.write(script.toPath(), "#!/bin/sh\necho ran\n".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(script.setReadable(true, false));
+        Assert.assertTrue(script.setExecutable(true, false));
+
+        final BatchResourceLimits limits = new BatchResourceLimits();
+        limits.setNice(-5);
+        final List<String> command = new ArrayList<>();
+        if ("root".equals(System.getProperty("user.name")))
+        {
+            // Only an unprivileged user is refused a higher priority.
+            Assume.assumeTrue(new File("/usr/bin/setpriv").canExecute());
+            command.addAll(List.of("/usr/bin/setpriv", "--reuid=65534", "--regid=65534", "--clear-groups"));
+        }
+        command.addAll(limits.wrapCommand(script.getAbsolutePath()));
+
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final String output;
+        try (InputStream input = process.getInputStream())
+        {
+            output = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Assert.assertNotEquals(0, process.waitFor());
+        Assert.assertFalse(output.contains("ran"));
+        Assert.assertTrue(output.contains("Unable to set niceness to -5."));
+    }
+
+    @Test
+    public void invalidLimitAnnotationsFailTheStep() throws Exception
+    {
+        final Job job = new Job(1, "nightly", "", 1);
+        final JobStep job_step = new JobStep(job, 1, "batch", "@BATCH_NICE=-30;\n@BATCH_LIMIT_OPEN_FILES=lots;\n@BATCH_LIMIT_CPU_SECONDS=60;",
+                StepType.BATCH, "echo hi", null, null, OnError.FAIL);
+        Assert.assertEquals(2, job_step.getAnnotationErrors().size());
+        Assert.assertTrue(job_step.getAnnotationErrors().get(0).startsWith("Invalid @BATCH_NICE: "));
+        Assert.assertTrue(job_step.getAnnotationErrors().get(1).startsWith("Invalid @BATCH_LIMIT_OPEN_FILES: "));
+        final JobStep valid_step = new JobStep(job, 2, "batch", "@BATCH_NICE=10;", StepType.BATCH, "echo hi", null, null, OnError.FAIL);
+        Assert.assertTrue(valid_step.getAnnotationErrors().isEmpty());
+    }
+}
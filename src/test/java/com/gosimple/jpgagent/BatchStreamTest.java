@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.CopyStreams;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class BatchStreamTest
+{
+    @Test
+    public void streamsRowsIntoOutput() throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Assert.assertEquals(2, CopyStreams.copy(FakeCopy.copyOut(Arrays.asList("1,one\n", "2,two\n")), output));
+        Assert.assertEquals("1,one\n2,two\n", output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void streamsInputIntoCopy() throws Exception
+    {
+        final byte[] data = new byte[200000];
+        Arrays.fill(data, (byte) 'x');
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        CopyStreams.copy(new ByteArrayInputStream(data), FakeCopy.copyIn(written));
+        Assert.assertArrayEquals(data, written.toByteArray());
+    }
+
+    @Test
+    public void streamsThroughAProcess() throws Exception
+    {
+        // More rows than fit in a pipe, so the input only completes if the output is read at the same time.
+        final List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 20000; i++)
+        {
+            rows.add(i + ",row " + i + "\n");
+        }
+        final Process process = new ProcessBuilder("cat").start();
+        final Future<Long> input_future = ExecutionUtil.INSTANCE.submitTask(() ->
+        {
+            try (OutputStream output = process.getOutputStream())
+            {
+                return CopyStreams.copy(FakeCopy.copyOut(rows), output);
+            }
+        });
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        try (InputStream input = process.getInputStream())
+        {
+            CopyStreams.copy(input, FakeCopy.copyIn(written));
+        }
+        Assert.assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Long.valueOf(rows.size()), input_future.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(String.join("", rows), written.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void reportsInputTruncatedByACleanExit() throws Exception
+    {
+        // Far more rows than fit in a pipe, so the writes fail once the process has exited.
+        final List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 100000; i++)
+        {
+            rows.add(i + ",row " + i + "\n");
+        }
+        final Process succeeded = new ProcessBuilder("sh", "-c", "head -c 10 > /dev/null").start();
+        final Future<Long> succeeded_input = feed(succeeded, rows);
+        Assert.assertTrue(succeeded.waitFor(5, TimeUnit.SECONDS));
+        Assert.assertNull(CopyStreams.awaitInput(succeeded, succeeded_input));
+
+        final Process failed = new ProcessBuilder("sh", "-c", "head -c 10 > /dev/null; exit 3").start();
+        final Future<Long> failed_input = feed(failed, rows);
+        Assert.assertTrue(failed.waitFor(5, TimeUnit.SECONDS));
+        try
+        {
+            CopyStreams.awaitInput(failed, failed_input);
+            Assert.fail("Expected the broken pipe of a failed process to be rethrown.");
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+    }
+
+    private static Future<Long> feed(final Process process, final List<String> rows)
+    {
+        return ExecutionUtil.INSTANCE.submitTask(() ->
+        {
+            try (OutputStream output = process.getOutputStream())
+            {
+                return CopyStreams.copy(FakeCopy.copyOut(rows), output);
+            }
+        });
+    }
+}
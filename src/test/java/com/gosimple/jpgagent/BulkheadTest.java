@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.thread.Bulkhead;
+import com.gosimple.jpgagent.thread.CancellableRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BulkheadTest
+{
+    @Test
+    public void limitsRunningTasksAndQueuesByPriority() throws Exception
+    {
+        final Bulkhead bulkhead = new Bulkhead("limit-test", 1, 60000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> run_order = new CopyOnWriteArrayList<>();
+        final long now = System.currentTimeMillis();
+        final Future<?> blocking = bulkhead.submit(task(() -> await(release)), 0, now);
+        final Future<?> low = bulkhead.submit(task(() -> run_order.add("low")), 0, now);
+        final Future<?> high = bulkhead.submit(task(() -> run_order.add("high")), 5, now);
+        // Waited ten aging intervals, so it overtakes the higher priority task.
+        final Future<?> aged = bulkhead.submit(task(() -> run_order.add("aged")), 0, now - 10 * 60000);
+
+        Assert.assertEquals(1, bulkhead.getRunningCount());
+        Assert.assertEquals(3, bulkhead.getQueuedCount());
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        low.get(5, TimeUnit.SECONDS);
+        high.get(5, TimeUnit.SECONDS);
+        aged.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(List.of("aged", "high", "low"), run_order);
+        waitForIdle(bulkhead);
+        Assert.assertEquals(0, bulkhead.getQueuedCount());
+    }
+
+    @Test
+    public void cancelsQueuedTasks() throws Exception
+    {
+        final Bulkhead bulkhead = new Bulkhead("cancel-test", 1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final Future<?> blocking = bulkhead.submit(task(() -> await(release)), 0, 0);
+        final Future<?> queued = bulkhead.submit(new CancellableRunnable()
+        {
+            @Override
+            public void cancelTask()
+            {
+                cancelled.set(true);
+            }
+
+            @Override
+            public void run()
+            {
+                ran.set(true);
+            }
+        }, 0, 0);
+
+        Assert.assertTrue(queued.cancel(true));
+        Assert.assertTrue(cancelled.get());
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        waitForIdle(bulkhead);
+        Assert.assertFalse(ran.get());
+    }
+
+    @Test
+    public void runsEverythingWithoutALimit() throws Exception
+    {
+        final Bulkhead bulkhead = new Bulkhead("unlimited-test", 0, 60000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<?> first = bulkhead.submit(task(() -> await(release)), 0, 0);
+        final Future<?> second = bulkhead.submit(task(() -> await(release)), 0, 0);
+        Assert.assertEquals(2, bulkhead.getRunningCount());
+        Assert.assertEquals(0, bulkhead.getQueuedCount());
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void parsesLimits()
+    {
+        Assert.assertTrue(Bulkhead.parseLimits(null).isEmpty());
+        final Map<String, Integer> limits = Bulkhead.parseLimits("Reporting=2, Maintenance = 0");
+        Assert.assertEquals(Integer.valueOf(2), limits.get("Reporting"));
+        Assert.assertEquals(Integer.valueOf(0), limits.get("Maintenance"));
+        for (String invalid : new String[]{"Reporting", "=2", "Reporting=two", "Reporting=-1"})
+        {
+            try
+            {
+                Bulkhead.parseLimits(invalid);
+                Assert.fail("Expected invalid limits to be rejected: " + invalid);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    private static CancellableRunnable task(final Runnable runnable)
+    {
+        return new CancellableRunnable()
+        {
+            @Override
+            public void cancelTask()
+            {
+            }
+
+            @Override
+            public void run()
+            {
+                runnable.run();
+            }
+        };
+    }
+
+    private static void await(final CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitForIdle(final Bulkhead bulkhead) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (bulkhead.getRunningCount() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, bulkhead.getRunningCount());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.JobStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class ChainJobsTest
+{
+    @Test
+    public void parsesJobsByStatus()
+    {
+        final Map<JobStatus, List<Integer>> chain_jobs = Job.parseChainJobs("SUCCEED:12, 13;FAIL:42");
+        Assert.assertEquals(2, chain_jobs.size());
+        Assert.assertEquals(Arrays.asList(12, 13), chain_jobs.get(JobStatus.SUCCEED));
+        Assert.assertEquals(Collections.singletonList(42), chain_jobs.get(JobStatus.FAIL));
+        Assert.assertNull(chain_jobs.get(JobStatus.ABORTED));
+    }
+
+    @Test
+    public void rejectsInvalidChains()
+    {
+        for (String invalid : new String[]{"12", "DONE:12", "SUCCEED:", "SUCCEED:twelve"})
+        {
+            try
+            {
+                Job.parseChainJobs(invalid);
+                Assert.fail("Parsed invalid chain: " + invalid);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.admin.ControlChannel;
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.JobRegistry;
+import com.gosimple.jpgagent.json.JsonUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+
+public class ControlChannelTest
+{
+    @After
+    public void reset()
+    {
+        JobRegistry.INSTANCE.clear();
+        JobRegistry.INSTANCE.setPaused(false);
+        JobRegistry.INSTANCE.setMaxRunningJobs(0);
+    }
+
+    @Test
+    public void parsesJson()
+    {
+        final Map<String, Object> object = JsonUtil.parseObject(" {\"a\": [1, -2.5e1, true, null], \"b\": \"x\\\"\\u00e9\\n\", \"c\": {}} ");
+        Assert.assertEquals(Arrays.asList(1L, -25.0, true, null), object.get("a"));
+        Assert.assertEquals("x\"é\n", object.get("b"));
+        Assert.assertTrue(((Map<?, ?>) object.get("c")).isEmpty());
+        for (String invalid : new String[]{"", "{", "{\"a\" 1}", "[1,]", "\"open", "{} {}", "tru"})
+        {
+            try
+            {
+                JsonUtil.parse(invalid);
+                Assert.fail("Parsed invalid JSON: " + invalid);
+            }
+            catch (IllegalArgumentException e)
+            {
+                Assert.assertTrue(e.getMessage().startsWith("Invalid JSON"));
+            }
+        }
+    }
+
+    @Test
+    public void appliesCommandsForThisAgent()
+    {
+        Assert.assertTrue(ControlChannel.process("{\"command\": \"pause\"}", "host1"));
+        Assert.assertTrue(JobRegistry.INSTANCE.isPaused());
+        Assert.assertTrue(ControlChannel.process("{\"command\": \"resume\", \"agent\": \"*\"}", "host1"));
+        Assert.assertFalse(JobRegistry.INSTANCE.isPaused());
+
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"throttle\", \"max_running_jobs\": 2, \"agent\": \"host2\"}", "host1"));
+        Assert.assertEquals(0, JobRegistry.INSTANCE.getMaxRunningJobs());
+        Assert.assertTrue(ControlChannel.process("{\"command\": \"throttle\", \"max_running_jobs\": 2, \"agent\": \"host1\"}", "host1"));
+        Assert.assertEquals(2, JobRegistry.INSTANCE.getMaxRunningJobs());
+
+        // Drains straight away when nothing is running, and stays paused.
+        Assert.assertTrue(ControlChannel.process("{\"command\": \"drain\"}", "host1"));
+        Assert.assertTrue(JobRegistry.INSTANCE.isPaused());
+        Assert.assertFalse(JobRegistry.INSTANCE.isDraining());
+    }
+
+    @Test
+    public void ignoresInvalidCommands()
+    {
+        Assert.assertFalse(ControlChannel.process("pause", "host1"));
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"restart\"}", "host1"));
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"throttle\"}", "host1"));
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"throttle\", \"max_running_jobs\": 1.5}", "host1"));
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"kill\"}", "host1"));
+        Assert.assertFalse(JobRegistry.INSTANCE.isPaused());
+        Assert.assertEquals(0, JobRegistry.INSTANCE.getMaxRunningJobs());
+    }
+
+    @Test
+    public void killsByJobLogId()
+    {
+        final Job job = new Job(12, "nightly", "", 34);
+        job.setJobStepList(new ArrayList<>());
+        final FutureTask<Void> future = new FutureTask<>(job, null);
+        JobRegistry.INSTANCE.register(job, future);
+
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"kill\", \"job_log_id\": 35}", "host1"));
+        Assert.assertFalse(ControlChannel.process("{\"command\": \"kill\", \"job_log_id\": 34, \"step_id\": 5}", "host1"));
+        Assert.assertFalse(future.isCancelled());
+        Assert.assertTrue(ControlChannel.process("{\"command\": \"kill\", \"job_log_id\": 34}", "host1"));
+        Assert.assertTrue(future.isCancelled());
+
+        // Counted as running until the job has exited, so a throttle can not be exceeded by jobs still tearing down.
+        Assert.assertTrue(ControlChannel.process("{\"command\": \"throttle\", \"max_running_jobs\": 1}", "host1"));
+        JobRegistry.INSTANCE.removeDone();
+        Assert.assertEquals(1, JobRegistry.INSTANCE.getRunningCount());
+        Assert.assertEquals(Integer.valueOf(0), JobRegistry.INSTANCE.getAvailableSlots());
+    }
+}
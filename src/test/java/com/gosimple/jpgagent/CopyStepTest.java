@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.step.CopyStreams;
+import com.gosimple.jpgagent.job.step.JobStep;
+import com.gosimple.jpgagent.job.step.OnError;
+import com.gosimple.jpgagent.job.step.StepType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CopyStepTest
+{
+    @Test
+    public void copiesEveryRow() throws Exception
+    {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final long bytes = CopyStreams.copy(FakeCopy.copyOut(Arrays.asList("1\tone\n", "2\ttwo\n")), FakeCopy.copyIn(written));
+        Assert.assertEquals(12, bytes);
+        Assert.assertEquals("1\tone\n2\ttwo\n", written.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void stopsCopyingWhenInterrupted() throws Exception
+    {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        Thread.currentThread().interrupt();
+        try
+        {
+            CopyStreams.copy(FakeCopy.copyOut(Collections.singletonList("1\tone\n")), FakeCopy.copyIn(written));
+            Assert.fail("Expected the copy to be interrupted.");
+        }
+        catch (InterruptedException e)
+        {
+            Assert.assertEquals(0, written.size());
+        }
+        finally
+        {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void turnsSqlStepsWithATargetTableIntoCopySteps() throws Exception
+    {
+        final Job job = new Job(1, "nightly", "", 1);
+        final JobStep copy_step = new JobStep(job, 1, "copy", "@COPY_TO_TABLE=archive.orders;@COPY_FORMAT=csv;", StepType.SQL, "SELECT * FROM orders", null, "warehouse", OnError.FAIL);
+        Assert.assertEquals(StepType.COPY, copy_step.getStepType());
+        final JobStep sql_step = new JobStep(job, 2, "sql", "", StepType.SQL, "SELECT 1", null, "warehouse", OnError.FAIL);
+        Assert.assertEquals(StepType.SQL, sql_step.getStepType());
+    }
+
+    @Test
+    public void invalidCopyFormatFailsTheStep() throws Exception
+    {
+        final Job job = new Job(1, "nightly", "", 1);
+        final JobStep copy_step = new JobStep(job, 1, "copy", "@COPY_TO_TABLE=archive.orders;\n@COPY_FORMAT=xml;\n@BATCH_NICE=30;",
+                StepType.SQL, "SELECT * FROM orders", null, "warehouse", OnError.FAIL);
+        // The annotations after the invalid format are still processed.
+        Assert.assertEquals(2, copy_step.getAnnotationErrors().size());
+        Assert.assertEquals("Invalid @COPY_FORMAT: Unsupported copy format: xml", copy_step.getAnnotationErrors().get(0));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.email.EmailCoalescer;
+import com.gosimple.jpgagent.email.EmailMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EmailCoalescerTest
+{
+    private static EmailMessage message(final String subject, final String... to)
+    {
+        return new EmailMessage(to, "agent@example.com", subject, "Body of " + subject);
+    }
+
+    @Test
+    public void burstIsSentAsDigest() throws Exception
+    {
+        final List<EmailMessage> sent = new ArrayList<>();
+        final EmailCoalescer email_coalescer = new EmailCoalescer(sent::add, 200, 0);
+        for (int i = 0; i < 300; i++)
+        {
+            email_coalescer.send(message("Job " + i + " failed", "ops@example.com"));
+        }
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals("Job 0 failed", sent.get(0).getSubject());
+
+        // Nothing is due until the window has passed.
+        email_coalescer.flush();
+        Assert.assertEquals(1, sent.size());
+        Thread.sleep(250);
+        email_coalescer.flush();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals("jpgAgent digest: 299 notifications", sent.get(1).getSubject());
+        Assert.assertTrue(sent.get(1).getBody().contains("Job 1 failed"));
+        Assert.assertTrue(sent.get(1).getBody().contains("more notifications were left out"));
+        Assert.assertEquals(0, email_coalescer.getPendingCount());
+    }
+
+    @Test
+    public void recipientsAreCoalescedSeparately()
+    {
+        final List<EmailMessage> sent = new ArrayList<>();
+        final EmailCoalescer email_coalescer = new EmailCoalescer(sent::add, 60000, 0);
+        email_coalescer.send(message("First", "a@example.com", "b@example.com"));
+        email_coalescer.send(message("Second", "b@example.com"));
+        email_coalescer.send(message("Third", "c@example.com"));
+        Assert.assertEquals(3, sent.size());
+        Assert.assertArrayEquals(new String[]{"a@example.com"}, sent.get(0).getTo());
+        Assert.assertArrayEquals(new String[]{"b@example.com"}, sent.get(1).getTo());
+        Assert.assertArrayEquals(new String[]{"c@example.com"}, sent.get(2).getTo());
+        Assert.assertEquals(1, email_coalescer.getPendingCount());
+    }
+
+    @Test
+    public void rateLimitHoldsNotifications()
+    {
+        final List<EmailMessage> sent = new ArrayList<>();
+        final EmailCoalescer email_coalescer = new EmailCoalescer(sent::add, 0, 2);
+        for (int i = 0; i < 5; i++)
+        {
+            email_coalescer.send(message("Job " + i + " failed", "ops@example.com"));
+        }
+        email_coalescer.flush();
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals(3, email_coalescer.getPendingCount());
+    }
+
+    @Test
+    public void digestEscapesSubjects() throws Exception
+    {
+        final List<EmailMessage> sent = new ArrayList<>();
+        final EmailCoalescer email_coalescer = new EmailCoalescer(sent::add, 200, 0);
+        email_coalescer.send(message("Job first failed", "ops@example.com"));
+        email_coalescer.send(message("Job <b>R&D</b> failed", "ops@example.com"));
+        email_coalescer.send(message("Job \"third\" failed", "ops@example.com"));
+        Thread.sleep(250);
+        email_coalescer.flush();
+        Assert.assertEquals(2, sent.size());
+        final String body = sent.get(1).getBody();
+        Assert.assertTrue(body.contains("<h3>Job &lt;b&gt;R&amp;D&lt;/b&gt; failed</h3>"));
+        Assert.assertTrue(body.contains("<h3>Job &quot;third&quot; failed</h3>"));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.email.EmailDispatcher;
+import com.gosimple.jpgagent.email.EmailMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EmailDispatcherTest
+{
+    /**
+     * Accepts SMTP connections and counts the messages and connections, without delivering anything.
+     * Mail from busy@ is always deferred, and mail to invalid@ is always rejected.
+     */
+    private static class SmtpStub implements Runnable
+    {
+        private final ServerSocket server_socket;
+        private final AtomicInteger connection_count = new AtomicInteger();
+        private final AtomicInteger message_count = new AtomicInteger();
+        private final AtomicInteger deferred_count = new AtomicInteger();
+        private final AtomicInteger rejected_count = new AtomicInteger();
+
+        private SmtpStub() throws IOException
+        {
+            server_socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this, "smtp-stub");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run()
+        {
+            while (!server_socket.isClosed())
+            {
+                try (Socket socket = server_socket.accept())
+                {
+                    connection_count.incrementAndGet();
+                    handle(socket);
+                }
+                catch (IOException e)
+                {
+                    // Closed.
+                }
+            }
+        }
+
+        private void handle(final Socket socket) throws IOException
+        {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            final OutputStream output = socket.getOutputStream();
+            reply(output, "220 stub");
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                final String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                switch (command)
+                {
+                    case "MAIL":
+                        if (line.contains("busy@"))
+                        {
+                            deferred_count.incrementAndGet();
+                            reply(output, "451 try again later");
+                        }
+                        else
+                        {
+                            reply(output, "250 ok");
+                        }
+                        break;
+                    case "RCPT":
+                        if (line.contains("invalid@"))
+                        {
+                            rejected_count.incrementAndGet();
+                            reply(output, "550 no such user");
+                        }
+                        else
+                        {
+                            reply(output, "250 ok");
+                        }
+                        break;
+                    case "DATA":
+                        reply(output, "354 go ahead");
+                        while ((line = reader.readLine()) != null && !line.equals("."))
+                        {
+                            // Discard the message.
+                        }
+                        message_count.incrementAndGet();
+                        reply(output, "250 ok");
+                        break;
+                    case "QUIT":
+                        reply(output, "221 bye");
+                        return;
+                    default:
+                        reply(output, "250 ok");
+                        break;
+                }
+            }
+        }
+
+        private static void reply(final OutputStream output, final String reply) throws IOException
+        {
+            output.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+        }
+    }
+
+    @Test
+    public void sendsQueuedMessagesOverOneConnection() throws Exception
+    {
+        final SmtpStub smtp_stub = new SmtpStub();
+        final EmailDispatcher email_dispatcher = new EmailDispatcher("127.0.0.1", smtp_stub.server_socket.getLocalPort(), false, null, null, 1000, 3);
+        final int messages = 200;
+        for (int i = 0; i < messages; i++)
+        {
+            Assert.assertTrue(email_dispatcher.send(new EmailMessage(new String[]{"test@example.com"}, "agent@example.com", "Subject " + i, "Body " + i)));
+        }
+
+        final long start = System.currentTimeMillis();
+        email_dispatcher.start();
+        while (email_dispatcher.getSentCount() < messages && System.currentTimeMillis() - start < 30000)
+        {
+            Thread.sleep(10);
+        }
+        smtp_stub.server_socket.close();
+
+        Assert.assertEquals(messages, email_dispatcher.getSentCount());
+        Assert.assertEquals(messages, smtp_stub.message_count.get());
+        Assert.assertEquals(1, smtp_stub.connection_count.get());
+    }
+
+    @Test
+    public void dropsMessagesWhenQueueIsFull()
+    {
+        final EmailDispatcher email_dispatcher = new EmailDispatcher("127.0.0.1", 25, false, null, null, 1, 1);
+        Assert.assertTrue(email_dispatcher.send(new EmailMessage(new String[]{"test@example.com"}, "agent@example.com", "First", "Body")));
+        Assert.assertFalse(email_dispatcher.send(new EmailMessage(new String[]{"test@example.com"}, "agent@example.com", "Second", "Body")));
+        Assert.assertEquals(1, email_dispatcher.getFailedCount());
+    }
+
+    @Test
+    public void retriesWithoutHoldingUpTheQueue() throws Exception
+    {
+        final SmtpStub smtp_stub = new SmtpStub();
+        final EmailDispatcher email_dispatcher = new EmailDispatcher("127.0.0.1", smtp_stub.server_socket.getLocalPort(), false, null, null, 10, 2);
+        Assert.assertTrue(email_dispatcher.send(new EmailMessage(new String[]{"test@example.com"}, "busy@example.com", "Deferred", "Body")));
+        Assert.assertTrue(email_dispatcher.send(new EmailMessage(new String[]{"test@example.com"}, "agent@example.com", "Sent", "Body")));
+
+        final long start = System.currentTimeMillis();
+        email_dispatcher.start();
+        while (email_dispatcher.getSentCount() < 1 && System.currentTimeMillis() - start < 5000)
+        {
+            Thread.sleep(10);
+        }
+        // Sent while the deferred message waits out its retry delay.
+        Assert.assertEquals(1, email_dispatcher.getSentCount());
+        Assert.assertEquals(1, smtp_stub.deferred_count.get());
+        Assert.assertEquals(1, email_dispatcher.getQueueSize());
+
+        while (email_dispatcher.getFailedCount() < 1 && System.currentTimeMillis() - start < 10000)
+        {
+            Thread.sleep(10);
+        }
+        smtp_stub.server_socket.close();
+        Assert.assertEquals(1, email_dispatcher.getFailedCount());
+        Assert.assertEquals(2, smtp_stub.deferred_count.get());
+        Assert.assertEquals(0, email_dispatcher.getQueueSize());
+    }
+
+    @Test
+    public void doesNotRetryRejectedRecipients() throws Exception
+    {
+        final SmtpStub smtp_stub = new SmtpStub();
+        final EmailDispatcher email_dispatcher = new EmailDispatcher("127.0.0.1", smtp_stub.server_socket.getLocalPort(), false, null, null, 10, 3);
+        Assert.assertTrue(email_dispatcher.send(new EmailMessage(new String[]{"invalid@example.com"}, "agent@example.com", "Rejected", "Body")));
+
+        final long start = System.currentTimeMillis();
+        email_dispatcher.start();
+        while (email_dispatcher.getFailedCount() < 1 && System.currentTimeMillis() - start < 5000)
+        {
+            Thread.sleep(10);
+        }
+        smtp_stub.server_socket.close();
+        Assert.assertEquals(1, email_dispatcher.getFailedCount());
+        Assert.assertEquals(1, smtp_stub.rejected_count.get());
+        Assert.assertEquals(0, email_dispatcher.getQueueSize());
+    }
+}
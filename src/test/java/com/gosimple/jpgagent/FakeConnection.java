@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A JDBC connection which records the SQL run on it instead of talking to a database.
+ * Prepared statements are recorded with their parameters, e.g. "SELECT pg_cancel_backend(?); [42]".
+ */
+public class FakeConnection
+{
+    private final List<String> executed = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+    private volatile String fail_on = null;
+    private volatile String query_result = null;
+    private final Connection connection = (Connection) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class[]{Connection.class}, new ConnectionHandler());
+
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * @return the SQL run on the connection, in order
+     */
+    public List<String> getExecuted()
+    {
+        return executed;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Makes any statement containing the SQL fail with an SQLException.
+     * @param sql the SQL to fail on, or null to fail on nothing
+     */
+    public void failOn(final String sql)
+    {
+        this.fail_on = sql;
+    }
+
+    /**
+     * Makes queries return a single row with the value, or no rows.
+     * @param query_result the value of the row, or null for no rows
+     */
+    public void setQueryResult(final String query_result)
+    {
+        this.query_result = query_result;
+    }
+
+    private ResultSet resultSet()
+    {
+        final String value = query_result;
+        final boolean[] read = {false};
+        return (ResultSet) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class[]{ResultSet.class}, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "next":
+                    final boolean has_row = value != null && !read[0];
+                    read[0] = true;
+                    return has_row;
+                case "getString":
+                    return value;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private void execute(final String sql, final List<Object> parameters) throws SQLException
+    {
+        if (closed)
+        {
+            throw new SQLException("This connection has been closed.");
+        }
+        if (fail_on != null && sql.contains(fail_on))
+        {
+            throw new SQLException("Failed: " + sql);
+        }
+        executed.add(parameters == null ? sql : sql + " " + parameters);
+    }
+
+    private static Object defaultValue(final Class<?> type)
+    {
+        if (type == boolean.class)
+        {
+            return false;
+        }
+        if (type == int.class)
+        {
+            return 0;
+        }
+        if (type == long.class)
+        {
+            return 0L;
+        }
+        return null;
+    }
+
+    private class ConnectionHandler implements InvocationHandler
+    {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "createStatement":
+                    return Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class[]{Statement.class}, new StatementHandler(null));
+                case "prepareStatement":
+                    return Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class[]{PreparedStatement.class}, new StatementHandler((String) args[0]));
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getAutoCommit":
+                    return true;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler
+    {
+        private final String prepared_sql;
+        private final List<Object> parameters = new ArrayList<>();
+
+        private StatementHandler(final String prepared_sql)
+        {
+            this.prepared_sql = prepared_sql;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws SQLException
+        {
+            final String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer)
+            {
+                parameters.add(args[1]);
+                return null;
+            }
+            switch (name)
+            {
+                case "execute":
+                case "executeUpdate":
+                    if (prepared_sql != null)
+                    {
+                        FakeConnection.this.execute(prepared_sql, new ArrayList<>(parameters));
+                    }
+                    else
+                    {
+                        FakeConnection.this.execute((String) args[0], null);
+                    }
+                    return defaultValue(method.getReturnType());
+                case "executeQuery":
+                    if (prepared_sql != null)
+                    {
+                        FakeConnection.this.execute(prepared_sql, new ArrayList<>(parameters));
+                    }
+                    else
+                    {
+                        FakeConnection.this.execute((String) args[0], null);
+                    }
+                    return resultSet();
+                case "getUpdateCount":
+                    return -1;
+                case "getConnection":
+                    return connection;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOut;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * COPY operations for tests, which read rows from a list or write them to a buffer instead of a database.
+ */
+public final class FakeCopy
+{
+    private FakeCopy()
+    {
+    }
+
+    /**
+     * @param rows the rows to read, one after another
+     * @return a copy out reading the rows
+     */
+    public static CopyOut copyOut(final List<String> rows)
+    {
+        final Iterator<String> iterator = rows.iterator();
+        final long[] handled_rows = {0};
+        return (CopyOut) Proxy.newProxyInstance(FakeCopy.class.getClassLoader(), new Class[]{CopyOut.class}, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "readFromCopy":
+                    if (!iterator.hasNext())
+                    {
+                        return null;
+                    }
+                    handled_rows[0]++;
+                    return iterator.next().getBytes(StandardCharsets.UTF_8);
+                case "getHandledRowCount":
+                    return handled_rows[0];
+                case "isActive":
+                    return iterator.hasNext();
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * @param written receives everything written to the copy in
+     * @return a copy in writing to the buffer
+     */
+    public static CopyIn copyIn(final ByteArrayOutputStream written)
+    {
+        return (CopyIn) Proxy.newProxyInstance(FakeCopy.class.getClassLoader(), new Class[]{CopyIn.class}, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "writeToCopy":
+                    written.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                    return null;
+                case "isActive":
+                    return true;
+                case "endCopy":
+                case "getHandledRowCount":
+                    return 0L;
+                default:
+                    return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.database.Database;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+
+public class FlightRecorderEventTest
+{
+    @Test
+    public void failedConnectionIsRecorded() throws Exception
+    {
+        final Path recording_file = Files.createTempFile("jpgagent", ".jfr");
+        try (Recording recording = new Recording())
+        {
+            recording.enable("com.gosimple.jpgagent.ConnectionAcquire");
+            recording.start();
+            try
+            {
+                // Nothing listens on port 1, so this fails right away.
+                Database.INSTANCE.getConnection("127.0.0.1", 1, "postgres").close();
+                Assert.fail("Connection should not succeed.");
+            }
+            catch (SQLException e)
+            {
+                // Expected.
+            }
+            recording.stop();
+            recording.dump(recording_file);
+
+            final List<RecordedEvent> events = RecordingFile.readAllEvents(recording_file);
+            Assert.assertEquals(1, events.size());
+            Assert.assertEquals("127.0.0.1", events.get(0).getString("host"));
+            Assert.assertEquals("postgres", events.get(0).getString("database"));
+            Assert.assertFalse(events.get(0).getBoolean("success"));
+        }
+        finally
+        {
+            Files.deleteIfExists(recording_file);
+        }
+    }
+}
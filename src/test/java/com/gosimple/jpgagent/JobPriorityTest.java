@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.JobPriority;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class JobPriorityTest
+{
+    @Test
+    public void parsesPriority()
+    {
+        Assert.assertEquals(0, JobPriority.parse(null, Collections.emptyMap()));
+        Assert.assertEquals(0, JobPriority.parse("Nightly billing close.", Collections.emptyMap()));
+        Assert.assertEquals(10, JobPriority.parse("Nightly billing close.\n@JOB_PRIORITY=10;\n@JOB_TIMEOUT=1 h;", Collections.emptyMap()));
+        Assert.assertEquals(-5, JobPriority.parse("@JOB_PRIORITY=-5;", Collections.emptyMap()));
+        Assert.assertEquals(0, JobPriority.parse("@JOB_PRIORITY=high;", Collections.emptyMap()));
+        Assert.assertEquals(0, JobPriority.parse("@JOB_PRIORITY=99999999999;", Collections.emptyMap()));
+        Assert.assertEquals(3, JobPriority.parse("@JOB_PRIORITY=10;", Collections.singletonMap("JOB_PRIORITY", "3")));
+        Assert.assertEquals(10, new Job(1, "billing", "@JOB_PRIORITY=10;", 1).getPriority());
+    }
+
+    @Test
+    public void agesWaitingJobs()
+    {
+        Assert.assertEquals(5, JobPriority.age(5, 59999, 60000));
+        Assert.assertEquals(7, JobPriority.age(5, 120000, 60000));
+        Assert.assertEquals(5, JobPriority.age(5, 120000, 0));
+        Assert.assertEquals(5, JobPriority.age(5, -1000, 60000));
+        // A low priority job which has waited long enough overtakes a fresh high priority one.
+        Assert.assertTrue(JobPriority.age(0, 11 * 60000, 60000) > JobPriority.age(10, 0, 60000));
+    }
+
+    @Test
+    public void matchesClaimQuery()
+    {
+        // Runs the regular expressions of the claim query, which only use syntax Java and PostgreSQL share.
+        final String get_job = Config.INSTANCE.sql.getProperty("sql.jpgagent.get_job");
+        final Matcher annotation_regex = Pattern.compile("regexp_matches\\(jobdesc, '([^']*)', 'gn'\\)").matcher(get_job);
+        final Matcher value_regex = Pattern.compile("m\\[1\\] ~ '([^']*)'").matcher(get_job);
+        Assert.assertTrue(annotation_regex.find());
+        Assert.assertTrue(value_regex.find());
+        final Pattern annotation_pattern = Pattern.compile(annotation_regex.group(1), Pattern.MULTILINE);
+        final Pattern value_pattern = Pattern.compile(value_regex.group(1));
+
+        for (String job_comment : new String[]{"", "@JOB_PRIORITY=10;", "@JOB_PRIORITY=-5;", "@JOB_PRIORITY=99999999999;",
+                "@JOB_PRIORITY=999999999;", "@JOB_PRIORITY=5; x", "@JOB_PRIORITY=5; x;", "@JOB_PRIORITY=+5;", "@JOB_PRIORITY=5 s;",
+                " @JOB_PRIORITY=5;", "@JOB_PRIORITY=5;\r\n@JOB_TIMEOUT=1 h;", "@JOB_PRIORITY=1;\n@JOB_PRIORITY=2;",
+                "@JOB_PRIORITY=2;\n@JOB_PRIORITY=high;"})
+        {
+            final Matcher matcher = annotation_pattern.matcher(job_comment);
+            String value = null;
+            while (matcher.find())
+            {
+                value = matcher.group(1);
+            }
+            final int claim_priority = value != null && value_pattern.matcher(value).find() ? Integer.parseInt(value) : 0;
+            Assert.assertEquals(job_comment, claim_priority, JobPriority.parse(job_comment, Collections.emptyMap()));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.metrics.Histogram;
+import com.gosimple.jpgagent.metrics.MetricsRegistry;
+import com.gosimple.jpgagent.metrics.MetricsServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsRegistryTest
+{
+    @After
+    public void clear()
+    {
+        MetricsRegistry.INSTANCE.clear();
+    }
+
+    @Test
+    public void rendersCountersAndGauges()
+    {
+        MetricsRegistry.INSTANCE.counter("test_total", "A test counter.", "status", "FAIL").inc();
+        MetricsRegistry.INSTANCE.counter("test_total", "A test counter.", "status", "FAIL").add(2);
+        MetricsRegistry.INSTANCE.gauge("test_gauge", "A test gauge.", () -> 1.5, "name", "a \"quoted\" \\ name");
+        final String scrape = MetricsRegistry.INSTANCE.scrape();
+        Assert.assertTrue(scrape.contains("# TYPE jpgagent_test_total counter\n"));
+        Assert.assertTrue(scrape.contains("jpgagent_test_total{status=\"FAIL\"} 3\n"));
+        Assert.assertTrue(scrape.contains("jpgagent_test_gauge{name=\"a \\\"quoted\\\" \\\\ name\"} 1.5\n"));
+    }
+
+    @Test
+    public void rendersHistograms()
+    {
+        final Histogram histogram = MetricsRegistry.INSTANCE.histogram("test_seconds", "A test histogram.", "job", "backup");
+        histogram.observe(0.003);
+        histogram.observe(0.2);
+        histogram.observe(5000);
+        final String scrape = MetricsRegistry.INSTANCE.scrape();
+        Assert.assertTrue(scrape.contains("jpgagent_test_seconds_bucket{job=\"backup\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(scrape.contains("jpgagent_test_seconds_bucket{job=\"backup\",le=\"0.25\"} 2\n"));
+        Assert.assertTrue(scrape.contains("jpgagent_test_seconds_bucket{job=\"backup\",le=\"3600\"} 2\n"));
+        Assert.assertTrue(scrape.contains("jpgagent_test_seconds_bucket{job=\"backup\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(scrape.contains("jpgagent_test_seconds_count{job=\"backup\"} 3\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void typeMismatchIsRejected()
+    {
+        MetricsRegistry.INSTANCE.counter("test_mismatch", "A test metric.");
+        MetricsRegistry.INSTANCE.gauge("test_mismatch", "A test metric.");
+    }
+
+    @Test
+    public void serverServesScrape() throws Exception
+    {
+        MetricsRegistry.INSTANCE.counter("test_served_total", "A test counter.").inc();
+        final MetricsServer metrics_server = new MetricsServer("127.0.0.1", 0);
+        try
+        {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + metrics_server.getPort() + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            try (InputStream input = connection.getInputStream())
+            {
+                Assert.assertTrue(new String(input.readAllBytes(), StandardCharsets.UTF_8).contains("jpgagent_test_served_total 1\n"));
+            }
+        }
+        finally
+        {
+            metrics_server.stop();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.NoticePump;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class NoticePumpTest
+{
+    @Test
+    public void handsOnNoticesWhileTheStatementRuns() throws Exception
+    {
+        // Stands in for the driver, which adds notices to the chain of the statement as they arrive.
+        final AtomicReference<SQLWarning> warnings = new AtomicReference<>();
+        final Statement statement = (Statement) Proxy.newProxyInstance(NoticePumpTest.class.getClassLoader(), new Class[]{Statement.class}, (proxy, method, args) ->
+        {
+            switch (method.getName())
+            {
+                case "getWarnings":
+                    return warnings.get();
+                case "clearWarnings":
+                    warnings.set(null);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+        final List<String> notices = new CopyOnWriteArrayList<>();
+        final NoticePump notice_pump = NoticePump.start(statement, warning -> notices.add(warning.getMessage()));
+
+        final SQLWarning first = new SQLWarning("first");
+        warnings.set(first);
+        waitForNotices(notices, 1);
+        first.setNextWarning(new SQLWarning("second"));
+        waitForNotices(notices, 2);
+        first.setNextWarning(new SQLWarning("third"));
+
+        notice_pump.finish();
+        Assert.assertEquals(Arrays.asList("first", "second", "third"), notices);
+        Assert.assertNull(warnings.get());
+    }
+
+    private static void waitForNotices(final List<String> notices, final int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (notices.size() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, notices.size());
+    }
+}
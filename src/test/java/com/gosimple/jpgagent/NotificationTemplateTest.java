@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.email.NotificationTemplate;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class NotificationTemplateTest
+{
+    @Test
+    public void rendersTokens()
+    {
+        final NotificationTemplate notification_template = NotificationTemplate.compile("Job ~job_name~ ~status~ in ~duration~ ~unknown~ ~");
+        final Map<String, String> token_values = new HashMap<>();
+        token_values.put("~job_name~", "backup");
+        token_values.put("~status~", "FAIL");
+        Assert.assertEquals("Job backup FAIL in  ~unknown~ ~", notification_template.render(token_values));
+        // Rendering leaves the template as it was.
+        token_values.put("~status~", "SUCCEED");
+        Assert.assertEquals("Job backup SUCCEED in  ~unknown~ ~", notification_template.render(token_values));
+    }
+
+    @Test
+    public void tokenAfterUnknownText()
+    {
+        final Map<String, String> token_values = new HashMap<>();
+        token_values.put("~status~", "FAIL");
+        Assert.assertEquals("a ~ b FAIL", NotificationTemplate.compile("a ~ b ~status~").render(token_values));
+        Assert.assertEquals("", NotificationTemplate.compile(null).render(token_values));
+    }
+
+    @Test
+    public void templatesAreCached()
+    {
+        Assert.assertSame(NotificationTemplate.compile("~status~ cached"), NotificationTemplate.compile("~status~ cached"));
+    }
+
+    @Test
+    public void formatsOutputTail()
+    {
+        final StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 30; i++)
+        {
+            output.append("line ").append(i).append('\n');
+        }
+        output.append("<error> & \"done\"\n");
+        final String output_tail = NotificationTemplate.formatOutputTail(output.toString());
+        Assert.assertTrue(output_tail.startsWith("line 11<br>"));
+        Assert.assertTrue(output_tail.endsWith("line 29<br>&lt;error&gt; &amp; &quot;done&quot;"));
+        Assert.assertEquals("single", NotificationTemplate.formatOutputTail("single"));
+        Assert.assertEquals("1.005 s", NotificationTemplate.formatDuration(1005));
+    }
+}
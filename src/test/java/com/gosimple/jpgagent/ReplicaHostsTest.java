@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.database.Database;
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.step.JobStep;
+import com.gosimple.jpgagent.job.step.OnError;
+import com.gosimple.jpgagent.job.step.StepType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.postgresql.util.HostSpec;
+
+import java.util.List;
+
+public class ReplicaHostsTest
+{
+    @After
+    public void clearReplicaHosts()
+    {
+        Config.INSTANCE.db_replica_hosts = null;
+    }
+
+    @Test
+    public void parsesHostsWithOptionalPorts()
+    {
+        final List<HostSpec> hosts = Database.parseHosts("standby1, standby2:5433,,10.0.0.7:6432 ", 5432);
+        Assert.assertEquals(3, hosts.size());
+        Assert.assertEquals("standby1", hosts.get(0).getHost());
+        Assert.assertEquals(5432, hosts.get(0).getPort());
+        Assert.assertEquals("standby2", hosts.get(1).getHost());
+        Assert.assertEquals(5433, hosts.get(1).getPort());
+        Assert.assertEquals("10.0.0.7", hosts.get(2).getHost());
+        Assert.assertEquals(6432, hosts.get(2).getPort());
+    }
+
+    @Test
+    public void onlyRoutesToReplicasWhenConfigured()
+    {
+        Assert.assertFalse(Database.INSTANCE.hasReplicaHosts());
+        Config.INSTANCE.db_replica_hosts = " ";
+        Assert.assertFalse(Database.INSTANCE.hasReplicaHosts());
+        Config.INSTANCE.db_replica_hosts = "standby1";
+        Assert.assertTrue(Database.INSTANCE.hasReplicaHosts());
+    }
+
+    @Test
+    public void routesReadOnlyStepsToReplicas() throws Exception
+    {
+        Config.INSTANCE.db_replica_hosts = "standby1";
+        final Job job = new Job(1, "nightly", "", 1);
+        Assert.assertTrue(sqlStep(job, "@READ_ONLY=true;").useReplica());
+        Assert.assertFalse(sqlStep(job, "@READ_ONLY=false;").useReplica());
+        Assert.assertFalse(sqlStep(job, "").useReplica());
+        // A step pointed at a host stays on it.
+        Assert.assertFalse(sqlStep(job, "@READ_ONLY=true;\n@DATABASE_HOST=primary;").useReplica());
+        Config.INSTANCE.db_replica_hosts = null;
+        Assert.assertFalse(sqlStep(job, "@READ_ONLY=true;").useReplica());
+    }
+
+    private static JobStep sqlStep(final Job job, final String description) throws Exception
+    {
+        return new JobStep(job, 1, "report", description, StepType.SQL, "SELECT 1;", null, "warehouse", OnError.FAIL);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.ResourceSampler;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class ResourceSamplerTest
+{
+    @Test
+    public void samplesProcessTree() throws Exception
+    {
+        Assume.assumeTrue(ResourceSampler.isSupported());
+        // Burns CPU in a child process for a while, so several samples are taken of both processes.
+        final Process process = new ProcessBuilder("/bin/sh", "-c", "sh -c 'i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done'; sleep 0.2").start();
+        final ResourceSampler resource_sampler = ResourceSampler.start(process.toHandle(), 50);
+        Assert.assertEquals(0, process.waitFor());
+        resource_sampler.finish(null);
+
+        Assert.assertTrue(resource_sampler.getCpuTime() > 0);
+        Assert.assertTrue(resource_sampler.getPeakRss() > 0);
+        Assert.assertTrue(resource_sampler.getProcessCount() >= 2);
+        Assert.assertTrue(resource_sampler.toString().startsWith("Resource usage: cpu "));
+    }
+
+    @Test
+    public void countsStepShorterThanTheInterval() throws Exception
+    {
+        Assume.assumeTrue(ResourceSampler.isSupported());
+        final Path usage_file = Files.createTempFile("jpgagent-test", ".usage");
+        try
+        {
+            // The step is over long before the first sample, so only the usage its parent reports is counted.
+            final List<String> command = ResourceSampler.wrapCommand(List.of("/bin/sh", "-c", "i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done"), usage_file);
+            final Process process = new ProcessBuilder(command).start();
+            final ResourceSampler resource_sampler = ResourceSampler.start(process.toHandle(), 60000);
+            Assert.assertEquals(0, process.waitFor());
+            resource_sampler.finish(ResourceSampler.Usage.read(usage_file));
+
+            Assert.assertTrue(resource_sampler.getCpuTime() > 0);
+        }
+        finally
+        {
+            Files.deleteIfExists(usage_file);
+        }
+    }
+}
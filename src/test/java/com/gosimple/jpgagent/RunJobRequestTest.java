@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.RunJobRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RunJobRequestTest
+{
+    @Test
+    public void parsesJobId()
+    {
+        final RunJobRequest run_job_request = RunJobRequest.parse(" 12 ");
+        Assert.assertEquals(12, run_job_request.getJobId());
+        Assert.assertTrue(run_job_request.getAnnotationOverrides().isEmpty());
+    }
+
+    @Test
+    public void parsesAnnotationOverrides()
+    {
+        final RunJobRequest run_job_request = RunJobRequest.parse("{\"job_id\": 12, \"annotations\": {\"DATABASE_NAME\": \"reporting\", \"JOB_TIMEOUT\": 60000, \"RUN_IN_PARALLEL\": true}}");
+        Assert.assertEquals(12, run_job_request.getJobId());
+        Assert.assertEquals(3, run_job_request.getAnnotationOverrides().size());
+        Assert.assertEquals("reporting", run_job_request.getAnnotationOverrides().get("DATABASE_NAME"));
+        Assert.assertEquals("60000", run_job_request.getAnnotationOverrides().get("JOB_TIMEOUT"));
+        Assert.assertEquals("true", run_job_request.getAnnotationOverrides().get("RUN_IN_PARALLEL"));
+    }
+
+    @Test
+    public void rejectsInvalidRequests()
+    {
+        for (String invalid : new String[]{"", "twelve", "{}", "{\"job_id\": \"12\"}", "{\"job_id\": -1}",
+                "{\"job_id\": 12, \"annotations\": []}", "{\"job_id\": 12, \"annotations\": {\"NOT_AN_ANNOTATION\": 1}}",
+                "{\"job_id\": 12, \"annotations\": {\"DATABASE_NAME\": null}}"})
+        {
+            try
+            {
+                RunJobRequest.parse(invalid);
+                Assert.fail("Parsed invalid request: " + invalid);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOverridesRunningSql()
+    {
+        assertRejected("DATABASE_AUTH_QUERY", "\"SELECT 'user', 'pass'\"");
+        assertRejected("BATCH_INPUT_QUERY", "\"SELECT * FROM pg_authid\"");
+    }
+
+    @Test
+    public void rejectsOverridesOfHostsAndCredentials()
+    {
+        assertRejected("DATABASE_HOST", "\"attacker.example.com\"");
+        assertRejected("DATABASE_LOGIN", "\"postgres\"");
+        assertRejected("DATABASE_PASSWORD", "\"secret\"");
+        assertRejected("COPY_TO_HOST", "\"attacker.example.com\"");
+    }
+
+    @Test
+    public void rejectsOverridesOfEmail()
+    {
+        assertRejected("EMAIL_TO", "\"attacker@example.com\"");
+        assertRejected("EMAIL_BODY", "\"~output_tail~\"");
+    }
+
+    private static void assertRejected(final String annotation, final String value)
+    {
+        try
+        {
+            RunJobRequest.parse("{\"job_id\": 12, \"annotations\": {\"" + annotation + "\": " + value + "}}");
+            Assert.fail("Allowed overriding " + annotation);
+        }
+        catch (IllegalArgumentException e)
+        {
+            Assert.assertTrue(e.getMessage().contains(annotation + " can not be overridden"));
+        }
+    }
+}
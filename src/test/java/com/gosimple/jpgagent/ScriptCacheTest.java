@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.ScriptCache;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ScriptCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testScriptReused() throws Exception
+    {
+        final ScriptCache script_cache = new ScriptCache(folder.getRoot().toPath(), 10);
+        final Path script_1 = script_cache.getScript("echo 1\r\necho 2", ".sh");
+        final Path script_2 = script_cache.getScript("echo 1\r\necho 2", ".sh");
+        final Path script_3 = script_cache.getScript("echo 3", ".sh");
+
+        Assert.assertEquals(script_1, script_2);
+        Assert.assertNotEquals(script_1, script_3);
+        Assert.assertTrue(Files.isExecutable(script_1));
+        final String line_separator = System.getProperty("line.separator");
+        Assert.assertEquals("echo 1" + line_separator + "echo 2", new String(Files.readAllBytes(script_1), StandardCharsets.UTF_8));
+        Assert.assertEquals(2, script_cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception
+    {
+        final ScriptCache script_cache = new ScriptCache(folder.getRoot().toPath(), 2);
+        final Path script_1 = script_cache.getScript("echo 1", ".sh");
+        final Path script_2 = script_cache.getScript("echo 2", ".sh");
+        // Use the first script again so the second one is the least recently used.
+        script_cache.getScript("echo 1", ".sh");
+        final Path script_3 = script_cache.getScript("echo 3", ".sh");
+
+        Assert.assertEquals(2, script_cache.size());
+        Assert.assertTrue(Files.exists(script_1));
+        Assert.assertFalse(Files.exists(script_2));
+        Assert.assertTrue(Files.exists(script_3));
+    }
+
+    @Test
+    public void testExistingScriptsLoaded() throws Exception
+    {
+        final Path script_1 = new ScriptCache(folder.getRoot().toPath(), 10).getScript("echo 1", ".sh");
+        Files.write(folder.getRoot().toPath().resolve("unrelated.txt"), new byte[]{1});
+
+        final ScriptCache script_cache = new ScriptCache(folder.getRoot().toPath(), 10);
+        Assert.assertEquals(1, script_cache.size());
+        Assert.assertEquals(script_1, script_cache.getScript("echo 1", ".sh"));
+    }
+
+    @Test
+    public void testAcquiredScriptsNotEvicted() throws Exception
+    {
+        final ScriptCache script_cache = new ScriptCache(folder.getRoot().toPath(), 1);
+        final Path script_1 = script_cache.acquire("echo 1", ".sh");
+        final Path script_2 = script_cache.getScript("echo 2", ".sh");
+
+        Assert.assertTrue(Files.exists(script_1));
+        Assert.assertTrue(Files.exists(script_2));
+        Assert.assertEquals(2, script_cache.size());
+        script_cache.release(script_1);
+        Assert.assertFalse(Files.exists(script_1));
+        Assert.assertTrue(Files.exists(script_2));
+        Assert.assertEquals(1, script_cache.size());
+    }
+
+    @Test
+    public void testChangedScriptsRewritten() throws Exception
+    {
+        final Path script_1 = new ScriptCache(folder.getRoot().toPath(), 10).getScript("echo 1", ".sh");
+        Files.write(script_1, "rm -rf /tmp/important".getBytes(StandardCharsets.UTF_8));
+
+        final ScriptCache script_cache = new ScriptCache(folder.getRoot().toPath(), 10);
+        Assert.assertEquals(script_1, script_cache.getScript("echo 1", ".sh"));
+        Assert.assertEquals("echo 1", new String(Files.readAllBytes(script_1), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.step.JobStep;
+import com.gosimple.jpgagent.job.step.OnError;
+import com.gosimple.jpgagent.job.step.ServerTimeouts;
+import com.gosimple.jpgagent.job.step.StepType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ServerTimeoutsTest
+{
+    @After
+    public void enableServerTimeouts()
+    {
+        Config.INSTANCE.disable_server_timeouts = false;
+    }
+
+    @Test
+    public void setsStatementAndLockTimeouts() throws Exception
+    {
+        final FakeConnection fake_connection = new FakeConnection();
+        ServerTimeouts.apply(fake_connection.getConnection(), 1500L, 500L);
+        Assert.assertEquals(Arrays.asList(
+                "SELECT set_config('statement_timeout', ?, false); [1500ms]",
+                "SELECT set_config('lock_timeout', ?, false); [500ms]"), fake_connection.getExecuted());
+    }
+
+    @Test
+    public void neverDisablesAnExpiredTimeout() throws Exception
+    {
+        // A statement_timeout of 0 means no timeout, so a step out of time still gets the smallest one.
+        final FakeConnection fake_connection = new FakeConnection();
+        ServerTimeouts.apply(fake_connection.getConnection(), -250L, null);
+        Assert.assertEquals(Collections.singletonList("SELECT set_config('statement_timeout', ?, false); [1ms]"), fake_connection.getExecuted());
+    }
+
+    @Test
+    public void setsNothingWithoutTimeoutsOrWhenDisabled() throws Exception
+    {
+        final FakeConnection fake_connection = new FakeConnection();
+        ServerTimeouts.apply(fake_connection.getConnection(), null, null);
+        Config.INSTANCE.disable_server_timeouts = true;
+        ServerTimeouts.apply(fake_connection.getConnection(), 1500L, 500L);
+        Assert.assertTrue(fake_connection.getExecuted().isEmpty());
+    }
+
+    @Test
+    public void appliesLockTimeoutAnnotation() throws Exception
+    {
+        final Job job = new Job(1, "nightly", "", 1);
+        final JobStep job_step = new JobStep(job, 1, "sql", "@LOCK_TIMEOUT=2 s;", StepType.SQL, "SELECT 1;", null, "warehouse", OnError.FAIL);
+        final FakeConnection fake_connection = new FakeConnection();
+        job_step.applyServerTimeouts(fake_connection.getConnection());
+        Assert.assertEquals(Collections.singletonList("SELECT set_config('lock_timeout', ?, false); [2000ms]"), fake_connection.getExecuted());
+    }
+}
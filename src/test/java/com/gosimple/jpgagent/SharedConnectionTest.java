@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.Job;
+import com.gosimple.jpgagent.job.step.JobStep;
+import com.gosimple.jpgagent.job.step.OnError;
+import com.gosimple.jpgagent.job.step.StepType;
+import com.gosimple.jpgagent.thread.CancellableRunnable;
+import com.gosimple.jpgagent.thread.ExecutionUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SharedConnectionTest
+{
+    @Test
+    public void reusesAndResetsConnectionsPerTarget() throws Exception
+    {
+        final FakeJob job = new FakeJob("@REUSE_CONNECTION=true;");
+        final Connection first = job.getSharedConnection("db1", "warehouse", "etl", "secret", false);
+        Assert.assertSame(first, job.getSharedConnection("db1", "warehouse", "etl", "secret", false));
+        Assert.assertNotSame(first, job.getSharedConnection("db1", "warehouse", "report", "secret", false));
+        Assert.assertNotSame(first, job.getSharedConnection("db1", "staging", "etl", "secret", false));
+        Assert.assertEquals(3, job.opened.size());
+        // Only a connection handed out again is reset, so no session state leaks from one step into the next.
+        Assert.assertEquals(Collections.singletonList("DISCARD ALL;"), job.opened.get(0).getExecuted());
+        Assert.assertTrue(job.opened.get(1).getExecuted().isEmpty());
+    }
+
+    @Test
+    public void replacesConnectionsWhichCanNotBeReset() throws Exception
+    {
+        final FakeJob job = new FakeJob("@REUSE_CONNECTION=true;");
+        final Connection first = job.getSharedConnection("db1", "warehouse", "etl", "secret", false);
+        job.opened.get(0).failOn("DISCARD ALL");
+        final Connection second = job.getSharedConnection("db1", "warehouse", "etl", "secret", false);
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(job.opened.get(0).isClosed());
+        Assert.assertSame(second, job.getSharedConnection("db1", "warehouse", "etl", "secret", false));
+    }
+
+    @Test
+    public void onlySharesBetweenSequentialSteps() throws Exception
+    {
+        final Job job = new Job(1, "nightly", "@REUSE_CONNECTION=true;", 1);
+        final JobStep first = sqlStep(job, 1, "");
+        final JobStep second = sqlStep(job, 2, "@RUN_IN_PARALLEL=true;");
+        final JobStep third = sqlStep(job, 3, "");
+        final JobStep fourth = sqlStep(job, 4, "");
+        job.setJobStepList(Arrays.asList(first, second, third, fourth));
+        Assert.assertFalse(job.canShareConnection(first));
+        Assert.assertFalse(job.canShareConnection(second));
+        Assert.assertTrue(job.canShareConnection(third));
+        Assert.assertTrue(job.canShareConnection(fourth));
+
+        final Job unshared_job = new Job(2, "nightly", "", 2);
+        final JobStep unshared_step = sqlStep(unshared_job, 1, "");
+        unshared_job.setJobStepList(Collections.singletonList(unshared_step));
+        Assert.assertFalse(unshared_job.canShareConnection(unshared_step));
+    }
+
+    @Test
+    public void tellsWhenACancelledTaskHasStopped() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch exited = new CountDownLatch(1);
+        final Future<?> future = ExecutionUtil.INSTANCE.submitTask(new CancellableRunnable()
+        {
+            @Override
+            public void cancelTask()
+            {
+            }
+
+            @Override
+            public void run()
+            {
+                started.countDown();
+                // Like a step stuck in a driver call, which does not notice the interrupt.
+                while (true)
+                {
+                    try
+                    {
+                        release.await();
+                        return;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Ignored.
+                    }
+                }
+            }
+        }, exited);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        future.cancel(true);
+        Assert.assertTrue(future.isDone());
+        Assert.assertFalse(exited.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(exited.await(5, TimeUnit.SECONDS));
+    }
+
+    private static JobStep sqlStep(final Job job, final int step_id, final String description) throws Exception
+    {
+        return new JobStep(job, step_id, "step " + step_id, description, StepType.SQL, "SELECT 1;", null, "warehouse", OnError.FAIL);
+    }
+
+    private static class FakeJob extends Job
+    {
+        private final List<FakeConnection> opened = new ArrayList<>();
+
+        private FakeJob(final String job_comment)
+        {
+            super(1, "nightly", job_comment, 1);
+        }
+
+        @Override
+        protected Connection openSharedConnection(final String host_name, final String database, final String user, final String password, final boolean use_replica)
+        {
+            final FakeConnection fake_connection = new FakeConnection();
+            opened.add(fake_connection);
+            return fake_connection.getConnection();
+        }
+    }
+}
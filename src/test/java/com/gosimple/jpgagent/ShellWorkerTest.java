@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.OutputCapture;
+import com.gosimple.jpgagent.job.step.ShellWorker;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ShellWorkerTest
+{
+    private static File createScript(final String code) throws Exception
+    {
+        final File script = File.createTempFile("jpgagent", ".sh");
+        script.deleteOnExit();
+        Files.write(script.toPath(), code.getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(script.setExecutable(true));
+        return script;
+    }
+
+    @Test
+    public void runsScriptsRepeatedly() throws Exception
+    {
+        Assume.assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+        final File succeed = createScript("#!/bin/sh\necho out\necho err 1>&2\n");
+        final File fail = createScript("#!/bin/sh\nprintf 'no line break'\nexit 3\n");
+        final ShellWorker shell_worker = new ShellWorker();
+        try
+        {
+            final OutputCapture first_output = new OutputCapture(true);
+            Assert.assertEquals(0, shell_worker.run(succeed.getAbsolutePath(), first_output));
+            Assert.assertTrue(shell_worker.isReusable());
+            final String[] first_lines = first_output.toString().trim().split(System.getProperty("line.separator"));
+            Assert.assertEquals(2, first_lines.length);
+            Assert.assertTrue(first_lines[0].endsWith("[stdout] out"));
+            Assert.assertTrue(first_lines[1].endsWith("[stdout] err"));
+            Assert.assertNotNull(shell_worker.getLastRunUsage());
+
+            final OutputCapture second_output = new OutputCapture(true);
+            Assert.assertEquals(3, shell_worker.run(fail.getAbsolutePath(), second_output));
+            Assert.assertTrue(shell_worker.isReusable());
+            Assert.assertTrue(second_output.toString().trim().endsWith("[stdout] no line break"));
+        }
+        finally
+        {
+            shell_worker.destroy();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.SqlStatements;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SqlStatementsTest
+{
+    @Test
+    public void splitsStatements() throws Exception
+    {
+        Assert.assertEquals(Arrays.asList("select 'a;b'", " select $$x;$$ ", "\n/* c; */ delete from t"),
+                SqlStatements.split("select 'a;b'; select $$x;$$ ;\n/* c; */ delete from t;\n-- done;\n", true));
+        Assert.assertEquals(Collections.singletonList("do $$ begin raise notice 'x'; end $$"),
+                SqlStatements.split("do $$ begin raise notice 'x'; end $$;", true));
+    }
+
+    @Test
+    public void dropsEmptyStatements() throws Exception
+    {
+        Assert.assertTrue(SqlStatements.split(null, true).isEmpty());
+        Assert.assertTrue(SqlStatements.split(" ; ;\n-- nothing\n", true).isEmpty());
+    }
+
+    @Test
+    public void takesSingleStatement() throws Exception
+    {
+        Assert.assertEquals("select * from t", SqlStatements.single("select * from t;\n", true));
+        Assert.assertEquals("select * from t -- all of it", SqlStatements.single("select * from t -- all of it\n", true));
+        for (String invalid : new String[]{"select 1; select 2;", " ;\n-- nothing\n"})
+        {
+            try
+            {
+                SqlStatements.single(invalid, true);
+                Assert.fail("Expected more or less than one statement to be rejected: " + invalid);
+            }
+            catch (SQLException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.job.step.OutputCapture;
+import com.gosimple.jpgagent.job.step.StreamPump;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class StreamPumpTest
+{
+    @Test
+    public void testBothStreamsDrained() throws Exception
+    {
+        Assume.assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+
+        // Writes far more to stderr than a pipe buffer holds, which blocks the process if stderr is not drained.
+        final Process process = new ProcessBuilder("/bin/sh", "-c", "echo out; i=0; while [ $i -lt 20000 ]; do echo err_line_$i >&2; i=$((i+1)); done; echo done").start();
+        final OutputCapture output_capture = new OutputCapture(true);
+        final StreamPump output_pump = StreamPump.start(process.getInputStream(), "stdout", output_capture);
+        final StreamPump error_pump = StreamPump.start(process.getErrorStream(), "stderr", output_capture);
+
+        Assert.assertTrue(process.waitFor(30, TimeUnit.SECONDS));
+        output_pump.finish();
+        error_pump.finish();
+
+        final String output = output_capture.toString();
+        Assert.assertTrue(output.contains("] [stdout] out"));
+        Assert.assertTrue(output.contains("] [stdout] done"));
+        Assert.assertTrue(output.contains("] [stderr] err_line_0"));
+        Assert.assertTrue(output.contains("] [stderr] err_line_19999"));
+    }
+
+    @Test
+    public void testLinesOnlyTaggedWhenAsked()
+    {
+        final String line_separator = System.getProperty("line.separator");
+        final OutputCapture plain_capture = new OutputCapture(false);
+        plain_capture.appendLine("stdout", "Backup started");
+        plain_capture.appendLine("stderr", "pg_dump: warning");
+        Assert.assertEquals("Backup started" + line_separator + "pg_dump: warning" + line_separator, plain_capture.toString());
+
+        final OutputCapture tagged_capture = new OutputCapture(true);
+        tagged_capture.appendLine("stderr", "pg_dump: warning");
+        Assert.assertTrue(tagged_capture.toString().matches("\\[[0-9: .-]+\\] \\[stderr\\] pg_dump: warning" + line_separator));
+    }
+}
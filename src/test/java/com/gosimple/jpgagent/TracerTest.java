@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016, Adam Brusselback
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.gosimple.jpgagent;
+
+import com.gosimple.jpgagent.trace.Span;
+import com.gosimple.jpgagent.trace.SpanExporter;
+import com.gosimple.jpgagent.trace.Tracer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class TracerTest
+{
+    @After
+    public void reset()
+    {
+        Tracer.INSTANCE.configure(0, null);
+    }
+
+    @Test
+    public void unsampledTracesAreNoOps()
+    {
+        Tracer.INSTANCE.configure(0, null);
+        final Span root = Tracer.INSTANCE.startRootSpan("job");
+        Assert.assertFalse(root.isSampled());
+        try (Span.Scope scope = root.makeCurrent())
+        {
+            Assert.assertSame(Span.NOOP, Tracer.INSTANCE.startSpan("step"));
+        }
+        Assert.assertSame(Span.NOOP, Tracer.INSTANCE.startSpan("connect"));
+    }
+
+    @Test
+    public void exportsParentAndChildSpans() throws Exception
+    {
+        final Path file = Files.createTempFile("jpgagent-trace", ".jsonl");
+        try
+        {
+            final SpanExporter span_exporter = new SpanExporter(file, "agent-host");
+            Tracer.INSTANCE.configure(1, span_exporter);
+
+            final Span root = Tracer.INSTANCE.startRootSpan("job").setAttribute("jpgagent.job.id", 12);
+            final Span child;
+            try (Span.Scope scope = root.makeCurrent())
+            {
+                child = Tracer.INSTANCE.startSpan("connect").setAttribute("db.name", "a \"quoted\" name").setError("refused");
+                child.end();
+            }
+            // The scope is closed, so spans on this thread are no longer children of the root.
+            Assert.assertSame(Span.NOOP, Tracer.INSTANCE.startSpan("log_write"));
+            root.end();
+            span_exporter.flush();
+
+            Assert.assertEquals(root.getTraceId(), child.getTraceId());
+            Assert.assertEquals(root.getSpanId(), child.getParentSpanId());
+            Assert.assertEquals(2, span_exporter.getExportedCount());
+
+            final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            Assert.assertEquals(1, lines.size());
+            final String json = lines.get(0);
+            Assert.assertTrue(json.startsWith("{\"resourceSpans\":[{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":\"jpgagent\"}}"));
+            Assert.assertTrue(json.contains("{\"key\":\"host.name\",\"value\":{\"stringValue\":\"agent-host\"}}"));
+            Assert.assertTrue(json.contains("\"parentSpanId\":\"" + root.getSpanId() + "\",\"name\":\"connect\""));
+            Assert.assertTrue(json.contains("{\"key\":\"db.name\",\"value\":{\"stringValue\":\"a \\\"quoted\\\" name\"}}"));
+            Assert.assertTrue(json.contains("{\"key\":\"jpgagent.job.id\",\"value\":{\"intValue\":\"12\"}}"));
+            Assert.assertTrue(json.contains("\"status\":{\"code\":2,\"message\":\"refused\"}"));
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+}